@@ -0,0 +1,22 @@
+package org.jglrxavpok.jameboy.benchmarks;
+
+import org.jglrxavpok.jameboy.utils.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Loads the test fixtures (ROMs, memory dumps) from the test resources
+ */
+final class BenchmarkResources {
+
+    private BenchmarkResources() {}
+
+    static byte[] read(String name) throws IOException {
+        try(InputStream in = BenchmarkResources.class.getResourceAsStream("/"+name)) {
+            if(in == null)
+                throw new IOException("Missing benchmark resource: "+name);
+            return IOUtils.read(in);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.jglrxavpok.jameboy.benchmarks;
+
+import org.jglrxavpok.jameboy.CPU;
+import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.memory.GameROM;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw interpreter speed: {@link CPU#doCycle()} over the cpu_instrs test ROM, without the GPU.
+ * One operation is one instruction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class CPUBenchmark {
+
+    /**
+     * The test ROM executes STOP a bit after 1.5M cycles, reboot before reaching it
+     */
+    private static final int CYCLES_BEFORE_REBOOT = 1_400_000;
+    private static final int INSTRUCTIONS_PER_INVOCATION = 1000;
+
+    private JameBoy core;
+    private CPU cpu;
+    private int cyclesSinceBoot;
+
+    @Setup(Level.Trial)
+    public void loadROM() throws IOException {
+        core = new JameBoy(false);
+        core.loadROM(new GameROM(ByteBuffer.wrap(BenchmarkResources.read("roms/cpu_instrs.gb"))));
+        cpu = core.getCPU();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(INSTRUCTIONS_PER_INVOCATION)
+    public int doCycle() {
+        if(cyclesSinceBoot > CYCLES_BEFORE_REBOOT) {
+            core.boot();
+            cyclesSinceBoot = 0;
+        }
+        int cycles = 0;
+        for (int i = 0; i < INSTRUCTIONS_PER_INVOCATION; i++) {
+            cycles += cpu.doCycle();
+        }
+        cyclesSinceBoot += cycles;
+        return cycles;
+    }
+}
@@ -0,0 +1,47 @@
+package org.jglrxavpok.jameboy.benchmarks;
+
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.memory.NoMBC;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering cost: {@link GPU#step(int)} over a full frame (70224 cycles, one scanline at a time), with video memory
+ * loaded from the Pokemon Yellow battle dump. One operation is one frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class GPUBenchmark {
+
+    private static final int CYCLES_PER_LINE = 456;
+
+    private GPU gpu;
+
+    @Setup(Level.Trial)
+    public void loadDump() throws IOException {
+        byte[] dump = BenchmarkResources.read("memdumps/PokemonYellowBattle.DMP");
+        gpu = new GPU();
+        NoMBC memory = new NoMBC(ByteBuffer.allocate(0x8000), ByteBuffer.allocate(0x2000));
+        memory.setGPU(gpu);
+        gpu.linkToMemory(memory);
+        for (int i = 0; i < dump.length; i++) {
+            if(gpu.isValidGPUAddress(i))
+                memory.write(i, dump[i]);
+        }
+    }
+
+    @Benchmark
+    public int[] frame() {
+        for (int cycles = 0; cycles < GPU.CYCLES_PER_FRAME; cycles += CYCLES_PER_LINE) {
+            gpu.step(CYCLES_PER_LINE);
+        }
+        return gpu.getPixels();
+    }
+}
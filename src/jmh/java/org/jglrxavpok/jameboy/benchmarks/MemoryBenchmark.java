@@ -0,0 +1,82 @@
+package org.jglrxavpok.jameboy.benchmarks;
+
+import org.jglrxavpok.jameboy.CPU;
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.memory.MemoryController;
+import org.jglrxavpok.jameboy.memory.NoMBC;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raw {@link MemoryController#read(int)}/{@link MemoryController#write(int, byte)} throughput, per region of the
+ * address space. One operation is one access.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MemoryBenchmark {
+
+    private static final int ACCESSES_PER_INVOCATION = 1024;
+
+    public enum Region {
+        ROM(0x0000, 0x8000),
+        VRAM(0x8000, 0x2000),
+        CARTRIDGE_RAM(0xA000, 0x2000),
+        WORK_RAM(0xC000, 0x2000),
+        ECHO_RAM(0xE000, 0x1E00),
+        OAM(0xFE00, 0xA0),
+        SCROLL_REGISTERS(GPU.ADDR_SCROLL_Y, 2), // I/O registers without side effects on write
+        HIGH_RAM(0xFF80, 0x7F);
+
+        private final int start;
+        private final int length;
+
+        Region(int start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    @Param
+    public Region region;
+
+    private MemoryController memory;
+    private int[] addresses;
+
+    @Setup(Level.Trial)
+    public void createMemory() {
+        memory = new NoMBC(ByteBuffer.allocate(0x8000), ByteBuffer.allocate(0x2000));
+        GPU gpu = new GPU();
+        memory.setGPU(gpu);
+        gpu.linkToMemory(memory);
+        new CPU().setMemory(memory); // gives the controller a timer
+
+        addresses = new int[ACCESSES_PER_INVOCATION];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = region.start + (i * 7) % region.length; // not perfectly sequential
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES_PER_INVOCATION)
+    public int read() {
+        int sum = 0;
+        for (int address : addresses) {
+            sum += memory.read(address);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES_PER_INVOCATION)
+    public void write() {
+        for (int i = 0; i < addresses.length; i++) {
+            memory.write(addresses[i], (byte) i);
+        }
+    }
+}
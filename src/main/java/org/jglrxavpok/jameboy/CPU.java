@@ -1,11 +1,16 @@
 package org.jglrxavpok.jameboy;
 
+import org.jglrxavpok.jameboy.cpu.ALUTables;
+import org.jglrxavpok.jameboy.cpu.EventScheduler;
+import org.jglrxavpok.jameboy.cpu.Instruction;
 import org.jglrxavpok.jameboy.cpu.Z80Timer;
-import org.jglrxavpok.jameboy.memory.BaseMemoryController;
+import org.jglrxavpok.jameboy.graphics.GPU;
 import org.jglrxavpok.jameboy.memory.Interrupts;
 import org.jglrxavpok.jameboy.memory.MemoryController;
 import org.jglrxavpok.jameboy.utils.BitUtils;
 
+import java.nio.ByteBuffer;
+
 /**
  * Emulates a LR35902 CPU (used in Nintendo's Game Boy console)
  *
@@ -13,15 +18,39 @@ import org.jglrxavpok.jameboy.utils.BitUtils;
  */
 public class CPU {
 
+    public static final int REG_B = 0;
+    public static final int REG_C = 1;
+    public static final int REG_D = 2;
+    public static final int REG_E = 3;
+    public static final int REG_H = 4;
+    public static final int REG_L = 5;
+    public static final int REG_HL_INDIRECT = 6;
+    public static final int REG_A = 7;
+    public static final int FLAG_Z = 0x80;
+    public static final int FLAG_N = 0x40;
+    public static final int FLAG_H = 0x20;
+    public static final int FLAG_C = 0x10;
+    /**
+     * Offset of the backward jump closing a polling loop (see {@link #fastForwardPollingLoop()}), and the duration of one
+     * of its iterations
+     */
+    private static final int POLLING_LOOP_OFFSET = 0xFA;
+    private static final int POLLING_LOOP_CYCLES = 12 + 8 + 12;
+    /**
+     * Offset of a jump to itself ('JR $'), used to wait for interrupts
+     */
+    private static final int SELF_LOOP_OFFSET = 0xFE;
+
     private final Z80Timer timer;
+    private final EventScheduler scheduler;
     public int PC = 0x100;
     public int SP = 0;
     private int clockCycles = 0;
     public byte A;
-    public boolean Z;
-    public boolean N;
-    public boolean H;
-    public boolean C;
+    /**
+     * Flags, packed as in the F register (see the FLAG_* constants)
+     */
+    private int F;
     public int BC, DE, HL;
     private boolean stop;
     private boolean halted;
@@ -29,10 +58,306 @@ public class CPU {
     private boolean disableInterruptsNextInstruction;
     private boolean enableInterruptsNextInstruction;
     private boolean masterInterrupt;
-    private byte interruptFlagsSave;
+    private long servicedInterrupts;
+    private long skippedCycles;
+    private final Instruction[] opcodeTable = new Instruction[256];
+    private final Instruction[] cbOpcodeTable = new Instruction[256];
 
     public CPU() {
+        scheduler = new EventScheduler();
         timer = new Z80Timer(this);
+        fillOpcodeTable();
+        fillCBOpcodeTable();
+    }
+
+    private void fillOpcodeTable() {
+        opcodeTable[0x00] = this::op_nop;
+        opcodeTable[0x01] = this::op_LD_BC;
+        opcodeTable[0x02] = this::op_LD_BC_A;
+        opcodeTable[0x03] = this::op_INC_BC;
+        opcodeTable[0x04] = this::op_INC_B;
+        opcodeTable[0x05] = this::op_DEC_B;
+        opcodeTable[0x06] = this::op_LD_B;
+        opcodeTable[0x07] = this::op_RLCA;
+        opcodeTable[0x08] = this::op_LD_SP8b;
+        opcodeTable[0x09] = this::op_ADD_HL_BC;
+        opcodeTable[0x0A] = this::op_LD_A_BC;
+        opcodeTable[0x0B] = this::op_DEC_BC;
+        opcodeTable[0x0C] = this::op_INC_C;
+        opcodeTable[0x0D] = this::op_DEC_C;
+        opcodeTable[0x0E] = this::op_LD_C;
+        opcodeTable[0x0F] = this::op_RRCA;
+        opcodeTable[0x10] = this::op_STOP;
+        opcodeTable[0x11] = this::op_LD_DE;
+        opcodeTable[0x12] = this::op_LD_DE_A;
+        opcodeTable[0x13] = this::op_INC_DE;
+        opcodeTable[0x14] = this::op_INC_D;
+        opcodeTable[0x15] = this::op_DEC_D;
+        opcodeTable[0x16] = this::op_LD_D;
+        opcodeTable[0x17] = this::op_RLA;
+        opcodeTable[0x18] = this::op_JR;
+        opcodeTable[0x19] = this::op_ADD_HL_DE;
+        opcodeTable[0x1A] = this::op_LD_A_DE;
+        opcodeTable[0x1B] = this::op_DEC_DE;
+        opcodeTable[0x1C] = this::op_INC_E;
+        opcodeTable[0x1D] = this::op_DEC_E;
+        opcodeTable[0x1E] = this::op_LD_E;
+        opcodeTable[0x1F] = this::op_RRA;
+        opcodeTable[0x20] = this::op_JR_NZ;
+        opcodeTable[0x21] = this::op_LD_HL;
+        opcodeTable[0x22] = this::op_LD_HL_INC_A;
+        opcodeTable[0x23] = this::op_INC_HL;
+        opcodeTable[0x24] = this::op_INC_H;
+        opcodeTable[0x25] = this::op_DEC_H;
+        opcodeTable[0x26] = this::op_LD_H;
+        opcodeTable[0x27] = this::op_DAA;
+        opcodeTable[0x28] = this::op_JR_Z;
+        opcodeTable[0x29] = this::op_ADD_HL_HL;
+        opcodeTable[0x2A] = this::op_LD_A_HL_INC;
+        opcodeTable[0x2B] = this::op_DEC_HL;
+        opcodeTable[0x2C] = this::op_INC_L;
+        opcodeTable[0x2D] = this::op_DEC_L;
+        opcodeTable[0x2E] = this::op_LD_L;
+        opcodeTable[0x2F] = this::op_CPL;
+        opcodeTable[0x30] = this::op_JR_NC;
+        opcodeTable[0x31] = this::op_LD_SP16b;
+        opcodeTable[0x32] = this::op_LD_HL_DEC_A;
+        opcodeTable[0x33] = this::op_INC_SP;
+        opcodeTable[0x34] = this::op_INC_HL_VALUE;
+        opcodeTable[0x35] = this::op_DEC_HL_VALUE;
+        opcodeTable[0x36] = this::op_LD_HL_VALUE;
+        opcodeTable[0x37] = this::op_SCF;
+        opcodeTable[0x38] = this::op_JR_C;
+        opcodeTable[0x39] = this::op_ADD_HL_SP;
+        opcodeTable[0x3A] = this::op_LD_A_HL_DEC;
+        opcodeTable[0x3B] = this::op_DEC_SP;
+        opcodeTable[0x3C] = this::op_INC_A;
+        opcodeTable[0x3D] = this::op_DEC_A;
+        opcodeTable[0x3E] = this::op_LD_A;
+        opcodeTable[0x3F] = this::op_CCF;
+        opcodeTable[0x40] = this::op_LD_B_B;
+        opcodeTable[0x41] = this::op_LD_B_C;
+        opcodeTable[0x42] = this::op_LD_B_D;
+        opcodeTable[0x43] = this::op_LD_B_E;
+        opcodeTable[0x44] = this::op_LD_B_H;
+        opcodeTable[0x45] = this::op_LD_B_L;
+        opcodeTable[0x46] = this::op_LD_B_HL_VALUE;
+        opcodeTable[0x47] = this::op_LD_B_A;
+        opcodeTable[0x48] = this::op_LD_C_B;
+        opcodeTable[0x49] = this::op_LD_C_C;
+        opcodeTable[0x4A] = this::op_LD_C_D;
+        opcodeTable[0x4B] = this::op_LD_C_E;
+        opcodeTable[0x4C] = this::op_LD_C_H;
+        opcodeTable[0x4D] = this::op_LD_C_L;
+        opcodeTable[0x4E] = this::op_LD_C_HL_VALUE;
+        opcodeTable[0x4F] = this::op_LD_C_A;
+        opcodeTable[0x50] = this::op_LD_D_B;
+        opcodeTable[0x51] = this::op_LD_D_C;
+        opcodeTable[0x52] = this::op_LD_D_D;
+        opcodeTable[0x53] = this::op_LD_D_E;
+        opcodeTable[0x54] = this::op_LD_D_H;
+        opcodeTable[0x55] = this::op_LD_D_L;
+        opcodeTable[0x56] = this::op_LD_D_HL_VALUE;
+        opcodeTable[0x57] = this::op_LD_D_A;
+        opcodeTable[0x58] = this::op_LD_E_B;
+        opcodeTable[0x59] = this::op_LD_E_C;
+        opcodeTable[0x5A] = this::op_LD_E_D;
+        opcodeTable[0x5B] = this::op_LD_E_E;
+        opcodeTable[0x5C] = this::op_LD_E_H;
+        opcodeTable[0x5D] = this::op_LD_E_L;
+        opcodeTable[0x5E] = this::op_LD_E_HL_VALUE;
+        opcodeTable[0x5F] = this::op_LD_E_A;
+        opcodeTable[0x60] = this::op_LD_H_B;
+        opcodeTable[0x61] = this::op_LD_H_C;
+        opcodeTable[0x62] = this::op_LD_H_D;
+        opcodeTable[0x63] = this::op_LD_H_E;
+        opcodeTable[0x64] = this::op_LD_H_H;
+        opcodeTable[0x65] = this::op_LD_H_L;
+        opcodeTable[0x66] = this::op_LD_H_HL_VALUE;
+        opcodeTable[0x67] = this::op_LD_H_A;
+        opcodeTable[0x68] = this::op_LD_L_B;
+        opcodeTable[0x69] = this::op_LD_L_C;
+        opcodeTable[0x6A] = this::op_LD_L_D;
+        opcodeTable[0x6B] = this::op_LD_L_E;
+        opcodeTable[0x6C] = this::op_LD_L_H;
+        opcodeTable[0x6D] = this::op_LD_L_L;
+        opcodeTable[0x6E] = this::op_LD_L_HL_VALUE;
+        opcodeTable[0x6F] = this::op_LD_L_A;
+        opcodeTable[0x70] = this::op_LD_HL_VALUE_B;
+        opcodeTable[0x71] = this::op_LD_HL_VALUE_C;
+        opcodeTable[0x72] = this::op_LD_HL_VALUE_D;
+        opcodeTable[0x73] = this::op_LD_HL_VALUE_E;
+        opcodeTable[0x74] = this::op_LD_HL_VALUE_H;
+        opcodeTable[0x75] = this::op_LD_HL_VALUE_L;
+        opcodeTable[0x76] = this::op_HALT;
+        opcodeTable[0x77] = this::op_LD_HL_VALUE_A;
+        opcodeTable[0x78] = this::op_LD_A_B;
+        opcodeTable[0x79] = this::op_LD_A_C;
+        opcodeTable[0x7A] = this::op_LD_A_D;
+        opcodeTable[0x7B] = this::op_LD_A_E;
+        opcodeTable[0x7C] = this::op_LD_A_H;
+        opcodeTable[0x7D] = this::op_LD_A_L;
+        opcodeTable[0x7E] = this::op_LD_A_HL_VALUE;
+        opcodeTable[0x7F] = this::op_LD_A_A;
+        opcodeTable[0x80] = this::op_ADD_A_B;
+        opcodeTable[0x81] = this::op_ADD_A_C;
+        opcodeTable[0x82] = this::op_ADD_A_D;
+        opcodeTable[0x83] = this::op_ADD_A_E;
+        opcodeTable[0x84] = this::op_ADD_A_H;
+        opcodeTable[0x85] = this::op_ADD_A_L;
+        opcodeTable[0x86] = this::op_ADD_A_HL_VALUE;
+        opcodeTable[0x87] = this::op_ADD_A_A;
+        opcodeTable[0x88] = this::op_ADC_A_B;
+        opcodeTable[0x89] = this::op_ADC_A_C;
+        opcodeTable[0x8A] = this::op_ADC_A_D;
+        opcodeTable[0x8B] = this::op_ADC_A_E;
+        opcodeTable[0x8C] = this::op_ADC_A_H;
+        opcodeTable[0x8D] = this::op_ADC_A_L;
+        opcodeTable[0x8E] = this::op_ADC_A_HL_VALUE;
+        opcodeTable[0x8F] = this::op_ADC_A_A;
+        opcodeTable[0x90] = this::op_SUB_B;
+        opcodeTable[0x91] = this::op_SUB_C;
+        opcodeTable[0x92] = this::op_SUB_D;
+        opcodeTable[0x93] = this::op_SUB_E;
+        opcodeTable[0x94] = this::op_SUB_H;
+        opcodeTable[0x95] = this::op_SUB_L;
+        opcodeTable[0x96] = this::op_SUB_HL_VALUE;
+        opcodeTable[0x97] = this::op_SUB_A_A;
+        opcodeTable[0x98] = this::op_SBC_A_B;
+        opcodeTable[0x99] = this::op_SBC_A_C;
+        opcodeTable[0x9A] = this::op_SBC_A_D;
+        opcodeTable[0x9B] = this::op_SBC_A_E;
+        opcodeTable[0x9C] = this::op_SBC_A_H;
+        opcodeTable[0x9D] = this::op_SBC_A_L;
+        opcodeTable[0x9E] = this::op_SBC_A_HL_VALUE;
+        opcodeTable[0x9F] = this::op_SBC_A_A;
+        opcodeTable[0xA0] = this::op_AND_B;
+        opcodeTable[0xA1] = this::op_AND_C;
+        opcodeTable[0xA2] = this::op_AND_D;
+        opcodeTable[0xA3] = this::op_AND_E;
+        opcodeTable[0xA4] = this::op_AND_H;
+        opcodeTable[0xA5] = this::op_AND_L;
+        opcodeTable[0xA6] = this::op_AND_HL_VALUE;
+        opcodeTable[0xA7] = this::op_AND_A_A;
+        opcodeTable[0xA8] = this::op_XOR_B;
+        opcodeTable[0xA9] = this::op_XOR_C;
+        opcodeTable[0xAA] = this::op_XOR_D;
+        opcodeTable[0xAB] = this::op_XOR_E;
+        opcodeTable[0xAC] = this::op_XOR_H;
+        opcodeTable[0xAD] = this::op_XOR_L;
+        opcodeTable[0xAE] = this::op_XOR_HL_VALUE;
+        opcodeTable[0xAF] = this::op_XOR_A_A;
+        opcodeTable[0xB0] = this::op_OR_B;
+        opcodeTable[0xB1] = this::op_OR_C;
+        opcodeTable[0xB2] = this::op_OR_D;
+        opcodeTable[0xB3] = this::op_OR_E;
+        opcodeTable[0xB4] = this::op_OR_H;
+        opcodeTable[0xB5] = this::op_OR_L;
+        opcodeTable[0xB6] = this::op_OR_HL_VALUE;
+        opcodeTable[0xB7] = this::op_OR_A_A;
+        opcodeTable[0xB8] = this::op_CP_B;
+        opcodeTable[0xB9] = this::op_CP_C;
+        opcodeTable[0xBA] = this::op_CP_D;
+        opcodeTable[0xBB] = this::op_CP_E;
+        opcodeTable[0xBC] = this::op_CP_H;
+        opcodeTable[0xBD] = this::op_CP_L;
+        opcodeTable[0xBE] = this::op_CP_HL_VALUE;
+        opcodeTable[0xBF] = this::op_CP_A_A;
+        opcodeTable[0xC0] = this::op_RET_NZ;
+        opcodeTable[0xC1] = this::op_POP_BC;
+        opcodeTable[0xC2] = this::op_JP_NZ;
+        opcodeTable[0xC3] = this::op_JP;
+        opcodeTable[0xC4] = this::op_CALL_NZ;
+        opcodeTable[0xC5] = this::op_PUSH_BC;
+        opcodeTable[0xC6] = this::op_ADD_A;
+        opcodeTable[0xC7] = this::op_RST_00H;
+        opcodeTable[0xC8] = this::op_RET_Z;
+        opcodeTable[0xC9] = this::op_RET;
+        opcodeTable[0xCA] = this::op_JP_Z;
+        opcodeTable[0xCB] = this::op_CBCode;
+        opcodeTable[0xCC] = this::op_CALL_Z;
+        opcodeTable[0xCD] = this::op_CALL;
+        opcodeTable[0xCE] = this::op_ADC_A;
+        opcodeTable[0xCF] = this::op_RST_08H;
+        opcodeTable[0xD0] = this::op_RET_NC;
+        opcodeTable[0xD1] = this::op_POP_DE;
+        opcodeTable[0xD2] = this::op_JP_NC;
+        opcodeTable[0xD3] = this::op_NULL;
+        opcodeTable[0xD4] = this::op_CALL_NC;
+        opcodeTable[0xD5] = this::op_PUSH_DE;
+        opcodeTable[0xD6] = this::op_SUB_A;
+        opcodeTable[0xD7] = this::op_RST_10H;
+        opcodeTable[0xD8] = this::op_RET_C;
+        opcodeTable[0xD9] = this::op_RETI;
+        opcodeTable[0xDA] = this::op_JP_C;
+        opcodeTable[0xDB] = unknownOpcode(0xDB);
+        opcodeTable[0xDC] = this::op_CALL_C;
+        opcodeTable[0xDD] = unknownOpcode(0xDD);
+        opcodeTable[0xDE] = this::op_SBC_A;
+        opcodeTable[0xDF] = this::op_RST_18H;
+        opcodeTable[0xE0] = this::op_LD_OFFSET_ADDRESS_A;
+        opcodeTable[0xE1] = this::op_POP_HL;
+        opcodeTable[0xE2] = this::op_LD_C_OFFSET_ADDRESS_A;
+        opcodeTable[0xE3] = unknownOpcode(0xE3);
+        opcodeTable[0xE4] = unknownOpcode(0xE4);
+        opcodeTable[0xE5] = this::op_PUSH_HL;
+        opcodeTable[0xE6] = this::op_AND_A;
+        opcodeTable[0xE7] = this::op_RST_20H;
+        opcodeTable[0xE8] = this::op_ADD_SP;
+        opcodeTable[0xE9] = this::op_JP_HL_VALUE;
+        opcodeTable[0xEA] = this::op_LDH_A_TO;
+        opcodeTable[0xEB] = unknownOpcode(0xEB);
+        opcodeTable[0xEC] = unknownOpcode(0xEC);
+        opcodeTable[0xED] = unknownOpcode(0xED);
+        opcodeTable[0xEE] = this::op_XOR_A;
+        opcodeTable[0xEF] = this::op_RST_28H;
+        opcodeTable[0xF0] = this::op_LD_A_OFFSET_ADDRESS;
+        opcodeTable[0xF1] = this::op_POP_AF;
+        opcodeTable[0xF2] = this::op_LD_A_C_OFFSET;
+        opcodeTable[0xF3] = this::op_DI;
+        opcodeTable[0xF4] = unknownOpcode(0xF4);
+        opcodeTable[0xF5] = this::op_PUSH_AF;
+        opcodeTable[0xF6] = this::op_OR_A;
+        opcodeTable[0xF7] = this::op_RST_30H;
+        opcodeTable[0xF8] = this::op_LD_HL_SP_OFFSET;
+        opcodeTable[0xF9] = this::op_LD_SP_HL;
+        opcodeTable[0xFA] = this::op_LDH_A;
+        opcodeTable[0xFB] = this::op_EI;
+        opcodeTable[0xFC] = unknownOpcode(0xFC);
+        opcodeTable[0xFD] = unknownOpcode(0xFD);
+        opcodeTable[0xFE] = this::op_CP_A;
+        opcodeTable[0xFF] = this::op_RST_38H;
+    }
+
+    /**
+     * CB-prefixed opcodes are regular: bits 6-7 select the operation group, bits 3-5 the operation or bit index,
+     * and bits 0-2 the register (see the REG_* constants)
+     */
+    private void fillCBOpcodeTable() {
+        for (int b = 0; b < 256; b++) {
+            final int register = b & 0x7;
+            final int bitIndex = (b >> 3) & 0x7;
+            switch (b >> 6) {
+                case 0: // rotations, shifts & swap, in the order of the ALUTables.SHIFT_* constants
+                    cbOpcodeTable[b] = () -> setRegister(register, shift(bitIndex, (byte) getRegister(register)));
+                    break;
+                case 1: // BIT b,register
+                    cbOpcodeTable[b] = () -> bit(getRegister(register), bitIndex);
+                    break;
+                case 2: // RES b,register
+                    cbOpcodeTable[b] = () -> setRegister(register, getRegister(register) & (~(1<<bitIndex) & 0xFF));
+                    break;
+                case 3: // SET b,register
+                    cbOpcodeTable[b] = () -> setRegister(register, getRegister(register) | ((1<<bitIndex) & 0xFF));
+                    break;
+            }
+        }
+    }
+
+    private Instruction unknownOpcode(int opcode) {
+        return () -> {
+            throw new IllegalArgumentException("Unknown opcode: " + Integer.toHexString(opcode));
+        };
     }
 
     public void setMemory(MemoryController memory) {
@@ -44,1071 +369,81 @@ public class CPU {
         if (stop)
             return 0;
         if(halted) {
-            byte currentInterruptFlags = memory.read(BaseMemoryController.ADDR_INTERRUPT_FLAG);
-            if(currentInterruptFlags != interruptFlagsSave) {
-                halted = false; // wake the CPU up
-            }
-        }
-
-        if(!halted) {
-            int opcode = nextByte();
-            clockCycles = executeOP(opcode);
-            timer.postCycles(clockCycles);
-        }
-        return clockCycles;
-    }
-
-    private int nextPart() {
-        return (nextByte() & 0xFF | (nextByte() & 0xFF) << 8) & 0xFFFF;
-    }
-
-    private byte nextByte() {
-        byte value = this.memory.read(PC);
-        PC++;
-        PC &= 0xFFFF;
-        return value;
-    }
-
-    public void push16Bit(int val) {
-        SP -= 2;
-        SP &= 0xFFFF;
-        write16Bits(SP, val & 0xFFFF);
-    }
-
-    public int popPart() {
-        int val = (this.memory.read(SP) & 0xFF)
-                | ((this.memory.read(SP + 1) & 0xFF) << 8);
-        SP += 2;
-        SP &= 0xFFFF;
-        return val & 0xFFFF;
-    }
-
-    public void write16Bits(int pos, int val) {
-        this.memory.write(pos, getLower(val));
-        this.memory.write(pos + 1, getUpper(val));
-    }
-
-    public void hardGoto(int index) {
-        PC = index;
-    }
-
-    public void hardReset() {
-        A = 0;
-        Z = N = C = H = false;
-        BC = DE = HL = 0;
-        SP = 0;
-        PC = 0x100;
-        halted = false;
-    }
-
-    private int executeOP(int opcode) {
-        if(disableInterruptsNextInstruction) {
-            disableInterruptsNextInstruction = false;
-            masterInterrupt = false;
-        }
-        if(enableInterruptsNextInstruction) {
-            enableInterruptsNextInstruction = false;
-            masterInterrupt = true;
-        }
-        opcode = opcode & 0xFF;
-        //System.out.println("opcode: "+Integer.toHexString(opcode)+", ("+Integer.toHexString(PC-1)+")");
-        //System.out.println(Integer.toHexString(PC-1));
-        switch (opcode) {
-            case 0x00: {
-                op_nop();
-                break;
-            }
-            case 0x01: {
-                op_LD_BC();
-                break;
-            }
-            case 0x02: {
-                op_LD_BC_A();
-                break;
-            }
-            case 0x03: {
-                op_INC_BC();
-                break;
-            }
-            case 0x04: {
-                op_INC_B();
-                break;
-            }
-            case 0x05: {
-                op_DEC_B();
-                break;
-            }
-            case 0x06: {
-                op_LD_B();
-                break;
-            }
-            case 0x07: {
-                op_RLCA();
-                break;
-            }
-            case 0x08: {
-                op_LD_SP8b();
-                break;
-            }
-            case 0x09: {
-                op_ADD_HL_BC();
-                break;
-            }
-            case 0x0A: {
-                op_LD_A_BC();
-                break;
-            }
-            case 0x0B: {
-                op_DEC_BC();
-                break;
-            }
-            case 0x0C: {
-                op_INC_C();
-                break;
-            }
-            case 0x0D: {
-                op_DEC_C();
-                break;
-            }
-            case 0x0E: {
-                op_LD_C();
-                break;
-            }
-            case 0x0F: {
-                op_RRCA();
-                break;
-            }
-            case 0x10: {
-                op_STOP();
-                break;
-            }
-            case 0x11: {
-                op_LD_DE();
-                break;
-            }
-            case 0x12: {
-                op_LD_DE_A();
-                break;
-            }
-            case 0x13: {
-                op_INC_DE();
-                break;
-            }
-            case 0x14: {
-                op_INC_D();
-                break;
-            }
-            case 0x15: {
-                op_DEC_D();
-                break;
-            }
-            case 0x16: {
-                op_LD_D();
-                break;
-            }
-            case 0x17: {
-                op_RLA();
-                break;
-            }
-            case 0x18: {
-                op_JR();
-                break;
-            }
-            case 0x19: {
-                op_ADD_HL_DE();
-                break;
-            }
-            case 0x1A: {
-                op_LD_A_DE();
-                break;
-            }
-            case 0x1B: {
-                op_DEC_DE();
-                break;
-            }
-            case 0x1C: {
-                op_INC_E();
-                break;
-            }
-            case 0x1D: {
-                op_DEC_E();
-                break;
-            }
-            case 0x1E: {
-                op_LD_E();
-                break;
-            }
-            case 0x1F: {
-                op_RRA();
-                break;
-            }
-            case 0x20: {
-                op_JR_NZ();
-                break;
-            }
-            case 0x21: {
-                op_LD_HL();
-                break;
-            }
-            case 0x22: {
-                op_LD_HL_INC_A();
-                break;
-            }
-            case 0x23: {
-                op_INC_HL();
-                break;
-            }
-            case 0x24: {
-                op_INC_H();
-                break;
-            }
-            case 0x25: {
-                op_DEC_H();
-                break;
-            }
-            case 0x26: {
-                op_LD_H();
-                break;
-            }
-            case 0x27: {
-                op_DAA();
-                break;
-            }
-            case 0x28: {
-                op_JR_Z();
-                break;
-            }
-            case 0x29: {
-                op_ADD_HL_HL();
-                break;
-            }
-            case 0x2A: {
-                op_LD_A_HL_INC();
-                break;
-            }
-            case 0x2B: {
-                op_DEC_HL();
-                break;
-            }
-            case 0x2C: {
-                op_INC_L();
-                break;
-            }
-            case 0x2D: {
-                op_DEC_L();
-                break;
-            }
-            case 0x2E: {
-                op_LD_L();
-                break;
-            }
-            case 0x2F: {
-                op_CPL();
-                break;
-            }
-            case 0x30: {
-                op_JR_NC();
-                break;
-            }
-            case 0x31: {
-                op_LD_SP16b();
-                break;
-            }
-            case 0x32: {
-                op_LD_HL_DEC_A();
-                break;
-            }
-            case 0x33: {
-                op_INC_SP();
-                break;
-            }
-            case 0x34: {
-                op_INC_HL_VALUE();
-                break;
-            }
-            case 0x35: {
-                op_DEC_HL_VALUE();
-                break;
-            }
-            case 0x36: {
-                op_LD_HL_VALUE();
-                break;
-            }
-            case 0x37: {
-                op_SCF();
-                break;
-            }
-            case 0x38: {
-                op_JR_C();
-                break;
-            }
-            case 0x39: {
-                op_ADD_HL_SP();
-                break;
-            }
-            case 0x3A: {
-                op_LD_A_HL_DEC();
-                break;
-            }
-            case 0x3B: {
-                op_DEC_SP();
-                break;
-            }
-            case 0x3C: {
-                op_INC_A();
-                break;
-            }
-            case 0x3D: {
-                op_DEC_A();
-                break;
-            }
-            case 0x3E: {
-                op_LD_A();
-                break;
-            }
-            case 0x3F: {
-                op_CCF();
-                break;
-            }
-            case 0x40: {
-                op_LD_B_B();
-                break;
-            }
-            case 0x41: {
-                op_LD_B_C();
-                break;
-            }
-            case 0x42: {
-                op_LD_B_D();
-                break;
-            }
-            case 0x43: {
-                op_LD_B_E();
-                break;
-            }
-            case 0x44: {
-                op_LD_B_H();
-                break;
-            }
-            case 0x45: {
-                op_LD_B_L();
-                break;
-            }
-            case 0x46: {
-                op_LD_B_HL_VALUE();
-                break;
-            }
-            case 0x47: {
-                op_LD_B_A();
-                break;
-            }
-            case 0x48: {
-                op_LD_C_B();
-                break;
-            }
-            case 0x49: {
-                op_LD_C_C();
-                break;
-            }
-            case 0x4A: {
-                op_LD_C_D();
-                break;
-            }
-            case 0x4B: {
-                op_LD_C_E();
-                break;
-            }
-            case 0x4C: {
-                op_LD_C_H();
-                break;
-            }
-            case 0x4D: {
-                op_LD_C_L();
-                break;
-            }
-            case 0x4E: {
-                op_LD_C_HL_VALUE();
-                break;
-            }
-            case 0x4F: {
-                op_LD_C_A();
-                break;
-            }
-            case 0x50: {
-                op_LD_D_B();
-                break;
-            }
-            case 0x51: {
-                op_LD_D_C();
-                break;
-            }
-            case 0x52: {
-                op_LD_D_D();
-                break;
-            }
-            case 0x53: {
-                op_LD_D_E();
-                break;
-            }
-            case 0x54: {
-                op_LD_D_H();
-                break;
-            }
-            case 0x55: {
-                op_LD_D_L();
-                break;
-            }
-            case 0x56: {
-                op_LD_D_HL_VALUE();
-                break;
-            }
-            case 0x57: {
-                op_LD_D_A();
-                break;
-            }
-            case 0x58: {
-                op_LD_E_B();
-                break;
-            }
-            case 0x59: {
-                op_LD_E_C();
-                break;
-            }
-            case 0x5A: {
-                op_LD_E_D();
-                break;
-            }
-            case 0x5B: {
-                op_LD_E_E();
-                break;
-            }
-            case 0x5C: {
-                op_LD_E_H();
-                break;
-            }
-            case 0x5D: {
-                op_LD_E_L();
-                break;
-            }
-            case 0x5E: {
-                op_LD_E_HL_VALUE();
-                break;
-            }
-            case 0x5F: {
-                op_LD_E_A();
-                break;
-            }
-            case 0x60: {
-                op_LD_H_B();
-                break;
-            }
-            case 0x61: {
-                op_LD_H_C();
-                break;
-            }
-            case 0x62: {
-                op_LD_H_D();
-                break;
-            }
-            case 0x63: {
-                op_LD_H_E();
-                break;
-            }
-            case 0x64: {
-                op_LD_H_H();
-                break;
-            }
-            case 0x65: {
-                op_LD_H_L();
-                break;
-            }
-            case 0x66: {
-                op_LD_H_HL_VALUE();
-                break;
-            }
-            case 0x67: {
-                op_LD_H_A();
-                break;
-            }
-            case 0x68: {
-                op_LD_L_B();
-                break;
-            }
-            case 0x69: {
-                op_LD_L_C();
-                break;
-            }
-            case 0x6A: {
-                op_LD_L_D();
-                break;
-            }
-            case 0x6B: {
-                op_LD_L_E();
-                break;
-            }
-            case 0x6C: {
-                op_LD_L_H();
-                break;
-            }
-            case 0x6D: {
-                op_LD_L_L();
-                break;
-            }
-            case 0x6E: {
-                op_LD_L_HL_VALUE();
-                break;
-            }
-            case 0x6F: {
-                op_LD_L_A();
-                break;
-            }
-            case 0x70: {
-                op_LD_HL_VALUE_B();
-                break;
-            }
-            case 0x71: {
-                op_LD_HL_VALUE_C();
-                break;
-            }
-            case 0x72: {
-                op_LD_HL_VALUE_D();
-                break;
-            }
-            case 0x73: {
-                op_LD_HL_VALUE_E();
-                break;
-            }
-            case 0x74: {
-                op_LD_HL_VALUE_H();
-                break;
-            }
-            case 0x75: {
-                op_LD_HL_VALUE_L();
-                break;
-            }
-            case 0x76: {
-                op_HALT();
-                break;
-            }
-            case 0x77: {
-                op_LD_HL_VALUE_A();
-                break;
-            }
-            case 0x78: {
-                op_LD_A_B();
-                break;
-            }
-            case 0x79: {
-                op_LD_A_C();
-                break;
-            }
-            case 0x7A: {
-                op_LD_A_D();
-                break;
-            }
-            case 0x7B: {
-                op_LD_A_E();
-                break;
-            }
-            case 0x7C: {
-                op_LD_A_H();
-                break;
-            }
-            case 0x7D: {
-                op_LD_A_L();
-                break;
-            }
-            case 0x7E: {
-                op_LD_A_HL_VALUE();
-                break;
-            }
-            case 0x7F: {
-                op_LD_A_A();
-                break;
-            }
-            case 0x80: {
-                op_ADD_A_B();
-                break;
-            }
-            case 0x81: {
-                op_ADD_A_C();
-                break;
-            }
-            case 0x82: {
-                op_ADD_A_D();
-                break;
-            }
-            case 0x83: {
-                op_ADD_A_E();
-                break;
-            }
-            case 0x84: {
-                op_ADD_A_H();
-                break;
-            }
-            case 0x85: {
-                op_ADD_A_L();
-                break;
-            }
-            case 0x86: {
-                op_ADD_A_HL_VALUE();
-                break;
-            }
-            case 0x87: {
-                op_ADD_A_A();
-                break;
-            }
-            case 0x88: {
-                op_ADC_A_B();
-                break;
-            }
-            case 0x89: {
-                op_ADC_A_C();
-                break;
-            }
-            case 0x8A: {
-                op_ADC_A_D();
-                break;
-            }
-            case 0x8B: {
-                op_ADC_A_E();
-                break;
-            }
-            case 0x8C: {
-                op_ADC_A_H();
-                break;
-            }
-            case 0x8D: {
-                op_ADC_A_L();
-                break;
-            }
-            case 0x8E: {
-                op_ADC_A_HL_VALUE();
-                break;
-            }
-            case 0x8F: {
-                op_ADC_A_A();
-                break;
-            }
-            case 0x90: {
-                op_SUB_B();
-                break;
-            }
-            case 0x91: {
-                op_SUB_C();
-                break;
-            }
-            case 0x92: {
-                op_SUB_D();
-                break;
-            }
-            case 0x93: {
-                op_SUB_E();
-                break;
-            }
-            case 0x94: {
-                op_SUB_H();
-                break;
-            }
-            case 0x95: {
-                op_SUB_L();
-                break;
-            }
-            case 0x96: {
-                op_SUB_HL_VALUE();
-                break;
-            }
-            case 0x97: {
-                op_SUB_A_A();
-                break;
-            }
-            case 0x98: {
-                op_SBC_A_B();
-                break;
-            }
-            case 0x99: {
-                op_SBC_A_C();
-                break;
-            }
-            case 0x9A: {
-                op_SBC_A_D();
-                break;
-            }
-            case 0x9B: {
-                op_SBC_A_E();
-                break;
-            }
-            case 0x9C: {
-                op_SBC_A_H();
-                break;
-            }
-            case 0x9D: {
-                op_SBC_A_L();
-                break;
-            }
-            case 0x9E: {
-                op_SBC_A_HL_VALUE();
-                break;
-            }
-            case 0x9F: {
-                op_SBC_A_A();
-                break;
-            }
-            case 0xA0: {
-                op_AND_B();
-                break;
-            }
-            case 0xA1: {
-                op_AND_C();
-                break;
-            }
-            case 0xA2: {
-                op_AND_D();
-                break;
-            }
-            case 0xA3: {
-                op_AND_E();
-                break;
-            }
-            case 0xA4: {
-                op_AND_H();
-                break;
-            }
-            case 0xA5: {
-                op_AND_L();
-                break;
-            }
-            case 0xA6: {
-                op_AND_HL_VALUE();
-                break;
-            }
-            case 0xA7: {
-                op_AND_A_A();
-                break;
-            }
-            case 0xA8: {
-                op_XOR_B();
-                break;
-            }
-            case 0xA9: {
-                op_XOR_C();
-                break;
-            }
-            case 0xAA: {
-                op_XOR_D();
-                break;
-            }
-            case 0xAB: {
-                op_XOR_E();
-                break;
-            }
-            case 0xAC: {
-                op_XOR_H();
-                break;
-            }
-            case 0xAD: {
-                op_XOR_L();
-                break;
-            }
-            case 0xAE: {
-                op_XOR_HL_VALUE();
-                break;
-            }
-            case 0xAF: {
-                op_XOR_A_A();
-                break;
-            }
-            case 0xB0: {
-                op_OR_B();
-                break;
-            }
-            case 0xB1: {
-                op_OR_C();
-                break;
-            }
-            case 0xB2: {
-                op_OR_D();
-                break;
-            }
-            case 0xB3: {
-                op_OR_E();
-                break;
-            }
-            case 0xB4: {
-                op_OR_H();
-                break;
-            }
-            case 0xB5: {
-                op_OR_L();
-                break;
-            }
-            case 0xB6: {
-                op_OR_HL_VALUE();
-                break;
-            }
-            case 0xB7: {
-                op_OR_A_A();
-                break;
-            }
-            case 0xB8: {
-                op_CP_B();
-                break;
-            }
-            case 0xB9: {
-                op_CP_C();
-                break;
-            }
-            case 0xBA: {
-                op_CP_D();
-                break;
-            }
-            case 0xBB: {
-                op_CP_E();
-                break;
-            }
-            case 0xBC: {
-                op_CP_H();
-                break;
-            }
-            case 0xBD: {
-                op_CP_L();
-                break;
-            }
-            case 0xBE: {
-                op_CP_HL_VALUE();
-                break;
-            }
-            case 0xBF: {
-                op_CP_A_A();
-                break;
-            }
-            case 0xC0: {
-                op_RET_NZ();
-                break;
-            }
-            case 0xC1: {
-                op_POP_BC();
-                break;
-            }
-            case 0xC2: {
-                op_JP_NZ();
-                break;
-            }
-            case 0xC3: {
-                op_JP();
-                break;
-            }
-            case 0xC4: {
-                op_CALL_NZ();
-                break;
-            }
-            case 0xC5: {
-                op_PUSH_BC();
-                break;
-            }
-            case 0xC6: {
-                op_ADD_A();
-                break;
-            }
-            case 0xC7: {
-                op_RST_00H();
-                break;
-            }
-            case 0xC8: {
-                op_RET_Z();
-                break;
-            }
-            case 0xC9: {
-                op_RET();
-                break;
-            }
-            case 0xCA: {
-                op_JP_Z();
-                break;
-            }
-            case 0xCB: {
-                op_CBCode();
-                break;
-            }
-            case 0xCC: {
-                op_CALL_Z();
-                break;
-            }
-            case 0xCD: {
-                op_CALL();
-                break;
-            }
-            case 0xCE: {
-                op_ADC_A();
-                break;
-            }
-            case 0xCF: {
-                op_RST_08H();
-                break;
-            }
-            case 0xD0: {
-                op_RET_NC();
-                break;
-            }
-            case 0xD1: {
-                op_POP_DE();
-                break;
-            }
-            case 0xD2: {
-                op_JP_NC();
-                break;
-            }
-            case 0xD3: {
-                op_NULL();
-                break;
-            }
-            case 0xD4: {
-                op_CALL_NC();
-                break;
-            }
-            case 0xFA: {
-                op_LDH_A();
-                break;
-            }
-            case 0xEA: {
-                op_LDH_A_TO();
-                break;
-            }
-            case 0xF2: {
-                op_LD_A_C_OFFSET();
-                break;
-            }
-            case 0xE2: {
-                op_LD_C_OFFSET_ADDRESS_A();
-                break;
-            }
-            case 0xE0: {
-                op_LD_OFFSET_ADDRESS_A();
-                break;
-            }
-            case 0xF0: {
-                op_LD_A_OFFSET_ADDRESS();
-                break;
-            }
-            case 0xF9: {
-                op_LD_SP_HL();
-                break;
-            }
-            case 0xF8: {
-                op_LD_HL_SP_OFFSET();
-                break;
-            }
-            case 0xF5: {
-                op_PUSH_AF();
-                break;
-            }
-            case 0xD5: {
-                op_PUSH_DE();
-                break;
-            }
-            case 0xE5: {
-                op_PUSH_HL();
-                break;
-            }
-            case 0xF1: {
-                op_POP_AF();
-                break;
-            }
-            case 0xE1: {
-                op_POP_HL();
-                break;
-            }
-            case 0xD6: {
-                op_SUB_A();
-                break;
-            }
-            case 0xE6: {
-                op_AND_A();
-                break;
-            }
-            case 0xF6: {
-                op_OR_A();
-                break;
-            }
-            case 0xEE: {
-                op_XOR_A();
-                break;
-            }
-            case 0xFE: {
-                op_CP_A();
-                break;
-            }
-            case 0xE8: {
-                op_ADD_SP();
-                break;
-            }
-            case 0xF3: {
-                op_DI();
-                break;
-            }
-            case 0xFB: {
-                op_EI();
-                break;
-            }
-            case 0xDA: {
-                op_JP_C();
-                break;
-            }
-            case 0xE9: {
-                op_JP_HL_VALUE();
-                break;
-            }
-            case 0xDC: {
-                op_CALL_C();
-                break;
-            }
-            case 0xD7: {
-                rst(0x10);
-                clockCycles = 32;
-                break;
-            }
-            case 0xDF: {
-                rst(0x18);
-                clockCycles = 32;
-                break;
-            }
-            case 0xE7: {
-                rst(0x20);
-                clockCycles = 32;
-                break;
-            }
-            case 0xEF: {
-                rst(0x28);
-                clockCycles = 32;
-                break;
-            }
-            case 0xF7: {
-                rst(0x30);
-                clockCycles = 32;
-                break;
-            }
-            case 0xFF: {
-                rst(0x38);
-                clockCycles = 32;
-                break;
-            }
-            case 0xD8: {
-                op_RET_C();
-                break;
-            }
-            case 0xD9: {
-                op_RETI();
-                break;
-            }
-            case 0xDE: {
-                op_SBC_A();
-                break;
-            }
-            default: {
-                throw new IllegalArgumentException("Unknown opcode: " + Integer.toHexString(opcode));
+            if(memory.hasPendingInterrupt()) {
+                halted = false; // wake the CPU up
+            } else {
+                // nothing can happen before the next event, skip straight to it (by steps of 4 cycles, like HALT)
+                long untilEvent = scheduler.getCyclesUntilNextEvent();
+                int skipped = untilEvent == Long.MAX_VALUE ? 4 : (int) ((untilEvent + 3) & ~3L);
+                skippedCycles += skipped;
+                scheduler.advance(skipped);
+                return skipped;
             }
         }
 
+        int opcode = nextByte();
+        clockCycles = executeOP(opcode);
+        scheduler.advance(clockCycles);
+        return clockCycles;
+    }
+
+    private int nextPart() {
+        return (nextByte() & 0xFF | (nextByte() & 0xFF) << 8) & 0xFFFF;
+    }
+
+    private byte nextByte() {
+        byte value = this.memory.read(PC);
+        PC++;
+        PC &= 0xFFFF;
+        return value;
+    }
+
+    public void push16Bit(int val) {
+        SP -= 2;
+        SP &= 0xFFFF;
+        write16Bits(SP, val & 0xFFFF);
+    }
+
+    public int popPart() {
+        int val = (this.memory.read(SP) & 0xFF)
+                | ((this.memory.read(SP + 1) & 0xFF) << 8);
+        SP += 2;
+        SP &= 0xFFFF;
+        return val & 0xFFFF;
+    }
+
+    public void write16Bits(int pos, int val) {
+        this.memory.write(pos, getLower(val));
+        this.memory.write(pos + 1, getUpper(val));
+    }
+
+    public void hardGoto(int index) {
+        PC = index;
+    }
+
+    public void hardReset() {
+        A = 0;
+        F = 0;
+        BC = DE = HL = 0;
+        SP = 0;
+        PC = 0x100;
+        halted = false;
+    }
+
+    private int executeOP(int opcode) {
+        if(disableInterruptsNextInstruction) {
+            disableInterruptsNextInstruction = false;
+            masterInterrupt = false;
+        }
+        if(enableInterruptsNextInstruction) {
+            enableInterruptsNextInstruction = false;
+            masterInterrupt = true;
+        }
+        opcode = opcode & 0xFF;
+        //System.out.println("opcode: "+Integer.toHexString(opcode)+", ("+Integer.toHexString(PC-1)+")");
+        //System.out.println(Integer.toHexString(PC-1));
+        opcodeTable[opcode].execute();
+
         if(masterInterrupt) {
             if(memory.isInterruptOn(Interrupts.V_BLANK)) {
                 memory.resetInterrupt(Interrupts.V_BLANK);
@@ -1130,14 +465,16 @@ public class CPU {
 
     private void handleJoypadInterrupt() {
         masterInterrupt = false;
+        servicedInterrupts++;
         rst(0x60);
-        System.out.println("joypad int");
+        //System.out.println("joypad int");
     }
 
     private void handleTimerInterrupt() {
         masterInterrupt = false;
+        servicedInterrupts++;
         rst(0x50);
-        System.out.println("timer int");
+        //System.out.println("timer int");
     }
 
     private void op_SBC_A() {
@@ -1147,11 +484,13 @@ public class CPU {
 
     private void handleLCDCoincidenceInterrupt() {
         masterInterrupt = false;
+        servicedInterrupts++;
         rst(0x48); // jump to interrupt handler at 0x0048
     }
 
     private void handleVBlankInterrupt() {
         masterInterrupt = false;
+        servicedInterrupts++;
         //System.out.println("v blank int");
         rst(0x40); // jump to interrupt handler at 0x0040
     }
@@ -1165,7 +504,7 @@ public class CPU {
 
     private void op_RET_C() {
         clockCycles = 8;
-        if (C) {
+        if((F & FLAG_C) != 0) {
             clockCycles = 20;
             int address = popPart();
             PC = address;
@@ -1174,7 +513,7 @@ public class CPU {
 
     private void op_CALL_C() {
         int addr = nextPart();
-        if(C) {
+        if((F & FLAG_C) != 0) {
             push16Bit(PC);
             PC = addr;
         }
@@ -1188,7 +527,7 @@ public class CPU {
 
     private void op_JP_C() {
         int address = nextPart();
-        if(C) {
+        if((F & FLAG_C) != 0) {
             clockCycles = 24;
             //push16Bit(PC);
             PC = address;
@@ -1217,9 +556,9 @@ public class CPU {
         int a = SP;
         int b = nextByte() & 0xFF;
         int temp = signedAdd(a, b);
-        N = false;
-        C = temp > 0xFFFF;
-        H = ((a & 0x0FFF) + (b & 0xFFFF)) > 0x0FFF;
+        setFlag(FLAG_N, false);
+        setFlag(FLAG_C, temp > 0xFFFF);
+        setFlag(FLAG_H, ((a & 0x0FFF) + (b & 0xFFFF)) > 0x0FFF);
         SP = (temp & 0xFFFF);
         clockCycles = 16;
     }
@@ -1277,24 +616,14 @@ public class CPU {
     }
 
     public byte getFlags() {
-        int value = 0;
-        if(Z)
-            value |= 1 << 7;
-        if(N)
-            value |= 1 << 5;
-        if(H)
-            value |= 1 << 5;
-        if(C)
-            value |= 1 << 4;
-        return (byte)value;
+        return (byte) F;
     }
 
     private void op_LD_HL_SP_OFFSET() {
-        Z = false;
-        N = false;
         byte val = nextByte();
-        H = (PC & 0x0FFF) + (val & 0xFF) > 0x0FFF;
-        C = (val & 0xFF) + PC > 0xFFFF;
+        F = 0;
+        setFlag(FLAG_H, (PC & 0x0FFF) + (val & 0xFF) > 0x0FFF);
+        setFlag(FLAG_C, (val & 0xFF) + PC > 0xFFFF);
         HL = signedAdd(SP, val & 0xFF) & 0xFFFF; // val is signed here
         clockCycles = 12;
     }
@@ -1338,7 +667,7 @@ public class CPU {
     private void op_CALL_NC() {
         clockCycles = 12;
         int address = nextPart();
-        if (!Z) {
+        if((F & FLAG_Z) == 0) {
             clockCycles = 24;
             push16Bit(PC);
             PC = address;
@@ -1352,7 +681,7 @@ public class CPU {
     private void op_JP_NC() {
         int address = nextPart();
         clockCycles = 12;
-        if (!C) {
+        if((F & FLAG_C) == 0) {
             clockCycles = 16;
             PC = address;
         }
@@ -1365,7 +694,7 @@ public class CPU {
 
     private void op_RET_NC() {
         clockCycles = 8;
-        if (!C) {
+        if((F & FLAG_C) == 0) {
             clockCycles = 20;
             int address = popPart();
             PC = address;
@@ -1377,6 +706,36 @@ public class CPU {
         clockCycles = 32;
     }
 
+    private void op_RST_10H() {
+        rst(0x10);
+        clockCycles = 32;
+    }
+
+    private void op_RST_18H() {
+        rst(0x18);
+        clockCycles = 32;
+    }
+
+    private void op_RST_20H() {
+        rst(0x20);
+        clockCycles = 32;
+    }
+
+    private void op_RST_28H() {
+        rst(0x28);
+        clockCycles = 32;
+    }
+
+    private void op_RST_30H() {
+        rst(0x30);
+        clockCycles = 32;
+    }
+
+    private void op_RST_38H() {
+        rst(0x38);
+        clockCycles = 32;
+    }
+
     private void op_ADC_A() {
         adc(nextByte());
         clockCycles = 8;
@@ -1393,7 +752,7 @@ public class CPU {
     private void op_CALL_Z() {
         clockCycles = 12;
         int address = nextPart();
-        if (Z) {
+        if((F & FLAG_Z) != 0) {
             clockCycles = 24;
             push16Bit(PC);
             PC = address;
@@ -1402,18 +761,18 @@ public class CPU {
 
     private void op_CBCode() {
         int b = nextByte() & 0xFF;
-        if ((b & 0xF) == 0x6 || (b & 0xF) == 0xE) {
+        if ((b & 0x7) == REG_HL_INDIRECT) {
             clockCycles = 16;
         } else {
             clockCycles = 8;
         }
-        executeCBCode(b);
+        cbOpcodeTable[b].execute();
     }
 
     private void op_JP_Z() {
         clockCycles = 12;
         int address = nextPart();
-        if (Z) {
+        if((F & FLAG_Z) != 0) {
             clockCycles = 16;
             PC = address;
         }
@@ -1426,7 +785,7 @@ public class CPU {
 
     private void op_RET_Z() {
         clockCycles = 8;
-        if (Z) {
+        if((F & FLAG_Z) != 0) {
             clockCycles = 20;
             int addr = popPart();
             PC = addr;
@@ -1451,7 +810,7 @@ public class CPU {
     private void op_CALL_NZ() {
         clockCycles = 12;
         int address = nextPart();
-        if (!Z) {
+        if((F & FLAG_Z) == 0) {
             clockCycles = 24;
             push16Bit(PC);
             PC = address;
@@ -1466,7 +825,7 @@ public class CPU {
     private void op_JP_NZ() {
         clockCycles = 12;
         int address = nextPart();
-        if (!Z) {
+        if((F & FLAG_Z) == 0) {
             clockCycles = 16;
             PC = address;
         }
@@ -1479,7 +838,7 @@ public class CPU {
 
     private void op_RET_NZ() {
         clockCycles = 8;
-        if (!Z) {
+        if((F & FLAG_Z) == 0) {
             int addr = popPart();
             PC = addr;
         }
@@ -1852,284 +1211,281 @@ public class CPU {
 
     private void op_HALT() {
         halted = true;
-        interruptFlagsSave = memory.read(BaseMemoryController.ADDR_INTERRUPT_FLAG);
         clockCycles = 4;
     }
 
     private void op_LD_HL_VALUE_L() {
-        this.memory.write(HL, getLower(getRegistryValue("HL")));
+        this.memory.write(HL, getLower(HL));
         clockCycles = 8;
     }
 
     private void op_LD_HL_VALUE_H() {
-        this.memory.write(HL, getUpper(getRegistryValue("HL")));
+        this.memory.write(HL, getUpper(HL));
         clockCycles = 8;
     }
 
     private void op_LD_HL_VALUE_E() {
-        this.memory.write(HL, getLower(getRegistryValue("DE")));
+        this.memory.write(HL, getLower(DE));
         clockCycles = 8;
     }
 
     private void op_LD_HL_VALUE_D() {
-        this.memory.write(HL, getUpper(getRegistryValue("DE")));
+        this.memory.write(HL, getUpper(DE));
         clockCycles = 8;
     }
 
     private void op_LD_HL_VALUE_C() {
-        this.memory.write(HL, getLower(getRegistryValue("BC")));
+        this.memory.write(HL, getLower(BC));
         clockCycles = 8;
     }
 
     private void op_LD_HL_VALUE_B() {
-        this.memory.write(HL, getUpper(getRegistryValue("BC")));
+        this.memory.write(HL, getUpper(BC));
         clockCycles = 8;
     }
 
     private void op_LD_L_A() {
-        setLower("HL", A);
+        HL = withLower(HL, A);
         clockCycles = 4;
     }
 
     private void op_LD_L_HL_VALUE() {
-        setLower("HL", this.memory.read(HL));
+        HL = withLower(HL, this.memory.read(HL));
         clockCycles = 8;
     }
 
     private void op_LD_L_L() {
-        setLower("HL", getLower(getRegistryValue("HL")));
+        HL = withLower(HL, getLower(HL));
         clockCycles = 4;
     }
 
     private void op_LD_L_H() {
-        setLower("HL", getUpper(getRegistryValue("HL")));
+        HL = withLower(HL, getUpper(HL));
         clockCycles = 4;
     }
 
     private void op_LD_L_E() {
-        setLower("HL", getLower(getRegistryValue("DE")));
+        HL = withLower(HL, getLower(DE));
         clockCycles = 4;
     }
 
     private void op_LD_L_D() {
-        setLower("HL", getUpper(getRegistryValue("DE")));
+        HL = withLower(HL, getUpper(DE));
         clockCycles = 4;
     }
 
     private void op_LD_L_C() {
-        setLower("HL", getLower(getRegistryValue("BC")));
+        HL = withLower(HL, getLower(BC));
         clockCycles = 4;
     }
 
     private void op_LD_L_B() {
-        setLower("HL", getUpper(getRegistryValue("BC")));
+        HL = withLower(HL, getUpper(BC));
         clockCycles = 4;
     }
 
     private void op_LD_H_A() {
-        setUpper("HL", A);
+        HL = withUpper(HL, A);
         clockCycles = 4;
     }
 
     private void op_LD_H_HL_VALUE() {
-        setUpper("HL", this.memory.read(HL));
+        HL = withUpper(HL, this.memory.read(HL));
         clockCycles = 8;
     }
 
     private void op_LD_H_L() {
-        setUpper("HL", getLower(getRegistryValue("HL")));
+        HL = withUpper(HL, getLower(HL));
         clockCycles = 4;
     }
 
     private void op_LD_H_H() {
-        setUpper("HL", getUpper(getRegistryValue("HL")));
+        HL = withUpper(HL, getUpper(HL));
         clockCycles = 4;
     }
 
     private void op_LD_H_E() {
-        setUpper("HL", getLower(getRegistryValue("DE")));
+        HL = withUpper(HL, getLower(DE));
         clockCycles = 4;
     }
 
     private void op_LD_H_D() {
-        setUpper("HL", getUpper(getRegistryValue("DE")));
+        HL = withUpper(HL, getUpper(DE));
         clockCycles = 4;
     }
 
     private void op_LD_H_C() {
-        setUpper("HL", getLower(getRegistryValue("BC")));
+        HL = withUpper(HL, getLower(BC));
         clockCycles = 4;
     }
 
     private void op_LD_H_B() {
-        setUpper("HL", getUpper(getRegistryValue("BC")));
+        HL = withUpper(HL, getUpper(BC));
         clockCycles = 4;
     }
 
     private void op_LD_E_A() {
-        setLower("DE", A);
+        DE = withLower(DE, A);
         clockCycles = 4;
     }
 
     private void op_LD_E_HL_VALUE() {
-        setLower("DE", this.memory.read(HL));
+        DE = withLower(DE, this.memory.read(HL));
         clockCycles = 8;
     }
 
     private void op_LD_E_L() {
-        setLower("DE", getLower(getRegistryValue("HL")));
+        DE = withLower(DE, getLower(HL));
         clockCycles = 4;
     }
 
     private void op_LD_E_H() {
-        setLower("DE", getUpper(getRegistryValue("HL")));
+        DE = withLower(DE, getUpper(HL));
         clockCycles = 4;
     }
 
     private void op_LD_E_E() {
-        setLower("DE", getLower(getRegistryValue("DE")));
+        DE = withLower(DE, getLower(DE));
         clockCycles = 4;
     }
 
     private void op_LD_E_D() {
-        setLower("DE", getUpper(getRegistryValue("DE")));
+        DE = withLower(DE, getUpper(DE));
         clockCycles = 4;
     }
 
     private void op_LD_E_C() {
-        setLower("DE", getLower(getRegistryValue("BC")));
+        DE = withLower(DE, getLower(BC));
         clockCycles = 4;
     }
 
     private void op_LD_E_B() {
-        setLower("DE", getUpper(getRegistryValue("BC")));
+        DE = withLower(DE, getUpper(BC));
         clockCycles = 4;
     }
 
     private void op_LD_D_A() {
-        setUpper("DE", A);
+        DE = withUpper(DE, A);
         clockCycles = 4;
     }
 
     private void op_LD_D_HL_VALUE() {
-        setUpper("DE", this.memory.read(HL));
+        DE = withUpper(DE, this.memory.read(HL));
         clockCycles = 8;
     }
 
     private void op_LD_D_L() {
-        setUpper("DE", getLower(getRegistryValue("HL")));
+        DE = withUpper(DE, getLower(HL));
         clockCycles = 4;
     }
 
     private void op_LD_D_H() {
-        setUpper("DE", getUpper(getRegistryValue("HL")));
+        DE = withUpper(DE, getUpper(HL));
         clockCycles = 4;
     }
 
     private void op_LD_D_E() {
-        setUpper("DE", getLower(getRegistryValue("DE")));
+        DE = withUpper(DE, getLower(DE));
         clockCycles = 4;
     }
 
     private void op_LD_D_D() {
-        setUpper("DE", getUpper(getRegistryValue("DE")));
+        DE = withUpper(DE, getUpper(DE));
         clockCycles = 4;
     }
 
     private void op_LD_D_C() {
-        setUpper("DE", getLower(getRegistryValue("BC")));
+        DE = withUpper(DE, getLower(BC));
         clockCycles = 4;
     }
 
     private void op_LD_D_B() {
-        setUpper("DE", getUpper(getRegistryValue("BC")));
+        DE = withUpper(DE, getUpper(BC));
         clockCycles = 4;
     }
 
     private void op_LD_C_A() {
-        setLower("BC", A);
+        BC = withLower(BC, A);
         clockCycles = 4;
     }
 
     private void op_LD_C_HL_VALUE() {
-        setLower("BC", this.memory.read(HL));
+        BC = withLower(BC, this.memory.read(HL));
         clockCycles = 8;
     }
 
     private void op_LD_C_L() {
-        setLower("BC", getLower(getRegistryValue("HL")));
+        BC = withLower(BC, getLower(HL));
         clockCycles = 4;
     }
 
     private void op_LD_C_H() {
-        setLower("BC", getUpper(getRegistryValue("HL")));
+        BC = withLower(BC, getUpper(HL));
         clockCycles = 4;
     }
 
     private void op_LD_C_E() {
-        setLower("BC", getLower(getRegistryValue("DE")));
+        BC = withLower(BC, getLower(DE));
         clockCycles = 4;
     }
 
     private void op_LD_C_D() {
-        setLower("BC", getUpper(getRegistryValue("DE")));
+        BC = withLower(BC, getUpper(DE));
         clockCycles = 4;
     }
 
     private void op_LD_C_C() {
-        setLower("BC", getLower(getRegistryValue("BC")));
+        BC = withLower(BC, getLower(BC));
         clockCycles = 4;
     }
 
     private void op_LD_C_B() {
-        setLower("BC", getUpper(getRegistryValue("BC")));
+        BC = withLower(BC, getUpper(BC));
         clockCycles = 4;
     }
 
     private void op_LD_B_A() {
         clockCycles = 4;
-        setUpper("BC", A);
+        BC = withUpper(BC, A);
     }
 
     private void op_LD_B_HL_VALUE() {
         clockCycles = 8;
-        setUpper("BC", this.memory.read(HL));
+        BC = withUpper(BC, this.memory.read(HL));
     }
 
     private void op_LD_B_L() {
         clockCycles = 4;
-        setUpper("BC", getLower(getRegistryValue("HL")));
+        BC = withUpper(BC, getLower(HL));
     }
 
     private void op_LD_B_H() {
         clockCycles = 4;
-        setUpper("BC", getUpper(getRegistryValue("HL")));
+        BC = withUpper(BC, getUpper(HL));
     }
 
     private void op_LD_B_E() {
         clockCycles = 4;
-        setUpper("BC", getLower(getRegistryValue("DE")));
+        BC = withUpper(BC, getLower(DE));
     }
 
     private void op_LD_B_D() {
         clockCycles = 4;
-        setUpper("BC", getUpper(getRegistryValue("DE")));
+        BC = withUpper(BC, getUpper(DE));
     }
 
     private void op_LD_B_C() {
         clockCycles = 4;
-        setUpper("BC", getLower(getRegistryValue("BC")));
+        BC = withUpper(BC, getLower(BC));
     }
 
     private void op_LD_B_B() {
         clockCycles = 4;
-        setUpper("BC", getUpper(getRegistryValue("BC")));
+        BC = withUpper(BC, getUpper(BC));
     }
 
     private void op_CCF() {
-        C = !C;
-        H = false;
-        N = false;
+        F = (F ^ FLAG_C) & (FLAG_Z | FLAG_C);
         clockCycles = 4;
     }
 
@@ -2144,18 +1500,14 @@ public class CPU {
     }
 
     private byte dec(byte r) {
-        H = (r & 0xF) == 0xF;
         r--;
-        Z = (r&0xFF) == 0;
-        N = true;
+        F = ALUTables.DEC[r & 0xFF] | (F & FLAG_C);
         return r;
     }
 
     private byte inc(byte r) {
-        H = (r & 0xF) == 0xF;
         r++;
-        Z = r == 0;
-        N = false;
+        F = ALUTables.INC[r & 0xFF] | (F & FLAG_C);
         return r;
     }
 
@@ -2179,13 +1531,13 @@ public class CPU {
 
     private void op_ADD_HL_SP() {
         clockCycles = 8;
-        addRegs("HL", "SP");
+        addToHL(SP);
     }
 
     private void op_JR_C() {
         clockCycles = 8;
         byte offset = nextByte();
-        if (C) {
+        if((F & FLAG_C) != 0) {
             clockCycles = 12;
             relativeJump(offset);
           //  PC -= 2; // accounts for the fact that the PC increased twice before running this instruction
@@ -2193,9 +1545,7 @@ public class CPU {
     }
 
     private void op_SCF() {
-        C = true;
-        H = false;
-        N = false;
+        F = (F & FLAG_Z) | FLAG_C;
         clockCycles = 4;
     }
 
@@ -2235,7 +1585,7 @@ public class CPU {
     private void op_JR_NC() {
         clockCycles = 8;
         byte offset = nextByte();
-        if (!C) {
+        if((F & FLAG_C) == 0) {
             clockCycles = 12;
             relativeJump(offset);
             //PC -= 2; // accounts for the fact that the PC increased twice before running this instruction
@@ -2244,23 +1594,22 @@ public class CPU {
 
     private void op_CPL() {
         A = (byte) (~(A & 0xFF));
-        N = true;
-        H = true;
+        F |= FLAG_N | FLAG_H;
         clockCycles = 4;
     }
 
     private void op_LD_L() {
-        setLower("HL", nextByte());
+        HL = withLower(HL, nextByte());
         clockCycles = 8;
     }
 
     private void op_DEC_L() {
-        setLower("HL", dec(getLower(HL)));
+        HL = withLower(HL, dec(getLower(HL)));
         clockCycles = 4;
     }
 
     private void op_INC_L() {
-        setLower("HL", inc(getLower(HL)));
+        HL = withLower(HL, inc(getLower(HL)));
         clockCycles = 4;
     }
 
@@ -2278,13 +1627,13 @@ public class CPU {
 
     private void op_ADD_HL_HL() {
         clockCycles = 8;
-        addRegs("HL", "HL");
+        addToHL(HL);
     }
 
     private void op_JR_Z() {
         clockCycles = 8;
         byte offset = nextByte();
-        if (Z) {
+        if((F & FLAG_Z) != 0) {
             clockCycles = 12;
             relativeJump(offset);
           //  PC -= 2; // accounts for the fact that the PC increased twice before running this instruction
@@ -2292,32 +1641,32 @@ public class CPU {
     }
 
     private void op_DAA() {
-        C = false;
+        setFlag(FLAG_C, false);
         if ((A & 0x0F) > 9) {
             A += 0x06;
         }
         if (((A & 0xF0) >> 4) > 9) {
-            C = true;
+            setFlag(FLAG_C, true);
             A += 0x60;
         }
-        H = false;
-        Z = (A&0xFF) == 0x00;
+        setFlag(FLAG_H, false);
+        setFlag(FLAG_Z, (A&0xFF) == 0x00);
         clockCycles = 4;
     }
 
     private void op_LD_H() {
-        setUpper("HL", nextByte());
+        HL = withUpper(HL, nextByte());
         clockCycles = 8;
     }
 
     private void op_DEC_H() {
         clockCycles = 4;
-        setUpper("HL", dec(getUpper(HL)));
+        HL = withUpper(HL, dec(getUpper(HL)));
     }
 
     private void op_INC_H() {
         clockCycles = 4;
-        setUpper("HL", inc(getUpper(HL)));
+        HL = withUpper(HL, inc(getUpper(HL)));
     }
 
     private void op_INC_HL() {
@@ -2341,7 +1690,7 @@ public class CPU {
     private void op_JR_NZ() {
         clockCycles = 8;
         int offset = nextByte() & 0xFF;
-        if (!Z) {
+        if((F & FLAG_Z) == 0) {
             clockCycles = 12;
       //      PC -= 2; // accounts for the fact that the PC increased twice before running this instruction
             relativeJump(offset);
@@ -2351,21 +1700,21 @@ public class CPU {
     private void op_RRA() {
         A = rr(A);
         clockCycles = 4;
-        Z = false;
+        F &= ~FLAG_Z;
     }
 
     private void op_LD_E() {
-        setLower("DE", nextByte());
+        DE = withLower(DE, nextByte());
         clockCycles = 8;
     }
 
     private void op_DEC_E() {
-        setLower("DE", dec(getLower(DE)));
+        DE = withLower(DE, dec(getLower(DE)));
         clockCycles = 4;
     }
 
     private void op_INC_E() {
-        setLower("DE", inc(getLower(DE)));
+        DE = withLower(DE, inc(getLower(DE)));
         clockCycles = 4;
     }
 
@@ -2382,7 +1731,7 @@ public class CPU {
 
     private void op_ADD_HL_DE() {
         clockCycles = 8;
-        addRegs("HL", "DE");
+        addToHL(DE);
     }
 
     private void op_JR() {
@@ -2394,21 +1743,21 @@ public class CPU {
     private void op_RLA() {
         A = rl(A);
         clockCycles = 4;
-        Z = false;
+        F &= ~FLAG_Z;
     }
 
     private void op_LD_D() {
-        setUpper("DE", nextByte());
+        DE = withUpper(DE, nextByte());
         clockCycles = 8;
     }
 
     private void op_DEC_D() {
-        setUpper("DE", dec(getUpper(DE)));
+        DE = withUpper(DE, dec(getUpper(DE)));
         clockCycles = 4;
     }
 
     private void op_INC_D() {
-        setUpper("DE", inc(getUpper(DE)));
+        DE = withUpper(DE, inc(getUpper(DE)));
         clockCycles = 4;
     }
 
@@ -2435,23 +1784,23 @@ public class CPU {
 
     private void op_RRCA() {
         A = rrc(A);
-        Z = false;
+        F &= ~FLAG_Z;
         clockCycles = 4;
     }
 
     private void op_LD_C() {
-        setLower("BC", nextByte());
+        BC = withLower(BC, nextByte());
         clockCycles = 8;
     }
 
     private void op_DEC_C() {
         clockCycles = 4;
-        setLower("BC", dec(getLower(BC)));
+        BC = withLower(BC, dec(getLower(BC)));
     }
 
     private void op_INC_C() {
         clockCycles = 4;
-        setLower("BC", inc(getLower(BC)));
+        BC = withLower(BC, inc(getLower(BC)));
     }
 
     private void op_DEC_BC() {
@@ -2467,7 +1816,7 @@ public class CPU {
 
     private void op_ADD_HL_BC() {
         clockCycles = 8;
-        addRegs("HL", "BC");
+        addToHL(BC);
     }
 
     private void op_LD_SP8b() {
@@ -2477,22 +1826,22 @@ public class CPU {
 
     private void op_RLCA() {
         A = rlc(A);
-        Z = false;
+        F &= ~FLAG_Z;
         clockCycles = 4;
     }
 
     private void op_LD_B() {
-        setUpper("BC", nextByte());
+        BC = withUpper(BC, nextByte());
         clockCycles = 8;
     }
 
     private void op_INC_B() {
-        setUpper("BC", inc(getUpper(BC)));
+        BC = withUpper(BC, inc(getUpper(BC)));
         clockCycles = 4;
     }
 
     private void op_DEC_B() {
-        setUpper("BC", dec(getUpper(BC)));
+        BC = withUpper(BC, dec(getUpper(BC)));
         clockCycles = 4;
     }
 
@@ -2517,6 +1866,88 @@ public class CPU {
         clockCycles = 4;
     }
 
+    /**
+     * Reads an 8-bit register, the index being one of the REG_* constants (same order as the register field of opcodes)
+     * @param register
+     *          The register index
+     * @return
+     *          The unsigned value of the register
+     */
+    public int getRegister(int register) {
+        switch (register) {
+            case REG_B:
+                return (BC >> 8) & 0xFF;
+            case REG_C:
+                return BC & 0xFF;
+            case REG_D:
+                return (DE >> 8) & 0xFF;
+            case REG_E:
+                return DE & 0xFF;
+            case REG_H:
+                return (HL >> 8) & 0xFF;
+            case REG_L:
+                return HL & 0xFF;
+            case REG_HL_INDIRECT:
+                return memory.read(HL) & 0xFF;
+            case REG_A:
+                return A & 0xFF;
+            default:
+                throw new IllegalArgumentException("Unknown register: "+register);
+        }
+    }
+
+    /**
+     * Writes an 8-bit register, the index being one of the REG_* constants (same order as the register field of opcodes)
+     * @param register
+     *          The register index
+     * @param value
+     *          The new value, only the lowest 8 bits are used
+     */
+    public void setRegister(int register, int value) {
+        byte val = (byte) value;
+        switch (register) {
+            case REG_B:
+                BC = withUpper(BC, val);
+                break;
+            case REG_C:
+                BC = withLower(BC, val);
+                break;
+            case REG_D:
+                DE = withUpper(DE, val);
+                break;
+            case REG_E:
+                DE = withLower(DE, val);
+                break;
+            case REG_H:
+                HL = withUpper(HL, val);
+                break;
+            case REG_L:
+                HL = withLower(HL, val);
+                break;
+            case REG_HL_INDIRECT:
+                memory.write(HL, val);
+                break;
+            case REG_A:
+                A = val;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown register: "+register);
+        }
+    }
+
+    private static int withUpper(int registerPair, byte val) {
+        return (registerPair & 0x00FF) | ((val & 0xFF) << 8);
+    }
+
+    private static int withLower(int registerPair, byte val) {
+        return (registerPair & 0xFF00) | (val & 0xFF);
+    }
+
+    /**
+     * Name-based register access ("A", "BC", "(HL)"...), kept for tests and debugging tools.<br/>
+     * The interpreter itself never goes through these: use {@link #getRegister(int)} and {@link #setRegister(int, int)}
+     * with the REG_* constants instead.
+     */
     public void setLower(String registry, byte val) {
         int registryValue = getRegistryValue(registry);
         registryValue = ((registryValue & 0xFF00) | (val & 0xFF));
@@ -2543,19 +1974,19 @@ public class CPU {
         } else if (registry.equals("SP")) {
             SP = registryValue;
         } else if (registry.equals("B")) {
-            setUpper("BC", (byte) (registryValue & 0xFF));
+            setRegister(REG_B, registryValue);
         } else if (registry.equals("C")) {
-            setLower("BC", (byte) (registryValue & 0xFF));
+            setRegister(REG_C, registryValue);
         } else if (registry.equals("D")) {
-            setUpper("DE", (byte) (registryValue & 0xFF));
+            setRegister(REG_D, registryValue);
         } else if (registry.equals("E")) {
-            setLower("DE", (byte) (registryValue & 0xFF));
+            setRegister(REG_E, registryValue);
         } else if (registry.equals("H")) {
-            setUpper("HL", (byte) (registryValue & 0xFF));
+            setRegister(REG_H, registryValue);
         } else if (registry.equals("L")) {
-            setLower("HL", (byte) (registryValue & 0xFF));
+            setRegister(REG_L, registryValue);
         } else if(registry.equals("(HL)")) {
-            memory.write(HL, (byte) (registryValue & 0xFF));
+            setRegister(REG_HL_INDIRECT, registryValue);
         } else {
             throw new IllegalArgumentException("Unknown register: "+registry);
         }
@@ -2575,19 +2006,19 @@ public class CPU {
         } else if (registry.equals("SP")) {
             return SP;
         } else if(registry.equals("B")) {
-            return getUpper(BC) & 0xFF;
+            return getRegister(REG_B);
         } else if(registry.equals("C")) {
-            return getLower(BC) & 0xFF;
+            return getRegister(REG_C);
         } else if(registry.equals("D")) {
-            return getUpper(DE) & 0xFF;
+            return getRegister(REG_D);
         } else if(registry.equals("E")) {
-            return getLower(DE) & 0xFF;
+            return getRegister(REG_E);
         } else if(registry.equals("H")) {
-            return getUpper(HL) & 0xFF;
+            return getRegister(REG_H);
         } else if(registry.equals("L")) {
-            return getLower(HL) & 0xFF;
+            return getRegister(REG_L);
         } else if(registry.equals("(HL)")) {
-            return memory.read(HL & 0xFFFF) & 0xFF;
+            return getRegister(REG_HL_INDIRECT);
         } else {
             throw new IllegalArgumentException("Unknown register: "+registry);
         }
@@ -2607,174 +2038,199 @@ public class CPU {
     }
 
     public void add(byte b) {
-        int n = (A & 0xFF) + (b & 0xFF);
-        Z = (n & 0xFF) == 0;
-        H = (((A & 0x0F) + (b & 0x0F)) & 0x10) == 0x10;
-        C = n > 0xFF;
-        N = false;
-        A = (byte) (n & 0xFF);
+        int result = ALUTables.ADD[(A & 0xFF) << 8 | (b & 0xFF)];
+        A = (byte) result;
+        F = (result >> 8) & 0xFF;
     }
 
     public void adc(byte b) {
-        int n = (A & 0xFF) + (b & 0xFF);
-        if (C) {
-            n++;
-        }
-        Z = (n & 0xFF) == 0;
-        H = (((A & 0x0F) + (b & 0x0F)) & 0x10) == 0x10;
-        C = n > 0xFF;
-        N = false;
-        A = (byte) (n & 0xFF);
+        int result = ALUTables.ADD[(F & FLAG_C) << 12 | (A & 0xFF) << 8 | (b & 0xFF)];
+        A = (byte) result;
+        F = (result >> 8) & 0xFF;
     }
 
     public void sub(byte b) {
-        cp(b);
-        A -= (b&0xFF);
+        int result = ALUTables.SUB[(A & 0xFF) << 8 | (b & 0xFF)];
+        A = (byte) result;
+        F = (result >> 8) & 0xFF;
     }
 
     public void sbc(byte b) {
-        if(C)
-            b++;
-        H = ((A & 0xF) - (b & 0xF)) < 0;
-        C = ((A & 0xFF) - (b & 0xFF) - 1) < 0;
-        N = true;
-        A -= b & 0xFF;
-        Z = A == 0;
+        int result = ALUTables.SUB[(F & FLAG_C) << 12 | (A & 0xFF) << 8 | (b & 0xFF)];
+        A = (byte) result;
+        F = (result >> 8) & 0xFF;
     }
 
     public void and(byte b) {
-        A &= (b & 0xFF);
-        Z = A == 0;
-        H = true;
-        N = false;
-        C = false;
+        A &= b;
+        F = ALUTables.ZERO[A & 0xFF] | FLAG_H;
     }
 
     public void xor(byte b) {
         A ^= b;
-        Z = A == 0;
-        H = false;
-        N = false;
-        C = false;
+        F = ALUTables.ZERO[A & 0xFF];
     }
 
     public void or(byte b) {
         A |= b;
-        Z = A == 0;
-        H = false;
-        N = false;
-        C = false;
+        F = ALUTables.ZERO[A & 0xFF];
     }
 
     public void cp(byte b) {
-        Z = A == b;
-        H = (A & 0xF) < (b & 0xF);
-        N = true;
-        C = A < b;
+        F = (ALUTables.SUB[(A & 0xFF) << 8 | (b & 0xFF)] >> 8) & 0xFF;
+    }
+
+    /**
+     * Applies one of the CB rotations, shifts or swap
+     * @param operation
+     *          One of the ALUTables.SHIFT_* constants
+     * @param val
+     * @return
+     */
+    private byte shift(int operation, byte val) {
+        int result = ALUTables.SHIFT[operation << 9 | (F & FLAG_C) << 4 | (val & 0xFF)];
+        F = (result >> 8) & 0xFF;
+        return (byte) result;
     }
 
     public byte rl(byte val) {
-        boolean oldcarry = C;
-        C = (val & (1 << 7)) == (1 << 7);
-        H = false;
-        N = false;
-        val <<= 1;
-        if (oldcarry) {
-            val |= 0x1;
-        }
-        Z = val == 0;
-        return val;
+        return shift(ALUTables.SHIFT_RL, val);
     }
 
     public byte rlc(byte val) {
-        C = (val & (1 << 7)) == (1 << 7);
-        H = false;
-        N = false;
-        val <<= 1;
-        if(C)
-            val += 0x1;
-        Z = val == 0;
-        return val;
+        return shift(ALUTables.SHIFT_RLC, val);
     }
 
     public byte rr(byte val) {
-        boolean oldcarry = C;
-        C = (val & 0x1) == 0x1;
-        H = false;
-        N = false;
-        val >>= 1;
-        if (oldcarry) {
-            val |= (1 << 7);
-        }
-        Z = val == 0;
-        return (byte) val;
+        return shift(ALUTables.SHIFT_RR, val);
     }
 
     public byte rrc(byte val) {
-        C = (val & 0x1) == 0x1;
-        H = false;
-        N = false;
-        val >>= 1;
-        if(C)
-            val |= 0x80;
-        Z = val == 0;
-        return (byte) val;
+        return shift(ALUTables.SHIFT_RRC, val);
     }
 
     public byte sla(byte val) {
-        C = (val & (1 << 7)) != 0;
-        val <<= 1;
-        Z = val == 0;
-        H = false;
-        N = false;
-        return val;
+        return shift(ALUTables.SHIFT_SLA, val);
     }
 
     public byte sra(byte val) {
-        C = (val & 0x1) != 0;
-        val = (byte) (((val & (1 << 7)) | (val >> 1)) & 0xFF);
-        Z = val == 0;
-        H = false;
-        N = false;
-        return val;
+        return shift(ALUTables.SHIFT_SRA, val);
     }
 
     public byte swap(byte val) {
-        Z = val == 0;
-        N = false;
-        H = false;
-        C = false;
-        return (byte) ((((val & 0xFF) << 4) | ((val & 0xFF) >> 4)) & 0xFF);
+        return shift(ALUTables.SHIFT_SWAP, val);
     }
 
     public byte srl(byte val) {
-        C = (val & 0x1) != 0;
-        val >>= 1;
-        Z = val == 0;
-        H = false;
-        N = false;
-        return val;
+        return shift(ALUTables.SHIFT_SRL, val);
     }
 
     public void bit(int val, int b) {
-        Z = (val & (1 << b)) != 0;
-        N = false;
-        H = true;
+        F = (F & FLAG_C) | FLAG_H | ALUTables.ZERO[(val >> b) & 0x1];
     }
 
     public void addRegs(String registryA, String registryB) {
         int a = getRegistryValue(registryA) & 0xFFFF;
         int b = getRegistryValue(registryB) & 0xFFFF;
         int temp = a + b;
-        N = false;
-        C = temp > 0xFFFF;
-        H = ((a & 0x0FFF) + (b & 0x0FFF)) > 0x0FFF;
+        setFlag(FLAG_N, false);
+        setFlag(FLAG_C, temp > 0xFFFF);
+        setFlag(FLAG_H, ((a & 0x0FFF) + (b & 0x0FFF)) > 0x0FFF);
         setRegistryValue(registryA, (temp & 0xFFFF));
     }
 
+    private void addToHL(int value) {
+        int a = HL & 0xFFFF;
+        int b = value & 0xFFFF;
+        int temp = a + b;
+        setFlag(FLAG_N, false);
+        setFlag(FLAG_C, temp > 0xFFFF);
+        setFlag(FLAG_H, ((a & 0x0FFF) + (b & 0x0FFF)) > 0x0FFF);
+        HL = temp & 0xFFFF;
+    }
+
     public void relativeJump(int d) {
         //PC += d;
         PC = signedAdd(PC, d) & 0xFFFF;
+        if((d & 0xFF) == POLLING_LOOP_OFFSET) {
+            fastForwardPollingLoop();
+        } else if((d & 0xFF) == SELF_LOOP_OFFSET) {
+            fastForwardSelfLoop();
+        }
+    }
+
+    /**
+     * Detects loops polling the LCD until it reaches a given line or mode, and skips the iterations that would read the
+     * same value. Called right after a jump to the start of such a loop:
+     * <pre>
+     * loop: LDH A,(FF44 or FF41)   12 cycles
+     *       CP n / AND n            8 cycles
+     *       JR cc,loop             12 cycles
+     * </pre>
+     * The registers polled can only change when an event runs, so as long as no event is due, no interrupt is pending
+     * and another iteration would leave A and the flags as they are, the skipped iterations would all do the same.
+     */
+    private void fastForwardPollingLoop() {
+        int start = PC;
+        if(memory.read(start) != (byte) 0xF0)
+            return;
+        int register = memory.read((start+1) & 0xFFFF) & 0xFF;
+        if(register != (GPU.ADDR_STAT & 0xFF) && register != (GPU.ADDR_LY & 0xFF))
+            return;
+        int compare = memory.read((start+2) & 0xFFFF) & 0xFF;
+        if(compare != 0xFE && compare != 0xE6) // CP n, AND n
+            return;
+        int jump = memory.read((start+4) & 0xFFFF) & 0xFF;
+        if(jump != 0x20 && jump != 0x28 && jump != 0x30 && jump != 0x38) // JR NZ/Z/NC/C
+            return;
+
+        // run one iteration on the side: A and the flags can come from somewhere else (an interrupt handler for instance)
+        byte previousA = A;
+        int previousF = F;
+        A = memory.read(0xFF00 | register);
+        byte operand = memory.read((start+3) & 0xFFFF);
+        if(compare == 0xFE) {
+            cp(operand);
+        } else {
+            and(operand);
+        }
+        boolean steady = A == previousA && F == previousF;
+        A = previousA;
+        F = previousF;
+        if(steady) {
+            skipLoopIterations(POLLING_LOOP_CYCLES);
+        }
+    }
+
+    /**
+     * Skips the iterations of a 'JR $' loop until the next event, as nothing but an interrupt can get the CPU out of it
+     */
+    private void fastForwardSelfLoop() {
+        if(memory.read(PC) != 0x18) // only unconditional jumps
+            return;
+        skipLoopIterations(clockCycles);
+    }
+
+    /**
+     * Adds to the current instruction the duration of all the loop iterations that fit before the next event, unless an
+     * interrupt is pending
+     * @param iterationCycles
+     *          Duration of one iteration
+     */
+    private void skipLoopIterations(int iterationCycles) {
+        if(memory.hasPendingInterrupt())
+            return;
+        long untilNextEvent = scheduler.getCyclesUntilNextEvent();
+        if(untilNextEvent == Long.MAX_VALUE) // nothing scheduled, but the host can still raise the joypad interrupt
+            return;
+        // the current jump has not been accounted for yet, and the skipped iterations must end before the next event
+        long untilEvent = untilNextEvent - clockCycles;
+        if(untilEvent <= iterationCycles)
+            return;
+        long iterations = (untilEvent - 1) / iterationCycles;
+        int skipped = (int) (iterations * iterationCycles);
+        clockCycles += skipped;
+        skippedCycles += skipped;
     }
 
     private int signedAdd(int a, int b) {
@@ -2786,432 +2242,38 @@ public class CPU {
         }
     }
 
-    private final String[] cbRegisterList = {"B", "C", "D", "E", "H", "L", "(HL)", "A"};
-
-    private void executeCBCode(int b) {
-        if(b >= 0x40 && b <= 0x7F) { // BIT b,register opcodes
-            int registerIndex = (b-0x40) % 8;
-            int bitIndex = (b-0x40) / 8;
-            String register = cbRegisterList[registerIndex];
-            bit(getRegistryValue(register) & 0xFF, bitIndex);
-            if(register.equals("(HL)"))
-                clockCycles = 16;
-        } else if(b >= 0xC0 && b <= 0xFF) { // SET b,register opcodes
-            int registerIndex = (b-0xC0) % 8;
-            int bitIndex = (b-0xC0) / 8;
-            String register = cbRegisterList[registerIndex];
-            setRegistryValue(register, (getRegistryValue(register)&0xFF) | ((1<<bitIndex) & 0xFF));
-            if(register.equals("(HL)"))
-                clockCycles = 16;
-        } else if(b >= 0x80 && b <= 0xBF) { // RST b,register opcodes
-            int registerIndex = (b-0x80) % 8;
-            int bitIndex = (b-0x80) / 8;
-            String register = cbRegisterList[registerIndex];
-            setRegistryValue(register, (getRegistryValue(register) &0xFF) & (~(1<<bitIndex) & 0xFF));
-            clockCycles = 8;
-            if(register.equals("(HL)"))
-                clockCycles = 16;
-        } else {
-            switch (b) {
-                case 0x37: {
-                    clockCycles = 8;
-                    A = swap(A);
-                    break;
-                }
-
-                case 0x30: {
-                    clockCycles = 8;
-                    setUpper("BC", swap(getUpper(BC)));
-                    break;
-                }
-
-                case 0x31: {
-                    clockCycles = 8;
-                    setLower("BC", swap(getLower(BC)));
-                    break;
-                }
-
-                case 0x32: {
-                    clockCycles = 8;
-                    setUpper("DE", swap(getUpper(DE)));
-                    break;
-                }
-
-                case 0x33: {
-                    clockCycles = 8;
-                    setLower("DE", swap(getLower(DE)));
-                    break;
-                }
-
-                case 0x34: {
-                    clockCycles = 8;
-                    setUpper("HL", swap(getUpper(HL)));
-                    break;
-                }
-
-                case 0x35: {
-                    setLower("HL", swap(getLower(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x36: {
-                    memory.write(HL, swap(memory.read(HL)));
-                    clockCycles = 16;
-                    break;
-                }
-
-                case 0x07: {
-                    A = rlc(A);
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x00: {
-                    setUpper("BC", rlc(getUpper(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x01: {
-                    setLower("BC", rlc(getLower(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x02: {
-                    setUpper("DE", rlc(getUpper(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x03: {
-                    setLower("DE", rlc(getLower(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x04: {
-                    setUpper("HL", rlc(getUpper(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x05: {
-                    setLower("HL", rlc(getLower(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x06: {
-                    memory.write(HL, rlc(memory.read(HL)));
-                    clockCycles = 16;
-                    break;
-                }
-
-                case 0x17: {
-                    A = rl(A);
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x10: {
-                    setUpper("BC", rl(getUpper(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x11: {
-                    setLower("BC", rl(getLower(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x12: {
-                    setUpper("DE", rl(getUpper(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x13: {
-                    setLower("DE", rl(getLower(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x14: {
-                    setUpper("HL", rl(getUpper(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x15: {
-                    setLower("HL", rl(getLower(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x16: {
-                    memory.write(HL, rl(memory.read(HL)));
-                    clockCycles = 16;
-                    break;
-                }
-
-                case 0x0F: {
-                    A = rrc(A);
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x08: {
-                    setUpper("BC", rrc(getUpper(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x09: {
-                    setLower("BC", rrc(getLower(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x0A: {
-                    setUpper("DE", rrc(getUpper(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x0B: {
-                    setLower("DE", rrc(getLower(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x0C: {
-                    setUpper("HL", rrc(getUpper(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x0D: {
-                    setLower("HL", rrc(getLower(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x0E: {
-                    memory.write(HL, rrc(memory.read(HL)));
-                    clockCycles = 16;
-                    break;
-                }
-
-                case 0x1F: {
-                    A = rr(A);
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x18: {
-                    setUpper("BC", rr(getUpper(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x19: {
-                    setLower("BC", rr(getLower(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x1A: {
-                    setUpper("DE", rr(getUpper(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x1B: {
-                    setLower("DE", rr(getLower(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x1C: {
-                    setUpper("HL", rr(getUpper(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x1D: {
-                    setLower("HL", rr(getLower(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x1E: {
-                    memory.write(HL, rr(memory.read(HL)));
-                    clockCycles = 16;
-                    break;
-                }
-
-                case 0x27: {
-                    A = sla(A);
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x20: {
-                    setUpper("BC", sla(getUpper(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x21: {
-                    setLower("BC", sla(getLower(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x22: {
-                    setUpper("DE", sla(getUpper(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x23: {
-                    setLower("DE", sla(getLower(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x24: {
-                    setUpper("HL", sla(getUpper(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x25: {
-                    setLower("HL", sla(getLower(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x26: {
-                    memory.write(HL, sla(memory.read(HL)));
-                    clockCycles = 16;
-                    break;
-                }
-
-                case 0x2F: {
-                    A = sra(A);
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x28: {
-                    setUpper("BC", sra(getUpper(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x29: {
-                    setLower("BC", sra(getLower(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x2A: {
-                    setUpper("DE", sra(getUpper(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x2B: {
-                    setLower("DE", sra(getLower(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x2C: {
-                    setUpper("HL", sra(getUpper(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x2D: {
-                    setLower("HL", sra(getLower(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x2E: {
-                    memory.write(HL, sra(memory.read(HL)));
-                    clockCycles = 16;
-                    break;
-                }
-
-                case 0x3F: {
-                    A = srl(A);
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x38: {
-                    setUpper("BC", srl(getUpper(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x39: {
-                    setLower("BC", srl(getLower(BC)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x3A: {
-                    setUpper("DE", srl(getUpper(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x3B: {
-                    setLower("DE", srl(getLower(DE)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x3C: {
-                    setUpper("HL", srl(getUpper(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x3D: {
-                    setLower("HL", srl(getLower(HL)));
-                    clockCycles = 8;
-                    break;
-                }
-
-                case 0x3E: {
-                    memory.write(HL, srl(memory.read(HL)));
-                    clockCycles = 16;
-                    break;
-                }
+    public boolean isHalted() {
+        return halted;
+    }
 
-                default:
-                    System.out.println("CPU: Unknown CB code: " + Integer.toHexString(b & 0xFF));
-                    break;
-            }
-        }
+    /**
+     * Cycles fast-forwarded while halted or in an idle loop, since this CPU was created
+     * @return
+     */
+    public long getSkippedCycles() {
+        return skippedCycles;
     }
 
-    public boolean isHalted() {
-        return halted;
+    /**
+     * The scheduler driven by this CPU, advanced after each instruction
+     * @return
+     */
+    public EventScheduler getScheduler() {
+        return scheduler;
     }
 
     public boolean isStopped() {
         return stop;
     }
 
+    /**
+     * Number of interrupts the CPU jumped to a handler for, since it was created
+     * @return
+     */
+    public long getServicedInterruptCount() {
+        return servicedInterrupts;
+    }
+
     public void turnOn() {
         stop = false;
         hardReset();
@@ -3255,11 +2317,80 @@ public class CPU {
         memory.write(0xFFFF, (byte)0x00); // IE
     }
 
+    /**
+     * Writes the registers and internal state of this CPU and of its timer. The scheduler is saved separately, after
+     * all the components that schedule events
+     * @param buffer
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.putShort((short) PC);
+        buffer.putShort((short) SP);
+        buffer.putShort((short) BC);
+        buffer.putShort((short) DE);
+        buffer.putShort((short) HL);
+        buffer.put(A);
+        buffer.put((byte) F);
+        int state = 0;
+        if(stop)
+            state |= 1;
+        if(halted)
+            state |= 1 << 1;
+        if(disableInterruptsNextInstruction)
+            state |= 1 << 2;
+        if(enableInterruptsNextInstruction)
+            state |= 1 << 3;
+        if(masterInterrupt)
+            state |= 1 << 4;
+        buffer.put((byte) state);
+        buffer.putInt(clockCycles);
+        buffer.putLong(servicedInterrupts);
+        buffer.putLong(skippedCycles);
+        timer.saveState(buffer);
+    }
+
+    /**
+     * Restores a state written by {@link #saveState(ByteBuffer)}
+     * @param buffer
+     */
+    public void loadState(ByteBuffer buffer) {
+        PC = buffer.getShort() & 0xFFFF;
+        SP = buffer.getShort() & 0xFFFF;
+        BC = buffer.getShort() & 0xFFFF;
+        DE = buffer.getShort() & 0xFFFF;
+        HL = buffer.getShort() & 0xFFFF;
+        A = buffer.get();
+        setFlags(buffer.get());
+        int state = buffer.get();
+        stop = BitUtils.getBit(state, 0);
+        halted = BitUtils.getBit(state, 1);
+        disableInterruptsNextInstruction = BitUtils.getBit(state, 2);
+        enableInterruptsNextInstruction = BitUtils.getBit(state, 3);
+        masterInterrupt = BitUtils.getBit(state, 4);
+        clockCycles = buffer.getInt();
+        servicedInterrupts = buffer.getLong();
+        skippedCycles = buffer.getLong();
+        timer.loadState(buffer);
+    }
+
     public void setFlags(int flags) {
-        Z = BitUtils.getBit(flags, 7);
-        N = BitUtils.getBit(flags, 6);
-        H = BitUtils.getBit(flags, 5);
-        C = BitUtils.getBit(flags, 4);
+        F = flags & 0xF0;
+    }
+
+    /**
+     * Unpacks one of the flags, the CPU itself works on the packed F register
+     * @param flag
+     *          One of the FLAG_* constants
+     * @return
+     */
+    public boolean isFlagSet(int flag) {
+        return (F & flag) != 0;
+    }
+
+    public void setFlag(int flag, boolean value) {
+        if(value)
+            F |= flag;
+        else
+            F &= ~flag;
     }
 
     public boolean areInterruptsDisabled() {
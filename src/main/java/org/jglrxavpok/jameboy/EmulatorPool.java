@@ -0,0 +1,215 @@
+package org.jglrxavpok.jameboy;
+
+import org.jglrxavpok.jameboy.graphics.GPU;
+
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many independent {@link JameBoy} cores on a fixed number of threads, as fast as possible.<br/>
+ * Each core is run by slices of one frame on a work-stealing pool: once a slice is done, the core is queued again
+ * behind the other cores, so all of them progress at the same pace. The number of cores hosted at the same time is
+ * capped, {@link #submit(JameBoy, long)} blocks until a slot is free.
+ */
+public class EmulatorPool {
+
+    private final ForkJoinPool executor;
+    private final Semaphore slots;
+    private final int maxInstances;
+
+    /**
+     * Creates a pool with one thread per available processor
+     * @param maxInstances
+     *          Maximum number of cores run at the same time
+     */
+    public EmulatorPool(int maxInstances) {
+        this(Runtime.getRuntime().availableProcessors(), maxInstances);
+    }
+
+    /**
+     * @param threadCount
+     *          Number of threads running the cores
+     * @param maxInstances
+     *          Maximum number of cores run at the same time
+     */
+    public EmulatorPool(int threadCount, int maxInstances) {
+        // async mode: slices submitted from a worker are run in FIFO order, so a core cannot starve the others
+        executor = new ForkJoinPool(threadCount, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        slots = new Semaphore(maxInstances);
+        this.maxInstances = maxInstances;
+    }
+
+    /**
+     * Starts running a core, waiting for a free slot if the pool is full
+     * @param core
+     *          The core to run, must already have a ROM loaded. Must not be used by another thread while running
+     * @param frames
+     *          Number of frames to emulate, negative to run until {@link Instance#stop()} is called or the CPU is
+     *          stopped
+     * @return
+     *          The running instance
+     * @throws InterruptedException
+     */
+    public Instance submit(JameBoy core, long frames) throws InterruptedException {
+        slots.acquire();
+        return start(core, frames);
+    }
+
+    /**
+     * Starts running a core if the pool is not full
+     * @return
+     *          The running instance, null if the pool is full
+     * @see #submit(JameBoy, long)
+     */
+    public Instance trySubmit(JameBoy core, long frames) {
+        if(!slots.tryAcquire())
+            return null;
+        return start(core, frames);
+    }
+
+    private Instance start(JameBoy core, long frames) {
+        Instance instance = new Instance(core, frames);
+        executor.execute(instance::runSlice);
+        return instance;
+    }
+
+    /**
+     * Number of cores currently running
+     * @return
+     */
+    public int getRunningCount() {
+        return maxInstances - slots.availablePermits();
+    }
+
+    public int getThreadCount() {
+        return executor.getParallelism();
+    }
+
+    /**
+     * Waits for all the cores to finish, then stops the threads of the pool
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        slots.acquire(maxInstances);
+        slots.release(maxInstances);
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A core running in the pool, with its throughput
+     */
+    public class Instance {
+
+        private final JameBoy core;
+        private final long maxFrames;
+        private final long startFrame;
+        private final long startTime;
+        private final CompletableFuture<Instance> completion;
+        private volatile boolean stopRequested;
+        private volatile long emulatedFrames;
+        private volatile long emulatedCycles;
+        private volatile long runningNanos;
+        private volatile long endTime;
+
+        private Instance(JameBoy core, long maxFrames) {
+            this.core = core;
+            this.maxFrames = maxFrames;
+            startFrame = core.getGPU().getFrameCount();
+            startTime = System.nanoTime();
+            completion = new CompletableFuture<>();
+        }
+
+        private void runSlice() {
+            boolean done;
+            try {
+                long start = System.nanoTime();
+                // when the LCD is off, a frame worth of cycles is run instead
+                StopCondition result = core.runUntil(GPU.CYCLES_PER_FRAME, EnumSet.of(StopCondition.FRAME));
+                runningNanos += System.nanoTime() - start;
+                emulatedCycles += core.getLastRunCycles();
+                emulatedFrames = core.getGPU().getFrameCount() - startFrame;
+                done = stopRequested || result == StopCondition.STOPPED || (maxFrames >= 0 && emulatedFrames >= maxFrames);
+            } catch (Throwable t) {
+                finish();
+                completion.completeExceptionally(t);
+                return;
+            }
+            if(done) {
+                finish();
+                completion.complete(this);
+            } else {
+                executor.execute(this::runSlice);
+            }
+        }
+
+        private void finish() {
+            endTime = System.nanoTime();
+            slots.release();
+        }
+
+        /**
+         * Stops the core after its current slice
+         */
+        public void stop() {
+            stopRequested = true;
+        }
+
+        public boolean isDone() {
+            return completion.isDone();
+        }
+
+        /**
+         * Completed with this instance once the core is done, or exceptionally if the emulation failed
+         * @return
+         */
+        public CompletableFuture<Instance> getCompletion() {
+            return completion;
+        }
+
+        public JameBoy getCore() {
+            return core;
+        }
+
+        public long getEmulatedFrames() {
+            return emulatedFrames;
+        }
+
+        public long getEmulatedCycles() {
+            return emulatedCycles;
+        }
+
+        /**
+         * Time spent running this core, excluding the time waiting for a thread
+         * @return
+         */
+        public long getRunningNanos() {
+            return runningNanos;
+        }
+
+        /**
+         * Emulated frames per second of running time: how fast the core runs on one thread
+         * @return
+         */
+        public double getFramesPerRunningSecond() {
+            long nanos = runningNanos;
+            if(nanos == 0)
+                return 0.0;
+            return emulatedFrames * 1_000_000_000.0 / nanos;
+        }
+
+        /**
+         * Emulated frames per second since the core was submitted: how fast the core progresses in the pool
+         * @return
+         */
+        public double getFramesPerSecond() {
+            long end = isDone() ? endTime : System.nanoTime();
+            if(end == startTime)
+                return 0.0;
+            return emulatedFrames * 1_000_000_000.0 / (end - startTime);
+        }
+    }
+}
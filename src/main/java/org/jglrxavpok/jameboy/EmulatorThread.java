@@ -1,41 +1,38 @@
 package org.jglrxavpok.jameboy;
 
+import org.jglrxavpok.jameboy.audio.JavaSoundOutput;
 import org.jglrxavpok.jameboy.debug.DebuggerFrame;
 import org.jglrxavpok.jameboy.debug.MemoryViewFrame;
 import org.jglrxavpok.jameboy.graphics.old.Screen;
 import org.jglrxavpok.jameboy.input.Keyboard;
-import org.jglrxavpok.jameboy.io.IOHandler;
 
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferStrategy;
+import java.util.concurrent.locks.LockSupport;
 
 public class EmulatorThread extends Thread {
     //This value would probably be stored elsewhere.
     final double GAME_HERTZ = 60;
     //Calculate how many ns each frame should take for our target game hertz.
-    final double TIME_BETWEEN_UPDATES = 1000000000 / GAME_HERTZ;
-    //At the very most we will update the game this many times before a new render.
-    //If you're worried about visual hitches more than perfect timing, set this to 1.
-    final int MAX_UPDATES_BEFORE_RENDER = 5;
-    //If we are able to get as high as this FPS, don't render again.
-    final double TARGET_FPS = 20;
-    final double TARGET_TIME_BETWEEN_RENDERS = 1000000000 / TARGET_FPS;
-    //We will need the last update time.
-    double lastUpdateTime = System.nanoTime();
-    //Store the last time we rendered.
-    double lastRenderTime = System.nanoTime();
+    final long TIME_BETWEEN_UPDATES = (long) (1000000000 / GAME_HERTZ);
+    //Beyond this delay, the emulation gives up catching up with the clock instead of running updates back to back.
+    final long MAX_LATENESS = 100_000_000L;
+    //Sound waiting to be played before the next update is run, when the emulation is paced by the audio device.
+    final int AUDIO_LATENCY_MILLIS = 40;
+    //When the next update is due, when the emulation is paced by the clock.
+    long nextUpdateTime = System.nanoTime();
     //Simple way of finding FPS.
-    int lastSecondTime = (int) (lastUpdateTime / 1000000000);
+    long lastSecondTime = nextUpdateTime / 1000000000;
     boolean paused = false;
     private boolean alive = true;
     private int frame;
     private int fps;
-    private Screen screen;
+    private Screen[] screens;
     private Font defaultFont;
 
     public EmulatorThread() {
-        screen = JameBoyApp.screen;
+        screens = JameBoyApp.screens;
         defaultFont = new Font(null, 1, 64);
     }
 
@@ -48,67 +45,80 @@ public class EmulatorThread extends Thread {
     }
 
     private void loop() {
-        double now = System.nanoTime();
-        int updateCount = 0;
-
-        if (!paused) {
-            //Do as many game updates as we need to, potentially playing catchup.
-            while (now - lastUpdateTime > TIME_BETWEEN_UPDATES && updateCount < MAX_UPDATES_BEFORE_RENDER) {
-                update();
-                lastUpdateTime += TIME_BETWEEN_UPDATES;
-                updateCount++;
-            }
-
-            //If for some reason an update takes forever, we don't want to do an insane number of catchups.
-            //If you were doing some sort of game that needed to keep EXACT time, you would get rid of this.
-            if (now - lastUpdateTime > TIME_BETWEEN_UPDATES) {
-                lastUpdateTime = now - TIME_BETWEEN_UPDATES;
-            }
+        if (paused) {
+            waitForClock();
+            return;
+        }
+        boolean emulated = update();
 
-            //Render. To do so, we need to calculate interpolation for a smooth render.
-            float interpolation = Math.min(1.0f, (float) ((now - lastUpdateTime) / TIME_BETWEEN_UPDATES));
-            BufferStrategy bs = JameBoyApp.mainFrame.getBufferStrategy();
-            if (bs == null) {
-                JameBoyApp.mainFrame.createBufferStrategy(2);
-                return;
-            }
-            render(bs.getDrawGraphics(), interpolation);
-            bs.show();
-            lastRenderTime = now;
-            //Update the frames we got.
-            int thisSecond = (int) (lastUpdateTime / 1000000000);
-            frame++;
-            if (thisSecond > lastSecondTime) {
-                fps = frame;
-                if (JameBoyApp.emulator.getCore().getCurrentROM() != null)
-                    JameBoyApp.mainFrame.setTitle("JameBoy - " + JameBoyApp.emulator.getCore().getCurrentROM().getHeader().getTitle() + " - " + fps + " fps");
-                else
-                    JameBoyApp.mainFrame.setTitle("JameBoy - " + fps + " fps");
-                frame = 0;
-                lastSecondTime = thisSecond;
-            }
+        BufferStrategy bs = JameBoyApp.mainFrame.getBufferStrategy();
+        if (bs == null) {
+            JameBoyApp.mainFrame.createBufferStrategy(2);
+            return;
+        }
+        render(bs.getDrawGraphics());
+        bs.show();
+        //Update the frames we got.
+        long thisSecond = System.nanoTime() / 1000000000;
+        frame++;
+        if (thisSecond > lastSecondTime) {
+            JameBoyApp.emulator.getCore().flushSaveRAM();
+            fps = frame;
+            if (JameBoyApp.emulator.getCore().getCurrentROM() != null)
+                JameBoyApp.mainFrame.setTitle("JameBoy - " + JameBoyApp.emulator.getCore().getCurrentROM().getHeader().getTitle() + " - " + fps + " fps");
+            else
+                JameBoyApp.mainFrame.setTitle("JameBoy - " + fps + " fps");
+            frame = 0;
+            lastSecondTime = thisSecond;
+        }
 
-            if (!JameBoyApp.mainFrame.isVisible())
-                alive = false;
+        if (!JameBoyApp.mainFrame.isVisible())
+            alive = false;
 
-            //Yield until it has been at least the target time between renders. This saves the CPU from hogging.
-            while (now - lastRenderTime < TARGET_TIME_BETWEEN_RENDERS && now - lastUpdateTime < TIME_BETWEEN_UPDATES) {
-                Thread.yield();
+        // the sound device plays at its own pace: following it avoids both gaps and a growing delay in the sound
+        JavaSoundOutput audioOutput = JameBoyApp.emulator.getAudioOutput();
+        if (emulated && audioOutput != null) {
+            waitForAudio(audioOutput);
+        } else {
+            waitForClock();
+        }
+    }
 
-                //This stops the app from consuming all your CPU. It makes this slightly less accurate, but is worth it.
-                //You can remove this line and it will still work (better), your CPU just climbs on certain OSes.
-                //FYI on some OS's this can cause pretty bad stuttering. Scroll down and have a look at different peoples' solutions to this.
-              /*  try {
-                    Thread.sleep(1);
-                } catch (Exception e) {
-                }*/
+    /**
+     * Sleeps until the sound device has played enough of the buffered sound, so that only
+     * {@link #AUDIO_LATENCY_MILLIS} remain. Gives up after {@link #MAX_LATENESS}, if the device stalls
+     */
+    private void waitForAudio(JavaSoundOutput audioOutput) {
+        int target = audioOutput.getSampleRate() * AUDIO_LATENCY_MILLIS / 1000;
+        long giveUpTime = System.nanoTime() + MAX_LATENESS;
+        int excess;
+        while ((excess = audioOutput.getBufferedSamples() - target) > 0 && System.nanoTime() - giveUpTime < 0) {
+            LockSupport.parkNanos(excess * 1_000_000_000L / audioOutput.getSampleRate());
+        }
+        nextUpdateTime = System.nanoTime();
+    }
 
-                now = System.nanoTime();
-            }
+    /**
+     * Sleeps until the next update is due, {@link #GAME_HERTZ} times per second
+     */
+    private void waitForClock() {
+        nextUpdateTime += TIME_BETWEEN_UPDATES;
+        long now = System.nanoTime();
+        if (now - nextUpdateTime > MAX_LATENESS) {
+            nextUpdateTime = now;
+        }
+        while (nextUpdateTime - now > 0) {
+            LockSupport.parkNanos(nextUpdateTime - now);
+            now = System.nanoTime();
         }
     }
 
-    public void update() {
+    /**
+     * Runs one frame worth of emulation, or one step of the rewind or of the debugger
+     * @return
+     *          Whether the emulation went forward in real time, producing sound
+     */
+    public boolean update() {
        /* while (Mouse.next()) {
             int type = Mouse.getEventType();
             if (type == Mouse.RELEASED) {
@@ -119,34 +129,36 @@ public class EmulatorThread extends Thread {
                 }
             }
         }*/
-        IOHandler handler = JameBoyApp.emulator.getCore().getIOHandler();
-        if(handler != null) {
-            handler.setLeftPressed(Keyboard.isKeyDown(KeyEvent.VK_LEFT));
-            handler.setUpPressed(Keyboard.isKeyDown(KeyEvent.VK_UP));
-            handler.setRightPressed(Keyboard.isKeyDown(KeyEvent.VK_RIGHT));
-            handler.setDownPressed(Keyboard.isKeyDown(KeyEvent.VK_DOWN));
-            handler.setBPressed(Keyboard.isKeyDown(KeyEvent.VK_A));
-            handler.setAPressed(Keyboard.isKeyDown(KeyEvent.VK_S));
-            handler.setStartPressed(Keyboard.isKeyDown(KeyEvent.VK_ENTER));
-            handler.setSelectPressed(Keyboard.isKeyDown(KeyEvent.VK_BACK_SPACE));
-        }
-
+        // the joypad itself is polled by the core once per frame, see KeyboardJoypad
+        JameBoyApp.emulator.runPendingActions();
+        boolean emulated = false;
         if (JameBoyApp.emulator.hasRomLoaded()) {
             if(!JameBoyApp.emulator.getCore().isPaused()) {
-                int count = (int) (4194304 / GAME_HERTZ);
-                JameBoyApp.emulator.doCycles(count);
+                if(Keyboard.isKeyDown(KeyEvent.VK_R)) {
+                    // step back in time while the key is held
+                    JameBoyApp.emulator.rewind();
+                } else {
+                    int count = (int) (4194304 / GAME_HERTZ);
+                    JameBoyApp.emulator.doCycles(count);
+                    JameBoyApp.emulator.getRewindBuffer().onFrame(JameBoyApp.emulator.getCore());
+                    emulated = true;
+                }
             } else if(JameBoyApp.emulator.getCore().shouldStep()) {
                 JameBoyApp.emulator.doCycles(1);
                 JameBoyApp.emulator.getCore().stepDone();
             }
         }
 
-        DebuggerFrame.getInstance().onUpdate();
-        MemoryViewFrame.getInstance().onUpdate();
+        // only track memory writes while someone is looking at them, the memory view polls them on its own
+        JameBoyApp.emulator.getCore().setMemoryDebugging(MemoryViewFrame.isOpen());
+        DebuggerFrame.updateIfOpen();
+        return emulated;
     }
 
-    public void render(Graphics g, float interpolation) {
+    public void render(Graphics g) {
         if (JameBoyApp.emulator.hasRomLoaded()) {
+            // last complete frame, the GPU keeps drawing in another buffer
+            Screen screen = screens[JameBoyApp.emulator.getCore().getGPU().getFrameExchange().acquireIndex()];
             g.drawImage(screen.image, JameBoyApp.mainFrame.getInsets().left, JameBoyApp.mainFrame.getInsets().top,
                     JameBoyApp.mainFrame.getContentPane().getWidth(), JameBoyApp.mainFrame.getContentPane().getHeight(), null);
         } else {
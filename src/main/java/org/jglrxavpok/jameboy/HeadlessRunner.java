@@ -0,0 +1,195 @@
+package org.jglrxavpok.jameboy;
+
+import org.jglrxavpok.jameboy.cpu.Z80Timer;
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.graphics.VideoRecorder;
+import org.jglrxavpok.jameboy.input.InputMovie;
+import org.jglrxavpok.jameboy.memory.GameROM;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.EnumSet;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a {@link JameBoy} core without touching AWT or Swing, either as fast as the host allows or at a fixed multiple
+ * of the original clock speed. Meant for automated test runs on machines without any display.
+ */
+public class HeadlessRunner {
+
+    /**
+     * Speed multiplier meaning 'as fast as possible'
+     */
+    public static final double UNCAPPED = 0.0;
+
+    private final JameBoy core;
+    private final double speed;
+    private volatile boolean running;
+    private long emulatedFrames;
+    private long emulatedCycles;
+    private double framesPerSecond;
+    private VideoRecorder recorder;
+
+    /**
+     * @param core
+     *          The core to run, must already have a ROM loaded
+     * @param speed
+     *          Multiple of {@link Z80Timer#CLOCK_SPEED} to run at, or {@link #UNCAPPED}
+     */
+    public HeadlessRunner(JameBoy core, double speed) {
+        this.core = core;
+        this.speed = speed;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.err.println("Usage: HeadlessRunner <rom> [--speed <multiplier, 0 for uncapped>] [--frames <count>] [--save <battery save file>] [--frame-skip <frames skipped after each rendered frame, -1 for all>] [--record <video file>] [--replay <input movie>]");
+            System.exit(1);
+        }
+        double speed = UNCAPPED;
+        long frames = -1;
+        File saveFile = null;
+        int frameSkip = 0;
+        File videoFile = null;
+        File movieFile = null;
+        for (int i = 1; i < args.length - 1; i++) {
+            if(args[i].equals("--speed")) {
+                speed = Double.parseDouble(args[++i]);
+            } else if(args[i].equals("--frames")) {
+                frames = Long.parseLong(args[++i]);
+            } else if(args[i].equals("--save")) {
+                saveFile = new File(args[++i]);
+            } else if(args[i].equals("--frame-skip")) {
+                frameSkip = Integer.parseInt(args[++i]);
+            } else if(args[i].equals("--record")) {
+                videoFile = new File(args[++i]);
+            } else if(args[i].equals("--replay")) {
+                movieFile = new File(args[++i]);
+            }
+        }
+
+        JameBoy core = new JameBoy(false);
+        core.loadROM(GameROM.map(new File(args[0]), saveFile));
+        if(movieFile != null) {
+            InputMovie movie = InputMovie.read(movieFile);
+            if(movie.getROMChecksum() != core.getCurrentROM().getHeader().getGlobalChecksum())
+                System.err.println("The input movie was recorded on another ROM");
+            movie.startReplay(core);
+            if(frames < 0) {
+                // until the last input has been seen by the game
+                frames = movie.getLastChangeFrame() + 1;
+            }
+        }
+        HeadlessRunner runner = new HeadlessRunner(core, speed);
+        if(videoFile != null) {
+            if(frameSkip != 0)
+                System.err.println("Recording a video, ignoring --frame-skip");
+            frameSkip = 0;
+            runner.setRecorder(new VideoRecorder(videoFile, core.getGPU().getShades()));
+        }
+        core.getGPU().setFrameSkip(frameSkip);
+        try {
+            runner.run(frames);
+        } finally {
+            if(runner.getRecorder() != null)
+                runner.getRecorder().close();
+        }
+        System.out.println("Emulated "+runner.getEmulatedFrames()+" frames ("+runner.getEmulatedCycles()+" cycles)");
+    }
+
+    /**
+     * Runs the core on the calling thread until {@link #stop()} is called, the CPU is stopped, or the given amount of
+     * frames has been emulated
+     * @param maxFrames
+     *          Amount of frames to emulate, negative to run forever
+     */
+    public void run(long maxFrames) {
+        running = true;
+        GPU gpu = core.getGPU();
+        long startFrame = gpu.getFrameCount();
+        long startTime = System.nanoTime();
+        long reportTime = startTime;
+        long reportFrame = startFrame;
+        double nanosPerCycle = speed > UNCAPPED ? 1_000_000_000.0 / (Z80Timer.CLOCK_SPEED * speed) : 0.0;
+        long cycles = 0;
+        while (running) {
+            // run by slices of one frame. When the LCD is off, a frame worth of cycles is run instead
+            StopCondition result = core.runUntil(GPU.CYCLES_PER_FRAME, EnumSet.of(StopCondition.FRAME));
+            if(result == StopCondition.STOPPED) {
+                running = false;
+            } else if(result == StopCondition.FRAME && recorder != null) {
+                // the frame is complete from the start of the V-Blank
+                try {
+                    recorder.record(gpu.getPixels());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            cycles += core.getLastRunCycles();
+            emulatedCycles = cycles;
+            emulatedFrames = gpu.getFrameCount() - startFrame;
+
+            long now = System.nanoTime();
+            if(nanosPerCycle > 0) {
+                long deadline = startTime + (long) (cycles * nanosPerCycle);
+                if(deadline > now) {
+                    LockSupport.parkNanos(deadline - now);
+                    now = System.nanoTime();
+                }
+            }
+
+            if(now - reportTime >= 1_000_000_000L) {
+                framesPerSecond = (gpu.getFrameCount() - reportFrame) * 1_000_000_000.0 / (now - reportTime);
+                System.out.printf("[HeadlessRunner] %.1f emulated frames per second%n", framesPerSecond);
+                reportFrame = gpu.getFrameCount();
+                reportTime = now;
+            }
+
+            if(maxFrames >= 0 && emulatedFrames >= maxFrames) {
+                running = false;
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public long getEmulatedFrames() {
+        return emulatedFrames;
+    }
+
+    public long getEmulatedCycles() {
+        return emulatedCycles;
+    }
+
+    /**
+     * Emulated frames per second, as measured during the last second of emulation
+     * @return
+     */
+    public double getFramesPerSecond() {
+        return framesPerSecond;
+    }
+
+    /**
+     * Records each emulated frame. The recorder is not closed by the runner
+     * @param recorder
+     *          The recorder, or null to stop recording
+     */
+    public void setRecorder(VideoRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public VideoRecorder getRecorder() {
+        return recorder;
+    }
+
+    public JameBoy getCore() {
+        return core;
+    }
+}
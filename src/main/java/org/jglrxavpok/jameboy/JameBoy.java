@@ -1,40 +1,123 @@
 package org.jglrxavpok.jameboy;
 
+import org.jglrxavpok.jameboy.audio.AudioOutput;
+import org.jglrxavpok.jameboy.audio.SoundController;
 import org.jglrxavpok.jameboy.debug.DebugMemoryController;
-import org.jglrxavpok.jameboy.debug.MemoryViewFrame;
 import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.input.JoypadInput;
 import org.jglrxavpok.jameboy.io.IOHandler;
 import org.jglrxavpok.jameboy.memory.GameROM;
 import org.jglrxavpok.jameboy.memory.MemoryController;
 import org.jglrxavpok.jameboy.memory.MemoryControllers;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
 /**
  * The emulator core, handles the interactions between the components
  */
 public class JameBoy {
 
+    /**
+     * "JBSS", at the start of every save state
+     */
+    public static final int SAVE_STATE_MAGIC = 0x4A425353;
+    /**
+     * Version of the save state format, to increase each time the saved data changes
+     */
+    public static final int SAVE_STATE_VERSION = 4;
+
     private final CPU cpu;
+    private boolean debugMemory;
     private IOHandler ioHandler;
     private GameROM currentROM;
     private MemoryController memoryController;
     private GPU gpu;
+    private final SoundController sound;
     private boolean paused;
     private boolean shouldStep;
+    private final boolean[] breakpoints;
+    private long lastRunCycles;
+    private JoypadInput joypadInput;
+    private final int joypadEvent;
+    /**
+     * Number of times the joypad was polled, see {@link #getJoypadFrame()}
+     */
+    private long joypadFrame;
+    /**
+     * Reused by {@link #saveState()}, grown when a state does not fit
+     */
+    private ByteBuffer stateBuffer = ByteBuffer.allocate(128*1024);
 
     public JameBoy() {
+        this(false);
+    }
+
+    /**
+     * @param debugMemory
+     *          Wrap the memory controller in a {@link DebugMemoryController} when a ROM is loaded, see
+     *          {@link #setMemoryDebugging(boolean)}
+     */
+    public JameBoy(boolean debugMemory) {
+        this.debugMemory = debugMemory;
         cpu = new CPU();
         gpu = new GPU();
+        gpu.setScheduler(cpu.getScheduler());
+        sound = new SoundController();
+        sound.setScheduler(cpu.getScheduler());
+        // not tied to the frames of the GPU, which stop while the LCD is off
+        joypadEvent = cpu.getScheduler().register(this::onJoypadEvent);
+        cpu.getScheduler().schedule(joypadEvent, GPU.CYCLES_PER_FRAME);
+        breakpoints = new boolean[0x10000];
     }
 
     public void loadROM(GameROM rom) {
-        memoryController = new DebugMemoryController(MemoryControllers.create(rom));
+        memoryController = MemoryControllers.create(rom);
+        if(debugMemory)
+            memoryController = new DebugMemoryController(memoryController);
+        linkMemoryController();
+        boot();
+        currentROM = rom;
+    }
+
+    private void linkMemoryController() {
         cpu.setMemory(memoryController);
         memoryController.setGPU(gpu);
+        memoryController.setSoundController(sound);
         ioHandler = memoryController.getIOHandler();
         gpu.linkToMemory(memoryController);
-        boot();
-        currentROM = rom;
-        MemoryViewFrame.getInstance().resetTable();
+    }
+
+    /**
+     * Enables or disables the tracking of memory writes for the debugging tools. When enabled, the memory controller
+     * is wrapped in a {@link DebugMemoryController}; when disabled, there is no wrapper at all.<br/>
+     * Must be called from the thread running the emulation, or while it is paused
+     * @param enabled
+     */
+    public void setMemoryDebugging(boolean enabled) {
+        if(enabled == debugMemory)
+            return;
+        debugMemory = enabled;
+        if(memoryController == null)
+            return;
+        if(enabled) {
+            memoryController = new DebugMemoryController(memoryController);
+        } else {
+            memoryController = ((DebugMemoryController) memoryController).getDelegate();
+        }
+        linkMemoryController();
+    }
+
+    /**
+     * @return
+     *          The wrapper tracking memory writes, null if memory debugging is disabled or no ROM is loaded
+     */
+    public DebugMemoryController getDebugMemoryController() {
+        if(memoryController instanceof DebugMemoryController)
+            return (DebugMemoryController) memoryController;
+        return null;
     }
 
     public void boot() {
@@ -54,9 +137,194 @@ public class JameBoy {
     }
 
     public int cycle() {
-        int cycles = cpu.doCycle();
-        gpu.step(cycles);
-        return cycles;
+        return cpu.doCycle();
+    }
+
+    /**
+     * Gives the joypad state from the given source now, then every {@link GPU#CYCLES_PER_FRAME} cycles.<br/>
+     * Must be called from the thread running the emulation, or while it is paused
+     * @param joypadInput
+     *          The source, or null to set the buttons directly on the {@link IOHandler}
+     */
+    public void setJoypadInput(JoypadInput joypadInput) {
+        this.joypadInput = joypadInput;
+        pollJoypad();
+    }
+
+    public JoypadInput getJoypadInput() {
+        return joypadInput;
+    }
+
+    /**
+     * Number of times the joypad input was polled since the creation of this core, given to
+     * {@link JoypadInput#getButtons(long)}. Keeps counting while the LCD is off
+     * @return
+     */
+    public long getJoypadFrame() {
+        return joypadFrame;
+    }
+
+    private void onJoypadEvent(long cycle) {
+        cpu.getScheduler().schedule(joypadEvent, cycle + GPU.CYCLES_PER_FRAME);
+        joypadFrame++;
+        pollJoypad();
+    }
+
+    private void pollJoypad() {
+        if(joypadInput != null && ioHandler != null) {
+            ioHandler.setButtons(joypadInput.getButtons(joypadFrame));
+        }
+    }
+
+    /**
+     * Runs the emulation until the cycle budget is spent or one of the given conditions is met. The number of cycles
+     * actually run is available through {@link #getLastRunCycles()}
+     * @param cycleBudget
+     *          Maximum amount of clock cycles to run. Always applies, the last instruction can go slightly over it
+     * @param conditions
+     *          Events that stop the emulation early: {@link StopCondition#FRAME}, {@link StopCondition#BREAKPOINT}
+     *          and/or {@link StopCondition#INTERRUPT}
+     * @return
+     *          The reason the emulation stopped. {@link StopCondition#STOPPED} is always checked
+     */
+    public StopCondition runUntil(long cycleBudget, EnumSet<StopCondition> conditions) {
+        boolean stopOnFrame = conditions.contains(StopCondition.FRAME);
+        boolean stopOnBreakpoint = conditions.contains(StopCondition.BREAKPOINT);
+        boolean stopOnInterrupt = conditions.contains(StopCondition.INTERRUPT);
+        long startFrame = gpu.getFrameCount();
+        long startInterrupts = cpu.getServicedInterruptCount();
+        long spent = 0;
+        StopCondition result;
+        while(true) {
+            int cycles = cpu.doCycle();
+            if(cycles == 0) {
+                result = StopCondition.STOPPED;
+                break;
+            }
+            spent += cycles;
+
+            if(stopOnFrame && gpu.getFrameCount() != startFrame) {
+                result = StopCondition.FRAME;
+                break;
+            }
+            if(stopOnInterrupt && cpu.getServicedInterruptCount() != startInterrupts) {
+                result = StopCondition.INTERRUPT;
+                break;
+            }
+            if(stopOnBreakpoint && breakpoints[cpu.PC]) {
+                result = StopCondition.BREAKPOINT;
+                break;
+            }
+            if(spent >= cycleBudget) {
+                result = StopCondition.CYCLE_BUDGET;
+                break;
+            }
+        }
+        lastRunCycles = spent;
+        return result;
+    }
+
+    /**
+     * Runs until the next frame is fully drawn, or the CPU is stopped
+     * @return
+     */
+    public StopCondition runFrame() {
+        return runUntil(Long.MAX_VALUE, EnumSet.of(StopCondition.FRAME));
+    }
+
+    /**
+     * Number of clock cycles run by the last call to {@link #runUntil(long, EnumSet)}
+     * @return
+     */
+    public long getLastRunCycles() {
+        return lastRunCycles;
+    }
+
+    /**
+     * Forces the battery-backed RAM of the cartridge to be written to its save file, if any
+     */
+    public void flushSaveRAM() {
+        if(memoryController != null) {
+            memoryController.flushSaveRAM();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the whole machine (CPU, timer, memory, memory bank controller, GPU and APU), that can be
+     * restored with {@link #loadState(byte[])} on this core or on any other core running the same ROM
+     * @return
+     *          The save state
+     */
+    public byte[] saveState() {
+        while(true) {
+            stateBuffer.clear();
+            try {
+                saveState(stateBuffer);
+                return Arrays.copyOf(stateBuffer.array(), stateBuffer.position());
+            } catch (BufferOverflowException e) {
+                stateBuffer = ByteBuffer.allocate(stateBuffer.capacity()*2);
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the whole machine at the position of the given buffer
+     * @param buffer
+     * @throws BufferOverflowException
+     *          If the state does not fit in the remaining space of the buffer
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.putInt(SAVE_STATE_MAGIC);
+        buffer.putInt(SAVE_STATE_VERSION);
+        cpu.saveState(buffer);
+        memoryController.saveState(buffer);
+        gpu.saveState(buffer);
+        sound.saveState(buffer);
+        buffer.putLong(joypadFrame);
+        // last, so the events scheduled while loading the components are replaced by the saved ones
+        cpu.getScheduler().saveState(buffer);
+    }
+
+    public void loadState(byte[] state) {
+        loadState(ByteBuffer.wrap(state));
+    }
+
+    /**
+     * Restores a snapshot written by {@link #saveState(ByteBuffer)}, read from the position of the given buffer. The
+     * same ROM must be loaded
+     * @param buffer
+     * @throws IllegalArgumentException
+     *          If the buffer does not contain a save state, or one of another version
+     */
+    public void loadState(ByteBuffer buffer) {
+        int magic = buffer.getInt();
+        if(magic != SAVE_STATE_MAGIC)
+            throw new IllegalArgumentException("Not a save state");
+        int version = buffer.getInt();
+        if(version != SAVE_STATE_VERSION)
+            throw new IllegalArgumentException("Unsupported save state version: "+version+", expected "+SAVE_STATE_VERSION);
+        cpu.loadState(buffer);
+        memoryController.loadState(buffer);
+        gpu.loadState(buffer);
+        sound.loadState(buffer);
+        joypadFrame = buffer.getLong();
+        cpu.getScheduler().loadState(buffer);
+    }
+
+    public void addBreakpoint(int address) {
+        breakpoints[address & 0xFFFF] = true;
+    }
+
+    public void removeBreakpoint(int address) {
+        breakpoints[address & 0xFFFF] = false;
+    }
+
+    public void clearBreakpoints() {
+        Arrays.fill(breakpoints, false);
+    }
+
+    public boolean hasBreakpoint(int address) {
+        return breakpoints[address & 0xFFFF];
     }
 
     public IOHandler getIOHandler() {
@@ -67,6 +335,19 @@ public class JameBoy {
         return gpu;
     }
 
+    public SoundController getSoundController() {
+        return sound;
+    }
+
+    /**
+     * Sets where the sound goes
+     * @param output
+     *          The output, or null to not synthesize any sound
+     */
+    public void setAudioOutput(AudioOutput output) {
+        sound.setOutput(output);
+    }
+
     public boolean isPaused() {
         return paused;
     }
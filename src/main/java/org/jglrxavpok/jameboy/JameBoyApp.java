@@ -1,30 +1,68 @@
 package org.jglrxavpok.jameboy;
 
+import org.jglrxavpok.jameboy.audio.JavaSoundOutput;
 import org.jglrxavpok.jameboy.debug.DebuggerFrame;
 import org.jglrxavpok.jameboy.debug.MemoryViewFrame;
+import org.jglrxavpok.jameboy.graphics.FrameExchange;
 import org.jglrxavpok.jameboy.graphics.old.Screen;
+import org.jglrxavpok.jameboy.input.InputMovie;
 import org.jglrxavpok.jameboy.input.Keyboard;
+import org.jglrxavpok.jameboy.input.KeyboardJoypad;
 import org.jglrxavpok.jameboy.input.Mouse;
 import org.jglrxavpok.jameboy.memory.GameROM;
-import org.jglrxavpok.jameboy.utils.IOUtils;
 
+import javax.sound.sampled.LineUnavailableException;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
-import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 public class JameBoyApp {
 
+    /**
+     * Memory budget of the rewind history. A save state changes by about 6KB per frame when the whole screen scrolls,
+     * this keeps more than a minute of history in that case
+     */
+    public static final int REWIND_BUDGET_MB = 24;
     public static JameBoyApp emulator;
     public static JFrame mainFrame;
     public static int scale;
-    public static Screen screen;
+    /**
+     * One screen per buffer of the frame exchange of the GPU
+     */
+    public static Screen[] screens;
     private static EmulatorThread emulatorThread;
     private static JFileChooser chooser;
     private final JameBoy core;
+    private final RewindBuffer rewindBuffer;
+    private final KeyboardJoypad keyboardJoypad;
+    /**
+     * Movie being recorded, null if none
+     */
+    private InputMovie recordedMovie;
+    /**
+     * Actions on the core requested by the UI, run by the emulation thread between two updates
+     */
+    private final Queue<Runnable> pendingActions = new ConcurrentLinkedQueue<>();
+    /**
+     * Null if the system has no usable sound device
+     */
+    private JavaSoundOutput audioOutput;
 
     public JameBoyApp() {
         core = new JameBoy();
+        rewindBuffer = new RewindBuffer(1, REWIND_BUDGET_MB);
+        keyboardJoypad = new KeyboardJoypad();
+        core.setJoypadInput(keyboardJoypad);
+        try {
+            audioOutput = new JavaSoundOutput();
+            core.setAudioOutput(audioOutput);
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            System.err.println("[JameBoyApp] No sound: "+e.getMessage());
+        }
     }
 
     public static void main(String[] args) {
@@ -42,8 +80,8 @@ public class JameBoyApp {
         mainFrame = new JFrame();
         scale = 6;
         mainFrame.setSize(160 * scale, 144 * scale);
-        screen = new Screen(160, 144);
-        emulator.getCore().getGPU().setBuffer(screen.pixels);
+        screens = new Screen[] { new Screen(160, 144), new Screen(160, 144), new Screen(160, 144) };
+        emulator.getCore().getGPU().setFrameExchange(new FrameExchange(screens[0].pixels, screens[1].pixels, screens[2].pixels));
         mainFrame.setLocationRelativeTo(null);
         Mouse.init(mainFrame);
         Keyboard.init(mainFrame);
@@ -56,10 +94,11 @@ public class JameBoyApp {
             File f = chooser.getSelectedFile();
             if (f != null) {
                 try {
-                    FileInputStream in = new FileInputStream(f);
-                    byte[] rawRom = IOUtils.read(in);
-                    GameROM rom = new GameROM(ByteBuffer.wrap(rawRom));
+                    GameROM rom = GameROM.map(f, GameROM.getDefaultSaveFile(f));
                     emulator.core.loadROM(rom);
+                    emulator.rewindBuffer.clear();
+                    if(MemoryViewFrame.isOpen())
+                        MemoryViewFrame.getInstance().resetTable();
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -68,6 +107,34 @@ public class JameBoyApp {
         fileMenu.add(open);
         bar.add(fileMenu);
 
+        Menu movieMenu = new Menu("Input movie");
+        MenuItem record = new MenuItem("Record");
+        record.addActionListener(e -> emulator.startInputRecording());
+        movieMenu.add(record);
+        MenuItem stop = new MenuItem("Stop and save");
+        stop.addActionListener(e -> emulator.stopInputMovie(movie -> SwingUtilities.invokeLater(() -> {
+            if(movie != null && chooser.showSaveDialog(null) == JFileChooser.APPROVE_OPTION) {
+                try {
+                    movie.write(chooser.getSelectedFile());
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        })));
+        movieMenu.add(stop);
+        MenuItem replay = new MenuItem("Replay");
+        replay.addActionListener(e -> {
+            if(emulator.hasRomLoaded() && chooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
+                try {
+                    emulator.replay(InputMovie.read(chooser.getSelectedFile()));
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+        movieMenu.add(replay);
+        bar.add(movieMenu);
+
         Menu debuggingMenu = new Menu("Debugging");
         MenuItem debugger = new MenuItem("Debugger");
         debugger.addActionListener(e -> {
@@ -79,6 +146,8 @@ public class JameBoyApp {
         MenuItem memoryView = new MenuItem("Memory view");
         memoryView.addActionListener(e -> {
             MemoryViewFrame.getInstance().setVisible(true);
+            if(emulator.hasRomLoaded())
+                MemoryViewFrame.getInstance().resetTable();
         });
         debuggingMenu.add(debugger);
         debuggingMenu.add(memoryView);
@@ -95,12 +164,81 @@ public class JameBoyApp {
 
     public void doCycles(int count) {
         if(hasRomLoaded()) {
-            for (int i = 0; i < count;) {
-                i += core.cycle();
+            core.runUntil(count, EnumSet.noneOf(StopCondition.class));
+        }
+    }
+
+    /**
+     * Runs the actions queued by the UI. Called by the emulation thread between two updates, so the actions never see
+     * the core in the middle of an instruction
+     */
+    public void runPendingActions() {
+        Runnable action;
+        while((action = pendingActions.poll()) != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Starts recording the keyboard inputs from the state the core is in before its next update
+     */
+    public void startInputRecording() {
+        pendingActions.add(() -> {
+            if(hasRomLoaded()) {
+                recordedMovie = InputMovie.startRecording(core, keyboardJoypad);
             }
+        });
+    }
+
+    /**
+     * Replays a movie from its start state before the next update, the keyboard is ignored until
+     * {@link #stopInputMovie(Consumer)}
+     * @param movie
+     */
+    public void replay(InputMovie movie) {
+        pendingActions.add(() -> {
+            if(movie.getROMChecksum() != core.getCurrentROM().getHeader().getGlobalChecksum())
+                System.err.println("The input movie was recorded on another ROM");
+            recordedMovie = null;
+            movie.startReplay(core);
+            rewindBuffer.clear();
+        });
+    }
+
+    /**
+     * Stops recording or replaying before the next update, and gives the control back to the keyboard
+     * @param onStopped
+     *          Called on the emulation thread once stopped, with the movie that was being recorded, null if none
+     */
+    public void stopInputMovie(Consumer<InputMovie> onStopped) {
+        pendingActions.add(() -> {
+            InputMovie movie = recordedMovie;
+            recordedMovie = null;
+            core.setJoypadInput(keyboardJoypad);
+            onStopped.accept(movie);
+        });
+    }
+
+    /**
+     * Goes back one frame in the history, if any. Disabled while recording an input movie, it only goes forward
+     */
+    public void rewind() {
+        if(hasRomLoaded() && recordedMovie == null) {
+            rewindBuffer.rewind(core);
         }
     }
 
+    public RewindBuffer getRewindBuffer() {
+        return rewindBuffer;
+    }
+
+    /**
+     * @return
+     *          The sound device, null if there is none
+     */
+    public JavaSoundOutput getAudioOutput() {
+        return audioOutput;
+    }
 
     public JameBoy getCore() {
         return core;
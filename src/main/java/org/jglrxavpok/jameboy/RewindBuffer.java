@@ -0,0 +1,144 @@
+package org.jglrxavpok.jameboy;
+
+import org.jglrxavpok.jameboy.utils.DeltaEncoding;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Keeps the recent history of a {@link JameBoy} core, to step back in time.<br/>
+ * A save state is taken every few frames. Only the last one is kept in full, the older ones are stored as the
+ * difference with the snapshot that follows them: the two states are XORed (most of the memory does not change
+ * between two frames, so the result is mostly zeros) and the runs of zeros are run-length encoded, see
+ * {@link DeltaEncoding}.<br/>
+ * The oldest snapshots are dropped when the history goes over the memory budget.
+ */
+public class RewindBuffer {
+
+    private final int framesPerSnapshot;
+    private final long budget;
+    /**
+     * Differences between each snapshot and the next one, from the oldest to the newest
+     */
+    private final ArrayDeque<byte[]> deltas;
+    /**
+     * Last snapshot, in full
+     */
+    private byte[] latest;
+    private byte[] current;
+    private byte[] encodeBuffer;
+    private long usedBytes;
+    private int framesSinceSnapshot;
+    /**
+     * Whether the core is in the state of {@link #latest}, in which case rewinding goes straight to the previous
+     * snapshot
+     */
+    private boolean atLatest;
+
+    /**
+     * @param framesPerSnapshot
+     *          Number of frames between two snapshots, also the number of frames each call to
+     *          {@link #rewind(JameBoy)} goes back
+     * @param budgetMB
+     *          Maximum memory used by the history, in megabytes
+     */
+    public RewindBuffer(int framesPerSnapshot, int budgetMB) {
+        if(framesPerSnapshot <= 0)
+            throw new IllegalArgumentException("Invalid number of frames per snapshot: "+framesPerSnapshot);
+        this.framesPerSnapshot = framesPerSnapshot;
+        this.budget = budgetMB * 1024L * 1024L;
+        deltas = new ArrayDeque<>();
+    }
+
+    /**
+     * To call after each frame, takes a snapshot every {@link #framesPerSnapshot} frames
+     * @param core
+     */
+    public void onFrame(JameBoy core) {
+        framesSinceSnapshot++;
+        atLatest = false;
+        if(framesSinceSnapshot >= framesPerSnapshot) {
+            framesSinceSnapshot = 0;
+            snapshot(core);
+        }
+    }
+
+    /**
+     * Saves the state of the core at the end of the history
+     * @param core
+     */
+    public void snapshot(JameBoy core) {
+        if(latest == null) {
+            latest = core.saveState();
+            current = new byte[latest.length];
+            encodeBuffer = new byte[DeltaEncoding.getMaxEncodedLength(latest.length)];
+            usedBytes = latest.length;
+        } else {
+            core.saveState(ByteBuffer.wrap(current));
+            int length = DeltaEncoding.encode(current, latest, encodeBuffer, 0);
+            byte[] delta = Arrays.copyOf(encodeBuffer, length);
+            deltas.addLast(delta);
+            usedBytes += delta.length;
+
+            byte[] previous = latest;
+            latest = current;
+            current = previous;
+        }
+        atLatest = true;
+        while(usedBytes > budget && !deltas.isEmpty()) {
+            usedBytes -= deltas.removeFirst().length;
+        }
+    }
+
+    /**
+     * Moves the core back to the previous snapshot in the history. The first call after running goes back to the last
+     * snapshot taken
+     * @param core
+     * @return
+     *          false if there is no older snapshot to go back to, the core is left untouched
+     */
+    public boolean rewind(JameBoy core) {
+        if(latest == null)
+            return false;
+        if(atLatest) {
+            if(deltas.isEmpty())
+                return false;
+            byte[] delta = deltas.removeLast();
+            usedBytes -= delta.length;
+            DeltaEncoding.apply(delta, 0, delta.length, latest);
+        }
+        core.loadState(latest);
+        atLatest = true;
+        framesSinceSnapshot = 0;
+        return true;
+    }
+
+    public void clear() {
+        deltas.clear();
+        latest = null;
+        current = null;
+        encodeBuffer = null;
+        usedBytes = 0;
+        framesSinceSnapshot = 0;
+        atLatest = false;
+    }
+
+    /**
+     * Number of snapshots the core can go back to
+     * @return
+     */
+    public int getSnapshotCount() {
+        if(latest == null)
+            return 0;
+        return deltas.size() + 1;
+    }
+
+    /**
+     * Memory used by the snapshots, in bytes
+     * @return
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,27 @@
+package org.jglrxavpok.jameboy;
+
+/**
+ * Reasons for {@link JameBoy#runUntil(long, java.util.EnumSet)} to return
+ */
+public enum StopCondition {
+    /**
+     * The given amount of clock cycles has been run
+     */
+    CYCLE_BUDGET,
+    /**
+     * A frame has been fully drawn (the LCD entered VBlank)
+     */
+    FRAME,
+    /**
+     * The program counter reached a breakpoint
+     */
+    BREAKPOINT,
+    /**
+     * The CPU jumped to an interrupt handler
+     */
+    INTERRUPT,
+    /**
+     * The CPU executed STOP, and won't run anymore
+     */
+    STOPPED
+}
@@ -0,0 +1,23 @@
+package org.jglrxavpok.jameboy.audio;
+
+/**
+ * Receives the samples mixed by the {@link SoundController}
+ */
+public interface AudioOutput {
+
+    /**
+     * Number of stereo samples per second expected by this output
+     * @return
+     */
+    int getSampleRate();
+
+    /**
+     * Called on the emulation thread with a batch of samples. Must not block
+     * @param samples
+     *          16-bit signed samples, left and right interleaved
+     * @param offset
+     * @param length
+     *          Number of values to read from 'samples', twice the number of stereo samples
+     */
+    void write(short[] samples, int offset, int length);
+}
@@ -0,0 +1,75 @@
+package org.jglrxavpok.jameboy.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer of samples between exactly one producer thread (the emulation) and one consumer thread (the
+ * audio device).<br/>
+ * Each side only writes its own position and reads the other one: the producer publishes the samples it copied by
+ * moving the write position forward with an ordered store, and the consumer frees space the same way with the read
+ * position. Neither side ever waits: the producer drops what does not fit, the consumer gets what is available.
+ */
+public class AudioRingBuffer {
+
+    private final short[] buffer;
+    private final int mask;
+    private final AtomicLong writePosition = new AtomicLong();
+    private final AtomicLong readPosition = new AtomicLong();
+
+    /**
+     * @param capacity
+     *          Minimum number of values the buffer can hold, rounded up to a power of two
+     */
+    public AudioRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        buffer = new short[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Copies as many values as fit in the buffer. Only to be called by the producer
+     * @return
+     *          The number of values copied
+     */
+    public int write(short[] source, int offset, int length) {
+        long write = writePosition.get();
+        long read = readPosition.get();
+        int count = Math.min(length, buffer.length - (int) (write - read));
+        int start = (int) write & mask;
+        int firstPart = Math.min(count, buffer.length - start);
+        System.arraycopy(source, offset, buffer, start, firstPart);
+        System.arraycopy(source, offset + firstPart, buffer, 0, count - firstPart);
+        writePosition.lazySet(write + count);
+        return count;
+    }
+
+    /**
+     * Copies as many values as available. Only to be called by the consumer
+     * @return
+     *          The number of values copied
+     */
+    public int read(short[] destination, int offset, int length) {
+        long read = readPosition.get();
+        long write = writePosition.get();
+        int count = Math.min(length, (int) (write - read));
+        int start = (int) read & mask;
+        int firstPart = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, destination, offset, firstPart);
+        System.arraycopy(buffer, 0, destination, offset + firstPart, count - firstPart);
+        readPosition.lazySet(read + count);
+        return count;
+    }
+
+    /**
+     * Number of values waiting to be read. The other side can change it at any time: for the producer, there is at
+     * least as much free space as this tells, and for the consumer, at least as many values to read
+     * @return
+     */
+    public int size() {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+}
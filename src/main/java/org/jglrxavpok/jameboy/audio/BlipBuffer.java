@@ -0,0 +1,180 @@
+package org.jglrxavpok.jameboy.audio;
+
+import java.util.Arrays;
+
+/**
+ * Band-limited synthesis of one side of the sound.<br/>
+ * Instead of being sampled, the channels report each change of their output, at the clock cycle it happens, with
+ * {@link #addDelta(int, int)}. Each change is spread over a few samples as a band-limited step (an integrated windowed
+ * sinc, precomputed for {@link #PHASE_COUNT} positions between two samples), so the square waves do not alias.
+ * The samples only hold the differences: they are integrated when read, once per batch. The cost thus depends on the
+ * number of changes, not on the sample rate or on the frequency of the channels.
+ */
+public class BlipBuffer {
+
+    private static final int PHASE_BITS = 5;
+    private static final int PHASE_COUNT = 1 << PHASE_BITS;
+    /**
+     * Samples over which each step is spread, the output is delayed by half of it
+     */
+    private static final int KERNEL_WIDTH = 16;
+    private static final int KERNEL_BITS = 15;
+    /**
+     * Bits of the fractional part of the sample positions
+     */
+    private static final int TIME_BITS = 32;
+    /**
+     * Scale from the amplitudes given to {@link #addDelta(int, int)} to 16-bit samples
+     */
+    private static final int SAMPLE_SHIFT = 6;
+    /**
+     * The integrator loses 1/2^HIGH_PASS_SHIFT of its value each sample, removing the DC offset
+     */
+    private static final int HIGH_PASS_SHIFT = 9;
+    /**
+     * Band-limited steps, as differences between consecutive samples, indexed by phase
+     */
+    private static final short[][] KERNEL = createKernel();
+
+    private final int[] buffer;
+    private final int capacity;
+    /**
+     * Samples per clock cycle, with {@link #TIME_BITS} fractional bits
+     */
+    private final long factor;
+    /**
+     * Position of the start of the batch, in samples with {@link #TIME_BITS} fractional bits
+     */
+    private long offset;
+    private int integrator;
+
+    /**
+     * @param clockRate
+     *          Clock cycles per second
+     * @param sampleRate
+     *          Samples per second
+     * @param maxCycles
+     *          Longest batch, between two calls to {@link #endFrame(int)}
+     */
+    public BlipBuffer(long clockRate, int sampleRate, int maxCycles) {
+        factor = (long) Math.ceil((double) sampleRate * (1L << TIME_BITS) / clockRate);
+        int maxSamples = (int) ((maxCycles * factor) >>> TIME_BITS) + 2;
+        capacity = maxSamples;
+        buffer = new int[maxSamples + KERNEL_WIDTH];
+    }
+
+    private static short[][] createKernel() {
+        int half = KERNEL_WIDTH / 2;
+        int subSteps = 16;
+        double cutoff = 0.9; // of the Nyquist frequency
+        // integral of the windowed sinc, from -half-1 to half, with PHASE_COUNT points per sample
+        double[] step = new double[(KERNEL_WIDTH + 1) * PHASE_COUNT + 1];
+        double sum = 0;
+        for (int i = 1; i < step.length; i++) {
+            for (int j = 0; j < subSteps; j++) {
+                double x = -half - 1 + (i - 1 + (j + 0.5) / subSteps) / PHASE_COUNT;
+                if(x > -half && x < half) {
+                    double window = 0.42 + 0.5 * Math.cos(Math.PI * x / half) + 0.08 * Math.cos(2 * Math.PI * x / half);
+                    double sinc = x == 0 ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+                    sum += cutoff * sinc * window;
+                }
+            }
+            step[i] = sum;
+        }
+
+        short[][] kernel = new short[PHASE_COUNT][KERNEL_WIDTH];
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            int total = 0;
+            int largest = 0;
+            for (int i = 0; i < KERNEL_WIDTH; i++) {
+                // step between sample i-1 and sample i, for a change 'phase' after the start of sample 0
+                double start = step[Math.max(0, i * PHASE_COUNT - phase)];
+                double end = step[(i + 1) * PHASE_COUNT - phase];
+                kernel[phase][i] = (short) Math.round((end - start) / sum * (1 << KERNEL_BITS));
+                total += kernel[phase][i];
+                if(Math.abs(kernel[phase][i]) > Math.abs(kernel[phase][largest]))
+                    largest = i;
+            }
+            // each step must add up to exactly the delta, or the rounding errors would accumulate
+            kernel[phase][largest] += (1 << KERNEL_BITS) - total;
+        }
+        return kernel;
+    }
+
+    /**
+     * Adds a change of amplitude
+     * @param time
+     *          Clock cycles since the start of the batch
+     * @param delta
+     *          Change of amplitude, the full range of the 16-bit samples being about +/-512
+     */
+    public void addDelta(int time, int delta) {
+        long position = offset + time * factor;
+        int index = (int) (position >>> TIME_BITS);
+        short[] step = KERNEL[(int) (position >>> (TIME_BITS - PHASE_BITS)) & (PHASE_COUNT - 1)];
+        for (int i = 0; i < KERNEL_WIDTH; i++) {
+            buffer[index + i] += step[i] * delta;
+        }
+    }
+
+    /**
+     * Ends the batch, making its samples available
+     * @param cycles
+     *          Length of the batch in clock cycles
+     */
+    public void endFrame(int cycles) {
+        offset += cycles * factor;
+    }
+
+    /**
+     * Number of samples that can be read. The changes of the next batches still affect the following ones
+     * @return
+     */
+    public int getAvailableSamples() {
+        return (int) (offset >>> TIME_BITS);
+    }
+
+    /**
+     * Most samples a batch can make available
+     * @return
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Integrates and removes the given amount of samples
+     * @param destination
+     * @param destinationOffset
+     * @param count
+     *          At most {@link #getAvailableSamples()}
+     * @param stride
+     *          Distance between two samples in the destination, 2 to interleave the sides
+     */
+    public void readSamples(short[] destination, int destinationOffset, int count, int stride) {
+        int sum = integrator;
+        for (int i = 0; i < count; i++) {
+            int sample = sum >> (KERNEL_BITS - SAMPLE_SHIFT);
+            if(sample != (short) sample) // clamps
+                sample = sample < 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+            destination[destinationOffset + i * stride] = (short) sample;
+            sum += buffer[i];
+            sum -= sum >> HIGH_PASS_SHIFT;
+        }
+        integrator = sum;
+
+        int remaining = getAvailableSamples() - count + KERNEL_WIDTH;
+        System.arraycopy(buffer, count, buffer, 0, remaining);
+        Arrays.fill(buffer, remaining, remaining + count, 0);
+        offset -= (long) count << TIME_BITS;
+    }
+
+    /**
+     * Removes all the samples and the changes that were not read yet
+     */
+    public void clear() {
+        Arrays.fill(buffer, 0);
+        offset = 0;
+        integrator = 0;
+    }
+}
@@ -0,0 +1,117 @@
+package org.jglrxavpok.jameboy.audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.io.Closeable;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays the samples on the default sound device of the system.<br/>
+ * The emulation thread only copies the samples in an {@link AudioRingBuffer}, a dedicated thread moves them from the
+ * ring to the device, blocking on the device as it plays. If the emulation runs ahead of the device and the ring is
+ * full, the newest samples are dropped.
+ */
+public class JavaSoundOutput implements AudioOutput, Closeable {
+
+    public static final int DEFAULT_SAMPLE_RATE = 48000;
+    /**
+     * Stereo samples moved to the device at once
+     */
+    private static final int CHUNK_SIZE = 256;
+
+    private final int sampleRate;
+    private final AudioRingBuffer ring;
+    private final SourceDataLine line;
+    private final Thread thread;
+    private volatile boolean running;
+    private long droppedSamples;
+
+    public JavaSoundOutput() throws LineUnavailableException {
+        this(DEFAULT_SAMPLE_RATE, 100);
+    }
+
+    /**
+     * @param sampleRate
+     * @param bufferMillis
+     *          Duration of sound the ring can hold
+     * @throws LineUnavailableException
+     *          If the system has no sound device supporting 16-bit stereo at the given sample rate
+     */
+    public JavaSoundOutput(int sampleRate, int bufferMillis) throws LineUnavailableException {
+        this.sampleRate = sampleRate;
+        AudioFormat format = new AudioFormat(sampleRate, 16, 2, true, false);
+        line = AudioSystem.getSourceDataLine(format);
+        line.open(format, CHUNK_SIZE*4*4);
+        line.start();
+        ring = new AudioRingBuffer(sampleRate*2*bufferMillis/1000);
+        running = true;
+        thread = new Thread(this::play, "Audio output");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void write(short[] samples, int offset, int length) {
+        droppedSamples += (length - ring.write(samples, offset, length)) / 2;
+    }
+
+    private void play() {
+        short[] samples = new short[CHUNK_SIZE*2];
+        byte[] bytes = new byte[CHUNK_SIZE*4];
+        while(running) {
+            int count = ring.read(samples, 0, samples.length);
+            if(count == 0) {
+                LockSupport.parkNanos(1_000_000L);
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                bytes[i*2] = (byte) samples[i];
+                bytes[i*2+1] = (byte) (samples[i] >> 8);
+            }
+            line.write(bytes, 0, count*2);
+        }
+    }
+
+    /**
+     * Number of stereo samples waiting to be played, in the ring
+     * @return
+     */
+    public int getBufferedSamples() {
+        return ring.size() / 2;
+    }
+
+    /**
+     * Number of stereo samples the ring can hold
+     * @return
+     */
+    public int getBufferCapacity() {
+        return ring.getCapacity() / 2;
+    }
+
+    /**
+     * Number of stereo samples dropped because the ring was full. Only accurate on the emulation thread
+     * @return
+     */
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        line.stop();
+        line.close();
+    }
+}
@@ -1,17 +1,137 @@
 package org.jglrxavpok.jameboy.audio;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Channel 4 (NR41-NR44): white noise from a linear feedback shift register
+ */
 public class NoiseChannel extends SoundChannel {
-    public NoiseChannel(int address) {
-        super(address);
+
+    private static final int[] DIVISORS = { 8, 16, 32, 48, 64, 80, 96, 112 };
+
+    private final VolumeEnvelope envelope;
+    private int clockShift;
+    private boolean shortMode;
+    private int divisorCode;
+    private int lfsr;
+
+    /**
+     * @param startAddress
+     *          Address of the unused register before NR41, to keep the same offsets as the other channels
+     */
+    public NoiseChannel(int startAddress) {
+        super(startAddress, 64);
+        envelope = new VolumeEnvelope();
+        lfsr = 0x7FFF;
     }
 
     @Override
     public void write(int address, byte value) {
-
+        int offset = address-startAddress;
+        if(offset == 1) { // NR41
+            loadLength(value & 0x3F);
+        } else if(offset == 2) { // NR42
+            envelope.write(value);
+            setDACEnabled(envelope.isDACEnabled());
+        } else if(offset == 3) { // NR43
+            clockShift = (value & 0xF0) >> 4;
+            shortMode = (value & 0x8) != 0;
+            divisorCode = value & 0x7;
+        } else if(offset == 4) { // NR44
+            writeControl(value);
+        }
     }
 
     @Override
     public byte read(int address) {
-        return 0;
+        int offset = address-startAddress;
+        if(offset == 2) {
+            return envelope.read();
+        } else if(offset == 3) {
+            return (byte) ((clockShift << 4) | (shortMode ? 0x8 : 0) | divisorCode);
+        } else if(offset == 4) {
+            return (byte) (lengthEnabled ? 0xFF : 0xBF);
+        }
+        return (byte) 0xFF; // NR41 is write only
+    }
+
+    @Override
+    protected void trigger() {
+        super.trigger();
+        timer = getPeriod();
+        envelope.trigger();
+        lfsr = 0x7FFF;
+    }
+
+    /**
+     * Clock cycles between two shifts of the register
+     * @return
+     */
+    private int getPeriod() {
+        return DIVISORS[divisorCode] << clockShift;
+    }
+
+    @Override
+    public void run(int time, int cycles) {
+        if(clockShift >= 14) // the register is not clocked at all
+            return;
+        int period = getPeriod();
+        int end = time + cycles;
+        int stepTime = time + timer;
+        while(stepTime <= end) {
+            int feedback = (lfsr ^ (lfsr >> 1)) & 1;
+            lfsr = (lfsr >> 1) | (feedback << 14);
+            if(shortMode) {
+                lfsr = (lfsr & ~0x40) | (feedback << 6);
+            }
+            updateOutput(stepTime);
+            stepTime += period;
+        }
+        timer = stepTime - end;
+    }
+
+    @Override
+    public int getOutput() {
+        if(!enabled)
+            return 0;
+        return (~lfsr & 1) * envelope.getVolume();
+    }
+
+    /**
+     * Called by the frame sequencer at 64Hz
+     */
+    public void clockEnvelope() {
+        envelope.clock();
+    }
+
+    @Override
+    public void reset() {
+        enabled = false;
+        dacEnabled = false;
+        lengthEnabled = false;
+        lengthCounter = 0;
+        envelope.reset();
+        clockShift = 0;
+        shortMode = false;
+        divisorCode = 0;
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        envelope.saveState(buffer);
+        buffer.put((byte) ((clockShift << 4) | (shortMode ? 0x8 : 0) | divisorCode));
+        buffer.putShort((short) lfsr);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        envelope.loadState(buffer);
+        byte register = buffer.get();
+        clockShift = (register >> 4) & 0xF;
+        shortMode = (register & 0x8) != 0;
+        divisorCode = register & 0x7;
+        lfsr = buffer.getShort() & 0x7FFF;
     }
 }
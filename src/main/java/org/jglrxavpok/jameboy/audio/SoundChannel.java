@@ -1,11 +1,56 @@
 package org.jglrxavpok.jameboy.audio;
 
+import java.nio.ByteBuffer;
+
+/**
+ * One of the 4 channels of the APU, handling 5 consecutive registers (NRx0-NRx4).<br/>
+ * The waveform is advanced by {@link #run(int, int)} during the mixing, the length counter (and the envelope and
+ * sweep, if any) by the frame sequencer of the {@link SoundController}.
+ */
 public abstract class SoundChannel {
 
+    /**
+     * Receives the changes of the output of a channel
+     */
+    @FunctionalInterface
+    public interface DeltaListener {
+        /**
+         * @param time
+         *          Clock cycles since the start of the batch
+         * @param delta
+         *          Difference with the previous output
+         */
+        void onDelta(int time, int delta);
+    }
+
     protected final int startAddress;
+    private final int maxLength;
+    /**
+     * Whether the channel is playing, as reported by NR52
+     */
+    protected boolean enabled;
+    protected boolean dacEnabled;
+    protected boolean lengthEnabled;
+    protected int lengthCounter;
+    /**
+     * Clock cycles before the next step of the waveform
+     */
+    protected int timer;
+    private DeltaListener deltaListener;
+    /**
+     * Output last reported to the listener
+     */
+    private int lastOutput;
 
-    public SoundChannel(int startAddress) {
+    /**
+     * @param startAddress
+     *          Address of the NRx0 register
+     * @param maxLength
+     *          Value loaded in the length counter when its register is written 0
+     */
+    public SoundChannel(int startAddress, int maxLength) {
         this.startAddress = startAddress;
+        this.maxLength = maxLength;
     }
 
     public boolean isValid(int address) {
@@ -15,4 +60,104 @@ public abstract class SoundChannel {
     public abstract void write(int address, byte value);
 
     public abstract byte read(int address);
+
+    /**
+     * Advances the waveform by the given amount of clock cycles, calling {@link #updateOutput(int)} at each step
+     * @param time
+     *          Clock cycles since the start of the batch
+     * @param cycles
+     */
+    public abstract void run(int time, int cycles);
+
+    /**
+     * The current output of the channel
+     * @return
+     *          0-15
+     */
+    public abstract int getOutput();
+
+    public void setDeltaListener(DeltaListener deltaListener) {
+        this.deltaListener = deltaListener;
+    }
+
+    /**
+     * Reports the change of the output since the last call, if any, to the listener
+     * @param time
+     *          Clock cycles since the start of the batch
+     */
+    public final void updateOutput(int time) {
+        int output = getOutput();
+        if(output != lastOutput) {
+            deltaListener.onDelta(time, output - lastOutput);
+            lastOutput = output;
+        }
+    }
+
+    /**
+     * Clears the registers, when the APU is turned off
+     */
+    public abstract void reset();
+
+    /**
+     * Called by the frame sequencer at 256Hz
+     */
+    public void clockLength() {
+        if(lengthEnabled && lengthCounter > 0) {
+            lengthCounter--;
+            if(lengthCounter == 0)
+                enabled = false;
+        }
+    }
+
+    protected void loadLength(int length) {
+        lengthCounter = maxLength - length;
+    }
+
+    /**
+     * Restarts the sound, when bit 7 of NRx4 is written 1
+     */
+    protected void trigger() {
+        enabled = dacEnabled;
+        if(lengthCounter == 0)
+            lengthCounter = maxLength;
+    }
+
+    /**
+     * Handles the length enable (bit 6) and trigger (bit 7) bits of NRx4
+     * @param value
+     */
+    protected void writeControl(byte value) {
+        lengthEnabled = (value & 0x40) != 0;
+        if((value & 0x80) != 0)
+            trigger();
+    }
+
+    protected void setDACEnabled(boolean dacEnabled) {
+        this.dacEnabled = dacEnabled;
+        if(!dacEnabled)
+            enabled = false;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isDACEnabled() {
+        return dacEnabled;
+    }
+
+    public void saveState(ByteBuffer buffer) {
+        buffer.put((byte) ((enabled ? 1 : 0) | (dacEnabled ? 2 : 0) | (lengthEnabled ? 4 : 0)));
+        buffer.putShort((short) lengthCounter);
+        buffer.putInt(timer);
+    }
+
+    public void loadState(ByteBuffer buffer) {
+        byte flags = buffer.get();
+        enabled = (flags & 1) != 0;
+        dacEnabled = (flags & 2) != 0;
+        lengthEnabled = (flags & 4) != 0;
+        lengthCounter = buffer.getShort() & 0xFFFF;
+        timer = buffer.getInt();
+    }
 }
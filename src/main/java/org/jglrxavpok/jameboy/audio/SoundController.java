@@ -1,38 +1,237 @@
 package org.jglrxavpok.jameboy.audio;
 
+import org.jglrxavpok.jameboy.cpu.EventScheduler;
+import org.jglrxavpok.jameboy.cpu.Z80Timer;
+
 import java.nio.ByteBuffer;
 
+/**
+ * The APU: 4 sound channels, the frame sequencer clocking their length counters, envelopes and sweep, and the mixer.
+ * <br/>
+ * The channels are not run cycle by cycle: the sound is synthesized in batches, up to the current cycle, before each
+ * register write (so that the previous settings are heard until then) and at each step of the frame sequencer, every
+ * {@link #FRAME_SEQUENCER_PERIOD} cycles. The channels report each change of their output, weighted by the volume
+ * and panning, to a {@link BlipBuffer} per side, which is resampled at the end of each batch in a preallocated buffer
+ * then handed to the {@link AudioOutput}. Without output, nothing is synthesized, only the registers and the channel
+ * status are emulated.
+ */
 public class SoundController {
 
+    public static final int ADDR_NR50 = 0xFF24;
+    public static final int ADDR_NR51 = 0xFF25;
+    public static final int ADDR_NR52 = 0xFF26;
+    public static final int ADDR_SOUND_START = 0xFF10;
+    public static final int ADDR_SOUND_END = 0xFF3F;
+    /**
+     * Clock cycles between two steps of the frame sequencer (512Hz)
+     */
+    public static final int FRAME_SEQUENCER_PERIOD = 8192;
+
     private final ToneSweepSoundChannel channel1;
     private final ToneSweepSoundChannel channel2;
     private final WaveOutputChannel channel3;
     private final NoiseChannel channel4;
-    private final ByteBuffer wavePatternRAM;
+    private final SoundChannel[] channels;
+    /**
+     * Output of each channel, as last reported
+     */
+    private final int[] levels = new int[4];
+    /**
+     * Weight of each channel on each side, from NR50 and NR51
+     */
+    private final int[] leftGains = new int[4];
+    private final int[] rightGains = new int[4];
+    private BlipBuffer leftBuffer;
+    private BlipBuffer rightBuffer;
+    private short[] mixBuffer;
+    private EventScheduler scheduler;
+    private int frameSequencerEvent;
+    private AudioOutput output;
+    /**
+     * Scheduler cycle up to which the sound has been synthesized
+     */
+    private long syncCycle;
+    private boolean powered;
+    private int frameSequencerStep;
+    /**
+     * NR50: output volume of each side (and Vin, which no cartridge uses)
+     */
+    private int masterVolume;
+    /**
+     * NR51: channels sent to each side, left in the high nibble
+     */
+    private int panning;
 
     public SoundController() {
-        wavePatternRAM = ByteBuffer.allocate(0xFF3F-0xFF30 +1);
         channel1 = new ToneSweepSoundChannel(0xFF10, true);
         channel2 = new ToneSweepSoundChannel(0xFF15, false);
         channel3 = new WaveOutputChannel(0xFF1A);
-        channel4 = new NoiseChannel(0xFF1A);
+        channel4 = new NoiseChannel(0xFF1F);
+        channels = new SoundChannel[] { channel1, channel2, channel3, channel4 };
+        for (int i = 0; i < channels.length; i++) {
+            int channel = i;
+            channels[i].setDeltaListener((time, delta) -> addDelta(channel, time, delta));
+        }
+        powered = true;
+    }
+
+    /**
+     * Lets the scheduler drive this APU. Without scheduler, the registers work but the frame sequencer never runs
+     * and no sound is produced
+     * @param scheduler
+     */
+    public void setScheduler(EventScheduler scheduler) {
+        this.scheduler = scheduler;
+        frameSequencerEvent = scheduler.register(this::onFrameSequencerEvent);
+        syncCycle = scheduler.getCycles();
+        scheduler.schedule(frameSequencerEvent, syncCycle + FRAME_SEQUENCER_PERIOD);
+    }
+
+    /**
+     * Sets where the samples go
+     * @param output
+     *          The output, or null to skip the synthesis entirely
+     */
+    public void setOutput(AudioOutput output) {
+        sync();
+        this.output = output;
+        if(output != null) {
+            // the batches are at most as long as the period of the frame sequencer
+            leftBuffer = new BlipBuffer(Z80Timer.CLOCK_SPEED, output.getSampleRate(), FRAME_SEQUENCER_PERIOD);
+            rightBuffer = new BlipBuffer(Z80Timer.CLOCK_SPEED, output.getSampleRate(), FRAME_SEQUENCER_PERIOD);
+            mixBuffer = new short[leftBuffer.getCapacity()*2];
+            updateMix();
+        }
+    }
+
+    public AudioOutput getOutput() {
+        return output;
+    }
+
+    private void onFrameSequencerEvent(long cycle) {
+        synthesize(cycle);
+        scheduler.schedule(frameSequencerEvent, cycle + FRAME_SEQUENCER_PERIOD);
+        if(!powered)
+            return;
+        if((frameSequencerStep & 1) == 0) { // steps 0, 2, 4 and 6
+            channel1.clockLength();
+            channel2.clockLength();
+            channel3.clockLength();
+            channel4.clockLength();
+        }
+        if(frameSequencerStep == 2 || frameSequencerStep == 6) {
+            channel1.clockSweep();
+        }
+        if(frameSequencerStep == 7) {
+            channel1.clockEnvelope();
+            channel2.clockEnvelope();
+            channel4.clockEnvelope();
+        }
+        frameSequencerStep = (frameSequencerStep + 1) & 7;
+        updateMix();
+    }
+
+    /**
+     * Synthesizes the sound up to the current cycle
+     */
+    private void sync() {
+        if(scheduler != null)
+            synthesize(scheduler.getCycles());
+    }
+
+    private void synthesize(long cycle) {
+        int cycles = (int) (cycle - syncCycle);
+        syncCycle = cycle;
+        if(output == null)
+            return;
+        while(cycles > 0) {
+            int length = Math.min(cycles, FRAME_SEQUENCER_PERIOD);
+            cycles -= length;
+            for (SoundChannel channel : channels) {
+                if(channel.isEnabled())
+                    channel.run(0, length);
+            }
+            leftBuffer.endFrame(length);
+            rightBuffer.endFrame(length);
+            int count = leftBuffer.getAvailableSamples();
+            leftBuffer.readSamples(mixBuffer, 0, count, 2);
+            rightBuffer.readSamples(mixBuffer, 1, count, 2);
+            output.write(mixBuffer, 0, count*2);
+        }
+    }
+
+    private void addDelta(int channel, int time, int delta) {
+        levels[channel] += delta;
+        if(leftGains[channel] != 0)
+            leftBuffer.addDelta(time, delta * leftGains[channel]);
+        if(rightGains[channel] != 0)
+            rightBuffer.addDelta(time, delta * rightGains[channel]);
+    }
+
+    /**
+     * Reports the changes made outside of the waveforms (registers, frame sequencer) at the start of the next batch
+     */
+    private void updateMix() {
+        if(output == null)
+            return;
+        for (SoundChannel channel : channels) {
+            channel.updateOutput(0);
+        }
+        int leftVolume = ((masterVolume >> 4) & 0x7) + 1;
+        int rightVolume = (masterVolume & 0x7) + 1;
+        for (int i = 0; i < channels.length; i++) {
+            int left = (panning & (0x10 << i)) != 0 ? leftVolume : 0;
+            int right = (panning & (0x01 << i)) != 0 ? rightVolume : 0;
+            if(left != leftGains[i]) {
+                leftBuffer.addDelta(0, levels[i] * (left - leftGains[i]));
+                leftGains[i] = left;
+            }
+            if(right != rightGains[i]) {
+                rightBuffer.addDelta(0, levels[i] * (right - rightGains[i]));
+                rightGains[i] = right;
+            }
+        }
     }
 
     public void write(int address, byte value) {
-        if(channel1.isValid(address))
+        sync();
+        if(address >= WaveOutputChannel.ADDR_WAVE_PATTERN_START && address <= WaveOutputChannel.ADDR_WAVE_PATTERN_END) {
+            channel3.writeWavePattern(address, value);
+        } else if(address == ADDR_NR52) {
+            boolean power = (value & 0x80) != 0;
+            if(powered && !power) {
+                // turning the APU off clears all its registers
+                channel1.reset();
+                channel2.reset();
+                channel3.reset();
+                channel4.reset();
+                masterVolume = 0;
+                panning = 0;
+            } else if(!powered && power) {
+                frameSequencerStep = 0;
+            }
+            powered = power;
+        } else if(!powered) { // registers are read only while the APU is off
+            return;
+        } else if(channel1.isValid(address)) {
             channel1.write(address, value);
-        else if(channel2.isValid(address))
+        } else if(channel2.isValid(address)) {
             channel2.write(address, value);
-        else if(channel3.isValid(address))
+        } else if(channel3.isValid(address)) {
             channel3.write(address, value);
-        else if(channel4.isValid(address))
+        } else if(channel4.isValid(address)) {
             channel4.write(address, value);
-        else if(address >= 0xFF30 && address <= 0xFF3F) {
-            wavePatternRAM.put(address - 0xFF30, value);
+        } else if(address == ADDR_NR50) {
+            masterVolume = value & 0xFF;
+        } else if(address == ADDR_NR51) {
+            panning = value & 0xFF;
         }
+        updateMix();
     }
 
     public byte read(int address) {
+        if(address >= WaveOutputChannel.ADDR_WAVE_PATTERN_START && address <= WaveOutputChannel.ADDR_WAVE_PATTERN_END)
+            return channel3.readWavePattern(address);
         if(channel1.isValid(address))
             return channel1.read(address);
         else if(channel2.isValid(address))
@@ -41,14 +240,52 @@ public class SoundController {
             return channel3.read(address);
         else if(channel4.isValid(address))
             return channel4.read(address);
-        else if(address >= 0xFF30 && address <= 0xFF3F) {
-            return wavePatternRAM.get(address - 0xFF30);
+        else if(address == ADDR_NR50)
+            return (byte) masterVolume;
+        else if(address == ADDR_NR51)
+            return (byte) panning;
+        else if(address == ADDR_NR52) {
+            int status = powered ? 0xF0 : 0x70;
+            if(channel1.isEnabled()) status |= 1;
+            if(channel2.isEnabled()) status |= 2;
+            if(channel3.isEnabled()) status |= 4;
+            if(channel4.isEnabled()) status |= 8;
+            return (byte) status;
         }
-        return 0;
+        return (byte) 0xFF; // unused registers
     }
 
     public boolean isValid(int address) {
-        return channel1.isValid(address) || channel2.isValid(address) || channel3.isValid(address) || channel4.isValid(address)
-                || (address >= 0xFF30 && address <= 0xFF3F);
+        return address >= ADDR_SOUND_START && address <= ADDR_SOUND_END;
+    }
+
+    /**
+     * Writes the registers and the state of the channels. The next step of the frame sequencer is saved with the
+     * scheduler
+     * @param buffer
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.put((byte) (powered ? 1 : 0));
+        buffer.put((byte) frameSequencerStep);
+        buffer.put((byte) masterVolume);
+        buffer.put((byte) panning);
+        buffer.putLong(syncCycle);
+        channel1.saveState(buffer);
+        channel2.saveState(buffer);
+        channel3.saveState(buffer);
+        channel4.saveState(buffer);
+    }
+
+    public void loadState(ByteBuffer buffer) {
+        powered = buffer.get() != 0;
+        frameSequencerStep = buffer.get();
+        masterVolume = buffer.get() & 0xFF;
+        panning = buffer.get() & 0xFF;
+        syncCycle = buffer.getLong();
+        channel1.loadState(buffer);
+        channel2.loadState(buffer);
+        channel3.loadState(buffer);
+        channel4.loadState(buffer);
+        updateMix();
     }
 }
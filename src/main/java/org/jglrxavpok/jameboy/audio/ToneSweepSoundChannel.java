@@ -1,84 +1,208 @@
 package org.jglrxavpok.jameboy.audio;
 
-import org.jglrxavpok.jameboy.utils.BitUtils;
+import java.nio.ByteBuffer;
 
+/**
+ * Square wave channels: channel 1 (NR10-NR14, with frequency sweep) and channel 2 (NR21-NR24)
+ */
 public class ToneSweepSoundChannel extends SoundChannel {
 
+    /**
+     * Waveforms of the 4 duties (12.5%, 25%, 50%, 75%), one bit per step, first step in the lowest bit
+     */
+    private static final int[] DUTY_PATTERNS = { 0b10000000, 0b10000001, 0b11100001, 0b01111110 };
+    /**
+     * Below this period, the wave is over 20kHz: the channel outputs its average level instead of stepping
+     */
+    private static final int MIN_AUDIBLE_PERIOD = 26;
+
     private final boolean handlesSweep;
-    private byte channel1SweepReg;
-    private int sweepTime;
-    private int sweepIncrease;
-    private int sweepShiftCount;
-    private int patternDutty;
-    private float soundLength;
-    private int initialVolumeEnvelope;
-    private int envelopeDirection;
-    private int lowerChannelFreq;
-    private int highChannelFreq;
-    private boolean consecutiveSelection;
-    private boolean restartSound;
-    private int envelopeSweepCount;
+    private final VolumeEnvelope envelope;
+    private int duty;
+    private int dutyPosition;
+    private int frequency;
+    private int sweepPeriod;
+    private boolean sweepDecrease;
+    private int sweepShift;
+    private boolean sweepEnabled;
+    private int sweepTimer;
+    private int shadowFrequency;
 
     public ToneSweepSoundChannel(int startAddress, boolean handlesSweep) {
-        super(startAddress);
+        super(startAddress, 64);
         this.handlesSweep = handlesSweep;
+        envelope = new VolumeEnvelope();
     }
 
     public void write(int address, byte value) {
         int offset = address-startAddress;
         if(handlesSweep && offset == 0) { // NR10-like
-            channel1SweepReg = value;
-            sweepTime = (value & 0x70) >> 4;
-            sweepIncrease = BitUtils.getBit(value, 3) ? -1 : 1;
-            sweepShiftCount = value & 0x07;
+            sweepPeriod = (value & 0x70) >> 4;
+            sweepDecrease = (value & 0x8) != 0;
+            sweepShift = value & 0x07;
         } else if(offset == 1) { // NR11-like
-            patternDutty = (value & 0xC) >> 6;
-            int t1 = value & 0x3F;
-            soundLength = (64f-t1)*(1f/256f);
+            duty = (value & 0xC0) >> 6;
+            loadLength(value & 0x3F);
         } else if(offset == 2) { // NR12-like
-            initialVolumeEnvelope = (value & 0xF0) >> 4;
-            envelopeDirection = BitUtils.getBit(value, 3) ? 1 : -1;
-            envelopeSweepCount = value & 0x7;
+            envelope.write(value);
+            setDACEnabled(envelope.isDACEnabled());
         } else if(offset == 3) { // NR13-like
-            lowerChannelFreq = value & 0xFF;
+            frequency = (frequency & 0x700) | (value & 0xFF);
         } else if(offset == 4) { // NR14-like
-            highChannelFreq = value & 0x7;
-            consecutiveSelection = BitUtils.getBit(value, 6);
-            restartSound = BitUtils.getBit(value, 7);
+            frequency = (frequency & 0xFF) | ((value & 0x7) << 8);
+            writeControl(value);
         }
     }
 
-    private int calculateFrequency() {
-        int x = highChannelFreq << 8 | lowerChannelFreq;
-        return 131072/(2048-x);
-    }
-
     public byte read(int address) {
         int offset = address-startAddress;
-        if(handlesSweep && offset == 0) { // NR10-like
-            byte register = (byte) (sweepShiftCount & 0x07);
-            if(sweepIncrease == -1)
-                register |= 1<<3;
-            register |= (sweepTime << 4) & 0x70;
-            return register;
-        } else if(offset == 1) { // NR11-like
-            return (byte) ((patternDutty << 6) & 0xC);
+        if(offset == 0) { // NR10-like
+            if(!handlesSweep)
+                return (byte) 0xFF;
+            int register = 0x80 | (sweepPeriod << 4) | sweepShift;
+            if(sweepDecrease)
+                register |= 0x8;
+            return (byte) register;
+        } else if(offset == 1) { // NR11-like, only the duty can be read back
+            return (byte) ((duty << 6) | 0x3F);
         } else if(offset == 2) { // NR12-like
-            byte register = (byte) (envelopeSweepCount & 0x7);
-            if(envelopeDirection == 1)
-                register |= 1 << 3;
-            register |= (initialVolumeEnvelope << 4) & 0xF0;
-            return register;
-        } else if(offset == 3) { // NR13-like
-            return (byte) lowerChannelFreq;
+            return envelope.read();
         } else if(offset == 4) { // NR14-like
-            byte register = (byte) highChannelFreq;
-            if(consecutiveSelection)
-                register |= 1 << 6;
-            if(restartSound)
-                register |= 1 << 7;
-            return register;
+            return (byte) (lengthEnabled ? 0xFF : 0xBF);
+        }
+        return (byte) 0xFF; // NR13-like is write only
+    }
+
+    @Override
+    protected void trigger() {
+        super.trigger();
+        timer = getPeriod();
+        envelope.trigger();
+        if(handlesSweep) {
+            shadowFrequency = frequency;
+            sweepTimer = sweepPeriod != 0 ? sweepPeriod : 8;
+            sweepEnabled = sweepPeriod != 0 || sweepShift != 0;
+            if(sweepShift != 0)
+                computeSweepFrequency();
+        }
+    }
+
+    /**
+     * Clock cycles between two steps of the waveform
+     * @return
+     */
+    private int getPeriod() {
+        return (2048 - frequency) * 4;
+    }
+
+    @Override
+    public void run(int time, int cycles) {
+        int period = getPeriod();
+        if(period < MIN_AUDIBLE_PERIOD) {
+            timer -= cycles;
+            if(timer <= 0) {
+                int steps = -timer / period + 1;
+                timer += steps * period;
+                dutyPosition = (dutyPosition + steps) & 7;
+            }
+            return;
+        }
+        int end = time + cycles;
+        int stepTime = time + timer;
+        while(stepTime <= end) {
+            dutyPosition = (dutyPosition + 1) & 7;
+            updateOutput(stepTime);
+            stepTime += period;
         }
-        return 0;
+        timer = stepTime - end;
+    }
+
+    @Override
+    public int getOutput() {
+        if(!enabled)
+            return 0;
+        if(getPeriod() < MIN_AUDIBLE_PERIOD)
+            return Integer.bitCount(DUTY_PATTERNS[duty]) * envelope.getVolume() / 8;
+        return ((DUTY_PATTERNS[duty] >> dutyPosition) & 1) * envelope.getVolume();
+    }
+
+    /**
+     * Called by the frame sequencer at 64Hz
+     */
+    public void clockEnvelope() {
+        envelope.clock();
+    }
+
+    /**
+     * Called by the frame sequencer at 128Hz
+     */
+    public void clockSweep() {
+        if(!handlesSweep || --sweepTimer > 0)
+            return;
+        sweepTimer = sweepPeriod != 0 ? sweepPeriod : 8;
+        if(!sweepEnabled || sweepPeriod == 0)
+            return;
+        int newFrequency = computeSweepFrequency();
+        if(newFrequency <= 2047 && sweepShift != 0) {
+            frequency = newFrequency;
+            shadowFrequency = newFrequency;
+            computeSweepFrequency(); // checks the overflow once more with the new frequency
+        }
+    }
+
+    /**
+     * Computes the next frequency of the sweep, disabling the channel if it goes over 2047
+     * @return
+     */
+    private int computeSweepFrequency() {
+        int delta = shadowFrequency >> sweepShift;
+        int newFrequency = sweepDecrease ? shadowFrequency - delta : shadowFrequency + delta;
+        if(newFrequency > 2047)
+            enabled = false;
+        return newFrequency;
+    }
+
+    @Override
+    public void reset() {
+        enabled = false;
+        dacEnabled = false;
+        lengthEnabled = false;
+        lengthCounter = 0;
+        envelope.reset();
+        duty = 0;
+        frequency = 0;
+        sweepPeriod = 0;
+        sweepDecrease = false;
+        sweepShift = 0;
+        sweepEnabled = false;
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        envelope.saveState(buffer);
+        buffer.put((byte) ((duty << 3) | dutyPosition));
+        buffer.putShort((short) frequency);
+        buffer.put((byte) ((sweepPeriod << 4) | (sweepDecrease ? 0x8 : 0) | sweepShift));
+        buffer.put((byte) (sweepEnabled ? 1 : 0));
+        buffer.put((byte) sweepTimer);
+        buffer.putShort((short) shadowFrequency);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        envelope.loadState(buffer);
+        byte dutyState = buffer.get();
+        duty = (dutyState >> 3) & 0x3;
+        dutyPosition = dutyState & 0x7;
+        frequency = buffer.getShort();
+        byte sweep = buffer.get();
+        sweepPeriod = (sweep >> 4) & 0x7;
+        sweepDecrease = (sweep & 0x8) != 0;
+        sweepShift = sweep & 0x7;
+        sweepEnabled = buffer.get() != 0;
+        sweepTimer = buffer.get();
+        shadowFrequency = buffer.getShort();
     }
 }
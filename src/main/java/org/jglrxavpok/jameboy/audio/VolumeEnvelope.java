@@ -0,0 +1,75 @@
+package org.jglrxavpok.jameboy.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Volume envelope of the square and noise channels, set by their NRx2 register: VVVV APPP (initial volume, increase,
+ * period)
+ */
+class VolumeEnvelope {
+
+    private int register;
+    private int volume;
+    private int timer;
+
+    void write(byte value) {
+        register = value & 0xFF;
+    }
+
+    byte read() {
+        return (byte) register;
+    }
+
+    /**
+     * Whether the DAC of the channel is on: the upper 5 bits of the register are not all 0
+     * @return
+     */
+    boolean isDACEnabled() {
+        return (register & 0xF8) != 0;
+    }
+
+    void trigger() {
+        volume = register >> 4;
+        timer = register & 0x7;
+    }
+
+    /**
+     * Called by the frame sequencer at 64Hz
+     */
+    void clock() {
+        int period = register & 0x7;
+        if(period == 0)
+            return;
+        if(--timer > 0)
+            return;
+        timer = period;
+        if((register & 0x8) != 0) {
+            if(volume < 15)
+                volume++;
+        } else if(volume > 0) {
+            volume--;
+        }
+    }
+
+    int getVolume() {
+        return volume;
+    }
+
+    void reset() {
+        register = 0;
+        volume = 0;
+        timer = 0;
+    }
+
+    void saveState(ByteBuffer buffer) {
+        buffer.put((byte) register);
+        buffer.put((byte) volume);
+        buffer.put((byte) timer);
+    }
+
+    void loadState(ByteBuffer buffer) {
+        register = buffer.get() & 0xFF;
+        volume = buffer.get();
+        timer = buffer.get();
+    }
+}
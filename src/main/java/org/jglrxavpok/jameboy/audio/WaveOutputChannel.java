@@ -1,71 +1,139 @@
 package org.jglrxavpok.jameboy.audio;
 
-import org.jglrxavpok.jameboy.utils.BitUtils;
+import java.nio.ByteBuffer;
 
+/**
+ * Channel 3 (NR30-NR34): plays the 32 4-bit samples of the wave pattern RAM (0xFF30-0xFF3F)
+ */
 public class WaveOutputChannel extends SoundChannel {
 
-    private boolean running;
-    private float soundLength;
+    public static final int ADDR_WAVE_PATTERN_START = 0xFF30;
+    public static final int ADDR_WAVE_PATTERN_END = 0xFF3F;
+
+    private final byte[] wavePattern;
     private OutputLevel outputLevel;
-    private int lowerChannelFreq;
-    private boolean restartSound;
-    private boolean consecutiveSelection;
-    private int highChannelFreq;
-    private int t1;
+    private int frequency;
+    private int position;
 
     public WaveOutputChannel(int startAddress) {
-        super(startAddress);
+        super(startAddress, 256);
+        wavePattern = new byte[ADDR_WAVE_PATTERN_END-ADDR_WAVE_PATTERN_START+1];
+        outputLevel = OutputLevel.MUTE;
     }
 
     @Override
     public void write(int address, byte value) {
         int offset = address-startAddress;
         if(offset == 0) { // NR30
-            running = BitUtils.getBit(value, 7);
+            setDACEnabled((value & 0x80) != 0);
         } else if(offset == 1) { // NR31
-            t1 = value & 0xFF;
-            soundLength = (256f-t1)*(1f/256f);
+            loadLength(value & 0xFF);
         } else if(offset == 2) { // NR32
             outputLevel = OutputLevel.values()[(value & 0x60) >> 5];
         } else if(offset == 3) { // NR33
-            lowerChannelFreq = value & 0xFF;
+            frequency = (frequency & 0x700) | (value & 0xFF);
         } else if(offset == 4) { // NR34
-            highChannelFreq = value & 0x7;
-            consecutiveSelection = BitUtils.getBit(value, 1);
-            restartSound = BitUtils.getBit(value, 7);
+            frequency = (frequency & 0xFF) | ((value & 0x7) << 8);
+            writeControl(value);
         }
     }
-    private int calculateFrequency() {
-        int x = highChannelFreq << 8 | lowerChannelFreq;
-        return 65536/(2048-x);
-    }
-
 
     @Override
     public byte read(int address) {
         int offset = address-startAddress;
         if(offset == 0) {
-            if(running)
-                return (byte) (1 << 7);
-            return 0;
-        } else if(offset == 1) {
-            return (byte) t1;
+            return (byte) (dacEnabled ? 0xFF : 0x7F);
         } else if(offset == 2) {
-            return (byte) (outputLevel.ordinal() << 5);
-        } else if(offset == 3) {
-            return (byte) (lowerChannelFreq);
+            return (byte) ((outputLevel.ordinal() << 5) | 0x9F);
         } else if(offset == 4) {
-            byte register = (byte) (highChannelFreq & 0x7);
-            if(consecutiveSelection)
-                register |= 1 << 6;
-            if(restartSound)
-                register |= 1 << 7;
-            return register;
+            return (byte) (lengthEnabled ? 0xFF : 0xBF);
+        }
+        return (byte) 0xFF; // NR31 and NR33 are write only
+    }
+
+    public void writeWavePattern(int address, byte value) {
+        wavePattern[address-ADDR_WAVE_PATTERN_START] = value;
+    }
+
+    public byte readWavePattern(int address) {
+        return wavePattern[address-ADDR_WAVE_PATTERN_START];
+    }
+
+    @Override
+    protected void trigger() {
+        super.trigger();
+        timer = getPeriod();
+        position = 0;
+    }
+
+    /**
+     * Clock cycles between two samples
+     * @return
+     */
+    private int getPeriod() {
+        return (2048 - frequency) * 2;
+    }
+
+    @Override
+    public void run(int time, int cycles) {
+        int period = getPeriod();
+        int end = time + cycles;
+        int stepTime = time + timer;
+        while(stepTime <= end) {
+            position = (position + 1) & 31;
+            updateOutput(stepTime);
+            stepTime += period;
         }
-        return 0;
+        timer = stepTime - end;
+    }
+
+    @Override
+    public int getOutput() {
+        if(!enabled)
+            return 0;
+        int sample = wavePattern[position >> 1];
+        sample = (position & 1) == 0 ? (sample >> 4) & 0xF : sample & 0xF;
+        return sample >> outputLevel.shift;
+    }
+
+    @Override
+    public void reset() {
+        enabled = false;
+        dacEnabled = false;
+        lengthEnabled = false;
+        lengthCounter = 0;
+        outputLevel = OutputLevel.MUTE;
+        frequency = 0;
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.put(wavePattern);
+        buffer.put((byte) outputLevel.ordinal());
+        buffer.putShort((short) frequency);
+        buffer.put((byte) position);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        buffer.get(wavePattern);
+        outputLevel = OutputLevel.values()[buffer.get()];
+        frequency = buffer.getShort();
+        position = buffer.get();
     }
 
     public enum OutputLevel {
-        MUTE, FULL, HALF, QUARTER
+        MUTE(4), FULL(0), HALF(1), QUARTER(2);
+
+        /**
+         * Right shift applied to the samples
+         */
+        private final int shift;
+
+        OutputLevel(int shift) {
+            this.shift = shift;
+        }
     }
 }
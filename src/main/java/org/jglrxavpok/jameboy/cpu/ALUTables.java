@@ -0,0 +1,107 @@
+package org.jglrxavpok.jameboy.cpu;
+
+import static org.jglrxavpok.jameboy.CPU.FLAG_C;
+import static org.jglrxavpok.jameboy.CPU.FLAG_H;
+import static org.jglrxavpok.jameboy.CPU.FLAG_N;
+import static org.jglrxavpok.jameboy.CPU.FLAG_Z;
+
+/**
+ * Precomputed results of the 8-bit operations of the CPU, with the flags they set.<br/>
+ * Unless specified, an entry holds the result in its lower 8 bits and the F register in its upper 8 bits, so the CPU
+ * gets both with one lookup instead of computing each flag with a branch.
+ */
+public final class ALUTables {
+
+    public static final int SHIFT_RLC = 0;
+    public static final int SHIFT_RRC = 1;
+    public static final int SHIFT_RL = 2;
+    public static final int SHIFT_RR = 3;
+    public static final int SHIFT_SLA = 4;
+    public static final int SHIFT_SRA = 5;
+    public static final int SHIFT_SWAP = 6;
+    public static final int SHIFT_SRL = 7;
+
+    /**
+     * ADD and ADC, indexed by carry &lt;&lt; 16 | A &lt;&lt; 8 | operand
+     */
+    public static final short[] ADD = new short[2 << 16];
+    /**
+     * SUB, SBC and CP, indexed by carry &lt;&lt; 16 | A &lt;&lt; 8 | operand
+     */
+    public static final short[] SUB = new short[2 << 16];
+    /**
+     * Flags set by INC, indexed by the result. C is left untouched and must be kept by the caller
+     */
+    public static final int[] INC = new int[256];
+    /**
+     * Flags set by DEC, indexed by the result. C is left untouched and must be kept by the caller
+     */
+    public static final int[] DEC = new int[256];
+    /**
+     * Z flag of a result, for the operations clearing the other flags (OR, XOR)
+     */
+    public static final int[] ZERO = new int[256];
+    /**
+     * CB rotations, shifts and swap, indexed by operation (SHIFT_*) &lt;&lt; 9 | carry &lt;&lt; 8 | operand
+     */
+    public static final short[] SHIFT = new short[8 << 9];
+
+    static {
+        for (int carry = 0; carry < 2; carry++) {
+            for (int a = 0; a < 256; a++) {
+                for (int b = 0; b < 256; b++) {
+                    int index = carry << 16 | a << 8 | b;
+
+                    int sum = a + b + carry;
+                    int flags = ((a & 0xF) + (b & 0xF) + carry) > 0xF ? FLAG_H : 0;
+                    if(sum > 0xFF)
+                        flags |= FLAG_C;
+                    ADD[index] = entry(sum, flags);
+
+                    int difference = a - b - carry;
+                    flags = FLAG_N;
+                    if(((a & 0xF) - (b & 0xF) - carry) < 0)
+                        flags |= FLAG_H;
+                    if(difference < 0)
+                        flags |= FLAG_C;
+                    SUB[index] = entry(difference, flags);
+                }
+            }
+        }
+
+        for (int value = 0; value < 256; value++) {
+            ZERO[value] = zero(value);
+            INC[value] = zero(value) | ((value & 0xF) == 0 ? FLAG_H : 0);
+            DEC[value] = zero(value) | FLAG_N | ((value & 0xF) == 0xF ? FLAG_H : 0);
+
+            for (int carry = 0; carry < 2; carry++) {
+                int index = carry << 8 | value;
+                int high = value >> 7;
+                int low = value & 0x1;
+                SHIFT[SHIFT_RLC << 9 | index] = shiftEntry(value << 1 | high, high);
+                SHIFT[SHIFT_RRC << 9 | index] = shiftEntry(value >> 1 | low << 7, low);
+                SHIFT[SHIFT_RL << 9 | index] = shiftEntry(value << 1 | carry, high);
+                SHIFT[SHIFT_RR << 9 | index] = shiftEntry(value >> 1 | carry << 7, low);
+                SHIFT[SHIFT_SLA << 9 | index] = shiftEntry(value << 1, high);
+                SHIFT[SHIFT_SRA << 9 | index] = shiftEntry(value >> 1 | (value & 0x80), low);
+                SHIFT[SHIFT_SWAP << 9 | index] = shiftEntry(value << 4 | value >> 4, 0);
+                SHIFT[SHIFT_SRL << 9 | index] = shiftEntry(value >> 1, low);
+            }
+        }
+    }
+
+    private ALUTables() {
+    }
+
+    private static int zero(int result) {
+        return (result & 0xFF) == 0 ? FLAG_Z : 0;
+    }
+
+    private static short entry(int result, int flags) {
+        return (short) ((flags | zero(result)) << 8 | (result & 0xFF));
+    }
+
+    private static short shiftEntry(int result, int carry) {
+        return entry(result, carry != 0 ? FLAG_C : 0);
+    }
+}
@@ -0,0 +1,218 @@
+package org.jglrxavpok.jameboy.cpu;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps track of the clock cycles elapsed since the start of the emulation, and runs the events the components
+ * scheduled for a given cycle (GPU mode changes, timer overflows...).<br/>
+ * The pending events are kept in a binary min-heap of event ids, ordered by cycle, so {@link #advance(int)} only
+ * compares against the closest event in the common case where no event is due.
+ */
+public class EventScheduler {
+
+    @FunctionalInterface
+    public interface EventHandler {
+        /**
+         * @param cycle
+         *          The cycle the event was scheduled for. Can be a bit earlier than {@link #getCycles()}, as events
+         *          run after the instruction during which they became due
+         */
+        void onEvent(long cycle);
+    }
+
+    private static final int NOT_SCHEDULED = -1;
+
+    private EventHandler[] handlers;
+    /**
+     * Cycle at which each event is due, indexed by event id
+     */
+    private long[] eventCycles;
+    /**
+     * Position in {@link #heap} of each event, indexed by event id, or {@link #NOT_SCHEDULED}
+     */
+    private int[] heapPositions;
+    /**
+     * Ids of the scheduled events, as a binary min-heap on their cycle
+     */
+    private int[] heap;
+    private int heapSize;
+    private int eventCount;
+    private long cycles;
+    private long nextEventCycle;
+
+    public EventScheduler() {
+        handlers = new EventHandler[4];
+        eventCycles = new long[4];
+        heapPositions = new int[4];
+        heap = new int[4];
+        nextEventCycle = Long.MAX_VALUE;
+    }
+
+    /**
+     * Registers a new kind of event
+     * @param handler
+     *          Called each time the event is due
+     * @return
+     *          The id to pass to {@link #schedule(int, long)} and {@link #cancel(int)}
+     */
+    public int register(EventHandler handler) {
+        if(eventCount == handlers.length) {
+            int newLength = eventCount*2;
+            handlers = Arrays.copyOf(handlers, newLength);
+            eventCycles = Arrays.copyOf(eventCycles, newLength);
+            heapPositions = Arrays.copyOf(heapPositions, newLength);
+            heap = Arrays.copyOf(heap, newLength);
+        }
+        handlers[eventCount] = handler;
+        heapPositions[eventCount] = NOT_SCHEDULED;
+        return eventCount++;
+    }
+
+    /**
+     * Schedules an event, replacing the previous schedule of that event if any
+     * @param id
+     * @param cycle
+     *          Absolute cycle (see {@link #getCycles()}) at which the event is due
+     */
+    public void schedule(int id, long cycle) {
+        int position = heapPositions[id];
+        if(position == NOT_SCHEDULED) {
+            position = heapSize++;
+            heap[position] = id;
+            heapPositions[id] = position;
+            eventCycles[id] = cycle;
+            siftUp(position);
+        } else {
+            long previous = eventCycles[id];
+            eventCycles[id] = cycle;
+            if(cycle < previous) {
+                siftUp(position);
+            } else {
+                siftDown(position);
+            }
+        }
+        nextEventCycle = eventCycles[heap[0]];
+    }
+
+    public void cancel(int id) {
+        int position = heapPositions[id];
+        if(position == NOT_SCHEDULED)
+            return;
+        heapPositions[id] = NOT_SCHEDULED;
+        heapSize--;
+        if(position != heapSize) {
+            int last = heap[heapSize];
+            heap[position] = last;
+            heapPositions[last] = position;
+            siftUp(position);
+            siftDown(heapPositions[last]);
+        }
+        nextEventCycle = heapSize == 0 ? Long.MAX_VALUE : eventCycles[heap[0]];
+    }
+
+    public boolean isScheduled(int id) {
+        return heapPositions[id] != NOT_SCHEDULED;
+    }
+
+    /**
+     * Moves the clock forward, running the events that became due, in order
+     * @param cycleCount
+     */
+    public void advance(int cycleCount) {
+        cycles += cycleCount;
+        while(cycles >= nextEventCycle) {
+            int id = heap[0];
+            long eventCycle = nextEventCycle;
+            cancel(id);
+            handlers[id].onEvent(eventCycle);
+        }
+    }
+
+    /**
+     * Clock cycles elapsed since the creation of this scheduler
+     * @return
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * @return
+     *          Cycles before the next scheduled event, {@link Long#MAX_VALUE} if none is scheduled
+     */
+    public long getCyclesUntilNextEvent() {
+        if(nextEventCycle == Long.MAX_VALUE)
+            return Long.MAX_VALUE;
+        return nextEventCycle - cycles;
+    }
+
+    /**
+     * Writes the current cycle and the cycle of every scheduled event. Events are identified by their registration
+     * order, which is the same for every core
+     * @param buffer
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.putLong(cycles);
+        buffer.putInt(eventCount);
+        for (int id = 0; id < eventCount; id++) {
+            buffer.putLong(isScheduled(id) ? eventCycles[id] : NOT_SCHEDULED);
+        }
+    }
+
+    /**
+     * Restores a state written by {@link #saveState(ByteBuffer)}, replacing all the scheduled events
+     * @param buffer
+     */
+    public void loadState(ByteBuffer buffer) {
+        long savedCycles = buffer.getLong();
+        int savedEventCount = buffer.getInt();
+        if(savedEventCount != eventCount)
+            throw new IllegalArgumentException("Saved state has "+savedEventCount+" events, expected "+eventCount);
+        cycles = savedCycles;
+        for (int id = 0; id < eventCount; id++) {
+            long cycle = buffer.getLong();
+            if(cycle == NOT_SCHEDULED) {
+                cancel(id);
+            } else {
+                schedule(id, cycle);
+            }
+        }
+    }
+
+    private void siftUp(int position) {
+        int id = heap[position];
+        long cycle = eventCycles[id];
+        while(position > 0) {
+            int parent = (position-1) >> 1;
+            int parentId = heap[parent];
+            if(eventCycles[parentId] <= cycle)
+                break;
+            heap[position] = parentId;
+            heapPositions[parentId] = position;
+            position = parent;
+        }
+        heap[position] = id;
+        heapPositions[id] = position;
+    }
+
+    private void siftDown(int position) {
+        int id = heap[position];
+        long cycle = eventCycles[id];
+        while(true) {
+            int child = position*2+1;
+            if(child >= heapSize)
+                break;
+            if(child+1 < heapSize && eventCycles[heap[child+1]] < eventCycles[heap[child]])
+                child++;
+            int childId = heap[child];
+            if(eventCycles[childId] >= cycle)
+                break;
+            heap[position] = childId;
+            heapPositions[childId] = position;
+            position = child;
+        }
+        heap[position] = id;
+        heapPositions[id] = position;
+    }
+}
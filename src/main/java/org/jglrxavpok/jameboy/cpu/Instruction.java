@@ -0,0 +1,10 @@
+package org.jglrxavpok.jameboy.cpu;
+
+/**
+ * A single opcode implementation, as stored in the dispatch tables of the CPU
+ */
+@FunctionalInterface
+public interface Instruction {
+
+    void execute();
+}
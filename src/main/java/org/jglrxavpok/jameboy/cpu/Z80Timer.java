@@ -4,6 +4,8 @@ import org.jglrxavpok.jameboy.CPU;
 import org.jglrxavpok.jameboy.memory.Interrupts;
 import org.jglrxavpok.jameboy.utils.BitUtils;
 
+import java.nio.ByteBuffer;
+
 public class Z80Timer {
 
     public static final int ADDR_DIV_REGISTER = 0xFF04;
@@ -12,45 +14,90 @@ public class Z80Timer {
     public static final int ADDR_TIMER_CONTROL = 0xFF07;
     public static final long CLOCK_SPEED = 4194304L;
 
+    /**
+     * Number of clock cycles between two increments of the DIV register (16384Hz)
+     */
+    private static final int DIV_PERIOD = 256;
+
     private final int[] clockSelect = { 4096, 262144, 65536, 16384 };
     private final CPU cpu;
-    private byte div;
+    private final EventScheduler scheduler;
+    private final int overflowEvent;
     private byte timer;
-    private int timerCycles;
     private boolean timerRunning;
     private byte timerModulo;
     private int currentSpeedSelector;
-
+    /**
+     * Scheduler cycle when DIV was last reset
+     */
+    private long divResetCycle;
+    /**
+     * Scheduler cycle up to which the timer counter has been updated
+     */
+    private long timerSyncCycle;
+
+    /**
+     * Creates a timer driven by the {@link EventScheduler} of the given CPU. The registers are only updated when
+     * accessed, or when the counter overflows
+     * @param cpu
+     */
     public Z80Timer(CPU cpu) {
         this.cpu = cpu;
+        scheduler = cpu.getScheduler();
+        overflowEvent = scheduler.register(cycle -> updateTimerCounter());
     }
 
-    public void postCycles(int cycleCount) {
-        div += cycleCount / 4;
+    /**
+     * Clock cycles elapsed since the start of the emulation, for the cartridge hardware that keeps time
+     * @return
+     */
+    public long getCycles() {
+        return scheduler.getCycles();
+    }
 
-        if(timerRunning) {
-            timerCycles += cycleCount / 4;
+    /**
+     * Catches up the timer counter with the elapsed cycles, firing the timer interrupt on overflow, then schedules the
+     * next overflow
+     */
+    private void updateTimerCounter() {
+        long cycles = scheduler.getCycles();
+        if(!timerRunning) {
+            timerSyncCycle = cycles;
+            scheduler.cancel(overflowEvent);
+            return;
         }
-
-        if(timerRunning && timerCycles > (CLOCK_SPEED / clockSelect[currentSpeedSelector])) {
-            timerCycles = 0;
-
-            int next = timer&0xFF +1;
-            if(next > 0xFF) {
-                next = timerModulo & 0xFF;
+        int period = getTimerPeriod();
+        long ticks = (cycles - timerSyncCycle) / period;
+        timerSyncCycle += ticks * period;
+        while(ticks > 0) {
+            int untilOverflow = 0x100 - (timer & 0xFF);
+            if(ticks < untilOverflow) {
+                timer = (byte) ((timer & 0xFF) + ticks);
+                ticks = 0;
+            } else {
+                ticks -= untilOverflow;
+                timer = timerModulo;
                 cpu.getMemory().interrupt(Interrupts.TIMER);
             }
-
-            timer = (byte)(next & 0xFF);
         }
+        scheduler.schedule(overflowEvent, timerSyncCycle + (long) (0x100 - (timer & 0xFF)) * period);
+    }
+
+    /**
+     * @return
+     *          Number of clock cycles between two increments of the timer counter, at the current speed
+     */
+    private int getTimerPeriod() {
+        return (int) (CLOCK_SPEED / clockSelect[currentSpeedSelector]);
     }
 
     public byte read(int address) {
         switch (address) {
             case ADDR_DIV_REGISTER:
-                return div;
+                return (byte) ((scheduler.getCycles() - divResetCycle) / DIV_PERIOD);
 
             case ADDR_TIMER_COUNTER:
+                updateTimerCounter();
                 return timer;
 
             case ADDR_TIMER_MODULO:
@@ -69,9 +116,10 @@ public class Z80Timer {
     }
 
     public void write(int address, byte value) {
+        updateTimerCounter();
         switch (address) {
             case ADDR_DIV_REGISTER:
-                div = 0;
+                divResetCycle = scheduler.getCycles();
                 break;
 
             case ADDR_TIMER_COUNTER:
@@ -87,5 +135,28 @@ public class Z80Timer {
                 currentSpeedSelector = value & 0x3;
                 break;
         }
+        updateTimerCounter(); // schedules the next overflow with the new values
+    }
+
+    /**
+     * Writes the registers of this timer. The next overflow is saved with the scheduler
+     * @param buffer
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.put(timer);
+        buffer.put(timerModulo);
+        buffer.put((byte) ((timerRunning ? 1 << 2 : 0) | currentSpeedSelector));
+        buffer.putLong(divResetCycle);
+        buffer.putLong(timerSyncCycle);
+    }
+
+    public void loadState(ByteBuffer buffer) {
+        timer = buffer.get();
+        timerModulo = buffer.get();
+        byte control = buffer.get();
+        timerRunning = BitUtils.getBit(control, 2);
+        currentSpeedSelector = control & 0x3;
+        divResetCycle = buffer.getLong();
+        timerSyncCycle = buffer.getLong();
     }
 }
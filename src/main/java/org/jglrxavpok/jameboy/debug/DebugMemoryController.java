@@ -1,16 +1,46 @@
 package org.jglrxavpok.jameboy.debug;
 
+import org.jglrxavpok.jameboy.audio.SoundController;
 import org.jglrxavpok.jameboy.cpu.Z80Timer;
 import org.jglrxavpok.jameboy.graphics.GPU;
 import org.jglrxavpok.jameboy.io.IOHandler;
 import org.jglrxavpok.jameboy.memory.Interrupts;
 import org.jglrxavpok.jameboy.memory.MemoryController;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Wraps a memory controller to keep track of the modified memory, for debugging tools.<br/>
+ * Writes only set a bit in a bitmap of dirty pages, the tools poll it with {@link #takeDirtyPages(long[])} at their own
+ * pace (the bitmap is lock-free, it can be read from any thread).
+ */
 public class DebugMemoryController implements MemoryController {
+
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_COUNT = 0x10000 >> PAGE_SHIFT;
+    /**
+     * Number of longs needed to hold one bit per page
+     */
+    public static final int DIRTY_WORD_COUNT = PAGE_COUNT / 64;
+
     private final MemoryController delegate;
+    private final AtomicLongArray dirtyPages;
 
     public DebugMemoryController(MemoryController delegate) {
         this.delegate = delegate;
+        dirtyPages = new AtomicLongArray(DIRTY_WORD_COUNT);
+    }
+
+    /**
+     * Copies the bitmap of the pages written to since the last call, and clears it
+     * @param destination
+     *          Receives {@link #DIRTY_WORD_COUNT} longs, bit 'n%64' of long 'n/64' is set if page 'n' is dirty
+     */
+    public void takeDirtyPages(long[] destination) {
+        for (int i = 0; i < DIRTY_WORD_COUNT; i++) {
+            destination[i] = dirtyPages.getAndSet(i, 0L);
+        }
     }
 
     public MemoryController getDelegate() {
@@ -21,7 +51,14 @@ public class DebugMemoryController implements MemoryController {
     public void write(int index, byte value) {
         delegate.write(index, value);
 
-        MemoryViewFrame.getInstance().updateValue(index);
+        int page = (index & 0xFFFF) >> PAGE_SHIFT;
+        int word = page >> 6;
+        long bit = 1L << (page & 63);
+        long dirty = dirtyPages.get(word);
+        // only pay for the atomic update the first time the page is written to between two polls
+        while((dirty & bit) == 0 && !dirtyPages.compareAndSet(word, dirty, dirty | bit)) {
+            dirty = dirtyPages.get(word);
+        }
     }
 
     @Override
@@ -49,6 +86,11 @@ public class DebugMemoryController implements MemoryController {
         delegate.resetInterrupt(interrupt);
     }
 
+    @Override
+    public boolean hasPendingInterrupt() {
+        return delegate.hasPendingInterrupt();
+    }
+
     @Override
     public IOHandler getIOHandler() {
         return delegate.getIOHandler();
@@ -58,4 +100,24 @@ public class DebugMemoryController implements MemoryController {
     public void setTimer(Z80Timer timer) {
         delegate.setTimer(timer);
     }
+
+    @Override
+    public void setSoundController(SoundController soundController) {
+        delegate.setSoundController(soundController);
+    }
+
+    @Override
+    public void flushSaveRAM() {
+        delegate.flushSaveRAM();
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        delegate.saveState(buffer);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        delegate.loadState(buffer);
+    }
 }
@@ -7,7 +7,7 @@ import javax.swing.*;
 
 public class DebuggerFrame extends JFrame {
 
-    private static final DebuggerFrame instance = new DebuggerFrame();
+    private static DebuggerFrame instance;
     private JLabel opcodeLabel;
 
     private DebuggerFrame() {
@@ -30,10 +30,27 @@ public class DebuggerFrame extends JFrame {
         add(panel);
     }
 
-    public static DebuggerFrame getInstance() {
+    /**
+     * The frame is only created on first use, so cores that never show it do not need Swing
+     * @return
+     */
+    public static synchronized DebuggerFrame getInstance() {
+        if(instance == null) {
+            instance = new DebuggerFrame();
+        }
         return instance;
     }
 
+    public static synchronized boolean isOpen() {
+        return instance != null && instance.isVisible();
+    }
+
+    public static void updateIfOpen() {
+        if(isOpen()) {
+            getInstance().onUpdate();
+        }
+    }
+
     public void onUpdate() {
         JameBoy core = JameBoyApp.emulator.getCore();
         if(core.getCurrentROM() != null)
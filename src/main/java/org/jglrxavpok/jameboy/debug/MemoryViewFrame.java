@@ -2,30 +2,40 @@ package org.jglrxavpok.jameboy.debug;
 
 import org.jglrxavpok.jameboy.JameBoy;
 import org.jglrxavpok.jameboy.JameBoyApp;
+import org.jglrxavpok.jameboy.memory.MemoryController;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
-import java.text.DecimalFormat;
-import java.util.Arrays;
 
-// TODO: Create hook between memory controllers and this class
+/**
+ * Shows the contents of the memory, 16 bytes per row. Only the pages reported dirty by the {@link DebugMemoryController}
+ * of the core are refreshed.<br/>
+ * The table is only touched from the event dispatch thread: while the frame is shown, a Swing timer polls the dirty
+ * pages at display rate, the emulation thread never waits on it
+ */
 public class MemoryViewFrame extends JFrame {
 
-    private static final MemoryViewFrame instance = new MemoryViewFrame();
+    private static MemoryViewFrame instance;
     private DefaultTableModel model;
     private static final int byteCount = 4;
+    private static final int BYTES_PER_ROW = byteCount*4;
+    private static final int ROWS_PER_PAGE = (1 << DebugMemoryController.PAGE_SHIFT) / BYTES_PER_ROW;
+    private static final int REFRESH_DELAY_MS = 1000/60;
+    private final long[] dirtyPages = new long[DebugMemoryController.DIRTY_WORD_COUNT];
+    private final Timer refreshTimer;
 
     private MemoryViewFrame() {
         super("Jame-Boy Memory View");
+        refreshTimer = new Timer(REFRESH_DELAY_MS, e -> refreshDirtyPages());
         buildFrame();
         pack();
         setLocationRelativeTo(null);
     }
 
     private void buildFrame() {
-        model = new DefaultTableModel((0xFFFF+1)/(byteCount*byteCount), byteCount+1);
+        model = new DefaultTableModel((0xFFFF+1)/BYTES_PER_ROW, BYTES_PER_ROW+1);
         JTable table = new JTable(model);
-        String[] header = new String[byteCount*4+1];
+        String[] header = new String[BYTES_PER_ROW+1];
         header[0] = "Base address";
         for (int i = 1; i < header.length; i++) {
             header[i] = String.format("%01X", (i-1) & 0xF);
@@ -35,41 +45,73 @@ public class MemoryViewFrame extends JFrame {
         getContentPane().add(new JScrollPane(table));
     }
 
-    public static MemoryViewFrame getInstance() {
+    /**
+     * The frame is only created on first use, so cores that never show it do not need Swing
+     * @return
+     */
+    public static synchronized MemoryViewFrame getInstance() {
+        if(instance == null) {
+            instance = new MemoryViewFrame();
+        }
         return instance;
     }
 
-    public void onUpdate() {
-        JameBoy core = JameBoyApp.emulator.getCore();
-        if(core.getCurrentROM() != null) {
-            model.fireTableDataChanged();
+    /**
+     * @return
+     *          Whether the frame has been created and is shown
+     */
+    public static synchronized boolean isOpen() {
+        return instance != null && instance.isVisible();
+    }
+
+    @Override
+    public void setVisible(boolean visible) {
+        super.setVisible(visible);
+        if(visible) {
+            refreshTimer.start();
+        } else {
+            refreshTimer.stop();
         }
     }
 
-    public void resetTable() {
-        int row = 0;
+    /**
+     * Refreshes the pages written to since the last call, run by {@link #refreshTimer}
+     */
+    private void refreshDirtyPages() {
         JameBoy core = JameBoyApp.emulator.getCore();
-        for (int i = 0; i < (0xFFFF+1)/byteCount; i+=byteCount) {
-            model.setValueAt(String.format("%04X",i*byteCount), row, 0);
-            for (int byteIndex = 0; byteIndex < byteCount*4; byteIndex++) {
-                byte value = (byte) 0xFF;
-                try {
-                    value = core.getMemoryController().read(i*byteCount+byteIndex);
-                } catch (Exception e) {
-                    // shhh
+        DebugMemoryController debugController = core.getDebugMemoryController();
+        if(core.getCurrentROM() == null || debugController == null)
+            return;
+        debugController.takeDirtyPages(dirtyPages);
+        for (int word = 0; word < dirtyPages.length; word++) {
+            long dirty = dirtyPages[word];
+            while(dirty != 0) {
+                int page = word*64 + Long.numberOfTrailingZeros(dirty);
+                dirty &= dirty-1;
+                for (int row = page*ROWS_PER_PAGE; row < (page+1)*ROWS_PER_PAGE; row++) {
+                    refreshRow(core.getMemoryController(), row);
                 }
-                model.setValueAt(String.format("%02X",value & 0xFF).toUpperCase(), row, byteIndex+1);
             }
-            row++;
         }
     }
 
-    public void updateValue(int address) {
-        byte value = JameBoyApp.emulator.getCore().getMemoryController().read(address);
-        int row = (address & 0xFFF0) / (byteCount*4);
-        int offset = address & 0xF;
-        model.setValueAt(String.format("%04X", address & 0xFFF0), row, 0);
+    public void resetTable() {
+        JameBoy core = JameBoyApp.emulator.getCore();
+        for (int row = 0; row < model.getRowCount(); row++) {
+            refreshRow(core.getMemoryController(), row);
+        }
+    }
 
-        model.setValueAt(String.format("%02X", value & 0xFF), row, offset+1);
+    private void refreshRow(MemoryController memory, int row) {
+        model.setValueAt(String.format("%04X", row*BYTES_PER_ROW), row, 0);
+        for (int byteIndex = 0; byteIndex < BYTES_PER_ROW; byteIndex++) {
+            byte value = (byte) 0xFF;
+            try {
+                value = memory.read(row*BYTES_PER_ROW+byteIndex);
+            } catch (Exception e) {
+                // shhh
+            }
+            model.setValueAt(String.format("%02X", value & 0xFF), row, byteIndex+1);
+        }
     }
 }
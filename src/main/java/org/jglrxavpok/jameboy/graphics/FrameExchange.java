@@ -0,0 +1,95 @@
+package org.jglrxavpok.jameboy.graphics;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Triple buffer handing complete frames from the {@link GPU} to a single consumer (renderer, recorder...) running on
+ * another thread.<br/>
+ * The GPU draws in the back buffer, the consumer reads the front buffer, and the last complete frame waits in the
+ * middle buffer. Publishing and acquiring only swap buffer indices atomically: neither side ever waits for the other,
+ * and the consumer always gets the most recent complete frame (frames it was too slow to get are dropped).
+ */
+public class FrameExchange {
+
+    /**
+     * Set with the index of the middle buffer when it holds a frame the consumer has not acquired yet
+     */
+    private static final int NEW_FRAME = 1 << 2;
+    private static final int INDEX_MASK = NEW_FRAME - 1;
+
+    private final int[][] buffers;
+    private final AtomicInteger middle;
+    /**
+     * Only accessed by the producer
+     */
+    private int back;
+    /**
+     * Only accessed by the consumer
+     */
+    private int front;
+
+    public FrameExchange() {
+        this(new int[GPU.WIDTH*GPU.HEIGHT], new int[GPU.WIDTH*GPU.HEIGHT], new int[GPU.WIDTH*GPU.HEIGHT]);
+    }
+
+    /**
+     * Exchanges frames through the given buffers, for instance the backing arrays of images
+     */
+    public FrameExchange(int[] first, int[] second, int[] third) {
+        buffers = new int[][] { first, second, third };
+        back = 0;
+        middle = new AtomicInteger(1);
+        front = 2;
+    }
+
+    /**
+     * The buffer the producer draws into
+     * @return
+     */
+    public int[] getBackBuffer() {
+        return buffers[back];
+    }
+
+    /**
+     * Hands the back buffer, holding a complete frame, to the consumer
+     * @return
+     *          The new back buffer, holding an older frame
+     */
+    public int[] publish() {
+        back = middle.getAndSet(back | NEW_FRAME) & INDEX_MASK;
+        return buffers[back];
+    }
+
+    /**
+     * Whether a frame has been published since the last call to {@link #acquireIndex()}
+     * @return
+     */
+    public boolean hasNewFrame() {
+        return (middle.get() & NEW_FRAME) != 0;
+    }
+
+    /**
+     * Gets the last published frame. The buffer is owned by the consumer until the next call
+     * @return
+     *          The index of the buffer holding the frame, for consumers keeping data per buffer
+     * @see #getBuffer(int)
+     */
+    public int acquireIndex() {
+        if(hasNewFrame()) {
+            front = middle.getAndSet(front) & INDEX_MASK;
+        }
+        return front;
+    }
+
+    /**
+     * Gets the last published frame. The buffer is owned by the consumer until the next call
+     * @return
+     */
+    public int[] acquire() {
+        return buffers[acquireIndex()];
+    }
+
+    public int[] getBuffer(int index) {
+        return buffers[index];
+    }
+}
@@ -1,13 +1,12 @@
 package org.jglrxavpok.jameboy.graphics;
 
+import org.jglrxavpok.jameboy.cpu.EventScheduler;
 import org.jglrxavpok.jameboy.memory.Interrupts;
 import org.jglrxavpok.jameboy.memory.MemoryController;
 import org.jglrxavpok.jameboy.utils.BitUtils;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
  * Represents the graphics on the GB (the screen). Does not provide methods to render directly!
@@ -16,6 +15,10 @@ public class GPU {
 
     public static final int WIDTH = 160;
     public static final int HEIGHT = 144;
+    /**
+     * Number of clock cycles needed to draw a full frame (154 lines of 456 cycles)
+     */
+    public static final int CYCLES_PER_FRAME = 456 * 154;
     public static final int ADDR_OAM_START = 0xFE00;
     public static final int ADDR_OAM_END = 0xFEA0;
     public static final int ADDR_VRAM_START = 0x8000;
@@ -38,17 +41,77 @@ public class GPU {
     public static final byte HBLANK_MODE = 0x0;
     public static final byte OAM_READ_MODE = 0x2;
     public static final byte VRAM_READ_MODE = 0x3;
-    private final ByteBuffer videoRAM;
-    private final ByteBuffer oam;
-    private final List<SpriteBlock> spriteBlocks;
+    /**
+     * Frame skip value to never render, except for the frames requested with {@link #renderNextFrame()}
+     */
+    public static final int SKIP_ALL_FRAMES = -1;
+    private static final int CYCLES_PER_LINE = 456;
+    /**
+     * Positions in a line (in clock cycles) where the OAM read mode and VRAM read mode end
+     */
+    private static final int OAM_READ_END = 80;
+    private static final int VRAM_READ_END = 80 + 172;
+    private static final int VBLANK_START_LINE = 144;
+    private static final int LINE_COUNT = 154;
+    /**
+     * Size of the pattern tables at the start of the VRAM (0x8000-0x97FF): 384 tiles of 16 bytes
+     */
+    private static final int TILE_DATA_SIZE = 384*16;
+    private static final int SPRITE_COUNT = 40;
+    /**
+     * The hardware only draws the first 10 sprites (in OAM order) found on a line
+     */
+    private static final int MAX_SPRITES_PER_LINE = 10;
+    private final byte[] videoRAM;
+    /**
+     * Pattern tables decoded to one color index (0-3) per byte, 64 bytes per tile, one row of 8 pixels after the other.
+     * Kept up to date by {@link #write(int, byte)}
+     */
+    private final byte[] decodedTiles;
+    private final byte[] oam;
+    /**
+     * OAM offsets of the sprites on the current line, sorted by drawing priority
+     */
+    private final int[] lineSprites;
+    /**
+     * Color indices (before palette) of the background and window on the current line, used for sprites drawn behind
+     * the background
+     */
+    private final byte[] lineBackgroundColors;
+    /**
+     * Pixels of the current line already covered by a sprite with a higher priority
+     */
+    private final boolean[] lineSpritePixels;
     private final int[] grayScaleBackgroundColors;
     private final int[] greenScaleBackgroundColors;
 
     // TODO: Make it modifiable in settings
     private int[] backgroundColors;
 
+    /**
+     * Frame being drawn, the back buffer of {@link #frameExchange}
+     */
     private int[] pixels;
+    private FrameExchange frameExchange;
+    /**
+     * The frame being drawn, packed for the save states
+     */
+    private final byte[] packedPixels = new byte[VideoRecorder.FRAME_SIZE];
+    /**
+     * Number of frames not rendered between two rendered frames, or {@link #SKIP_ALL_FRAMES}
+     */
+    private int frameSkip;
+    private int framesSinceRender;
+    private boolean forceNextFrame;
+    /**
+     * Whether the lines of the current frame are drawn. Chosen at the start of each frame
+     */
+    private boolean renderingFrame = true;
     private int clockCount;
+    /**
+     * Value of {@link #clockCount} at which the next mode change happens
+     */
+    private int nextEventClock;
     private int lineY;
     private int[] obj0Palette;
     private int[] obj1Palette;
@@ -66,6 +129,7 @@ public class GPU {
     private int windowTileMapAddress;
     private byte modeFlag;
     private boolean coincidenceInterrupt;
+    private boolean coincidence;
     private boolean hBlankInterrupt;
     private boolean vBlankInterrupt;
     private boolean interruptOAM;
@@ -73,16 +137,17 @@ public class GPU {
     private MemoryController memory;
     private byte lyc;
     private byte oamTransferStart;
-    private boolean thrownLCDInt;
+    private long frameCount;
+    private EventScheduler scheduler;
+    private int modeChangeEvent;
 
     public GPU() {
-        videoRAM = ByteBuffer.allocate(8*1024);
-        oam = ByteBuffer.allocate(4*40);
-
-        spriteBlocks = new LinkedList<>();
-        for (int i = 0; i < 40; i++) {
-            spriteBlocks.add(new SpriteBlock(i*4 + ADDR_OAM_START, this));
-        }
+        videoRAM = new byte[8*1024];
+        decodedTiles = new byte[TILE_DATA_SIZE/16*64];
+        oam = new byte[4*SPRITE_COUNT];
+        lineSprites = new int[MAX_SPRITES_PER_LINE];
+        lineBackgroundColors = new byte[WIDTH];
+        lineSpritePixels = new boolean[WIDTH];
 
         grayScaleBackgroundColors = new int[] {
                 0xFFFFFFFF,
@@ -100,7 +165,8 @@ public class GPU {
 
         backgroundColors = grayScaleBackgroundColors;
 
-        pixels = new int[WIDTH*HEIGHT];
+        frameExchange = new FrameExchange();
+        pixels = frameExchange.getBackBuffer();
 
         backgroundPalette = new int[4];
         obj0Palette = new int[4];
@@ -110,6 +176,8 @@ public class GPU {
         System.arraycopy(backgroundColors, 0, obj0Palette, 0, backgroundColors.length);
         System.arraycopy(backgroundColors, 0, obj1Palette, 0, backgroundColors.length);
 
+        modeFlag = OAM_READ_MODE;
+        nextEventClock = OAM_READ_END;
         write(ADDR_LCDC, (byte) 0x91);
         write(ADDR_STAT, (byte) 0x85);
     }
@@ -134,7 +202,24 @@ public class GPU {
         } else if(index == ADDR_OAM_DMA_TRANSFER) {
             oamTransferStart = value;
         } else if(index == ADDR_LCDC) {
-            enableDisplay = BitUtils.getBit(value, 7);
+            boolean enable = BitUtils.getBit(value, 7);
+            if(enable != enableDisplay) {
+                // the LCD restarts from the top of the screen when turned back on
+                lineY = 0;
+                clockCount = 0;
+                nextEventClock = OAM_READ_END;
+                modeFlag = enable ? OAM_READ_MODE : HBLANK_MODE;
+                coincidence = lineY == (lyc & 0xFF);
+                // the pending mode change is left alone when only the other bits change, it is still on time
+                if(scheduler != null) {
+                    if(enable) {
+                        scheduleNextEvent(scheduler.getCycles());
+                    } else {
+                        scheduler.cancel(modeChangeEvent);
+                    }
+                }
+            }
+            enableDisplay = enable;
 
             currentSpriteHeight = BitUtils.getBit(value, 2) ? 16 : 8;
             tileDataAddress = BitUtils.getBit(value, 4) ? 0x8000 : 0x8800;
@@ -148,6 +233,7 @@ public class GPU {
 
         } else if(index == ADDR_LYC) {
             lyc = value;
+            coincidence = lineY == (lyc & 0xFF);
         } else if(index == ADDR_SCROLL_X) {
             scrollX = value & 0xFF;
         } else if(index == ADDR_SCROLL_Y) {
@@ -158,9 +244,13 @@ public class GPU {
             vBlankInterrupt = BitUtils.getBit(value, 4);
             hBlankInterrupt = BitUtils.getBit(value, 3);
         } else if(index >= ADDR_VRAM_START && index < ADDR_VRAM_END) {
-            videoRAM.put(index - ADDR_VRAM_START, value);
+            int address = index - ADDR_VRAM_START;
+            videoRAM[address] = value;
+            if(address < TILE_DATA_SIZE) {
+                decodeTileRow(address >> 1);
+            }
         } else if(index >= ADDR_OAM_START && index < ADDR_OAM_END) {
-            oam.put(index - ADDR_OAM_START, value);
+            oam[index - ADDR_OAM_START] = value;
         } else if(!isValidGPUAddress(index)) {
             throw new IllegalArgumentException("Invalid address for GPU: "+Integer.toHexString(index).toUpperCase());
         } else {
@@ -168,6 +258,21 @@ public class GPU {
         }
     }
 
+    /**
+     * Decodes the 8 pixels of a tile row (2 bytes in the pattern tables) into {@link #decodedTiles}
+     * @param row
+     *          Index of the row, counted from the start of the VRAM
+     */
+    private void decodeTileRow(int row) {
+        int low = videoRAM[row*2] & 0xFF;
+        int high = videoRAM[row*2+1] & 0xFF;
+        int start = row*8;
+        for (int x = 0; x < 8; x++) {
+            int bit = 7-x;
+            decodedTiles[start+x] = (byte) (((low >> bit) & 1) | (((high >> bit) & 1) << 1));
+        }
+    }
+
     private void convertByteToPalette(int[] palette, byte value) {
         palette[0] = backgroundColors[value & 0b11];
         palette[1] = backgroundColors[(value >> 2) & 0b11];
@@ -213,7 +318,7 @@ public class GPU {
                 value |= 1<<4;
             if(hBlankInterrupt)
                 value |= 1<<3;
-            if(coincidenceInterrupt)
+            if(coincidence)
                 value |= 1<<2;
             value |= modeFlag;
             return value;
@@ -230,9 +335,9 @@ public class GPU {
         } else if(index == ADDR_OAM_DMA_TRANSFER) {
             return oamTransferStart;
         } else if(index >= ADDR_VRAM_START && index < ADDR_VRAM_END) {
-            return videoRAM.get(index - ADDR_VRAM_START);
+            return videoRAM[index - ADDR_VRAM_START];
         } else if(index >= ADDR_OAM_START && index < ADDR_OAM_END) {
-            return oam.get(index - ADDR_OAM_START);
+            return oam[index - ADDR_OAM_START];
         } else if(!isValidGPUAddress(index)) {
             throw new IllegalArgumentException("Invalid address for GPU: "+Integer.toHexString(index).toUpperCase());
         } else {
@@ -260,65 +365,148 @@ public class GPU {
         return (byte) result;
     }
 
+    /**
+     * Lets the scheduler drive this GPU: mode changes are scheduled as events, and {@link #step(int)} must not be called
+     * anymore
+     * @param scheduler
+     */
+    public void setScheduler(EventScheduler scheduler) {
+        this.scheduler = scheduler;
+        modeChangeEvent = scheduler.register(this::onModeChangeEvent);
+        if(enableDisplay) {
+            scheduleNextEvent(scheduler.getCycles());
+        }
+    }
+
+    private void onModeChangeEvent(long cycle) {
+        clockCount = nextEventClock;
+        nextEvent();
+        scheduleNextEvent(cycle);
+    }
+
+    /**
+     * @param cycle
+     *          Scheduler cycle corresponding to the current value of {@link #clockCount}
+     */
+    private void scheduleNextEvent(long cycle) {
+        scheduler.schedule(modeChangeEvent, cycle + nextEventClock - clockCount);
+    }
+
+    /**
+     * Advances the LCD by the given amount of clock cycles, for GPUs not driven by an {@link EventScheduler}. Lines are
+     * rendered and interrupts are fired only when a mode change is reached
+     * @param cycles
+     */
     public void step(int cycles) {
         if(!enableDisplay) {
-            modeFlag = HBLANK_MODE;
             return;
         }
-        clockCount+=cycles;
+        clockCount += cycles;
+        while(clockCount >= nextEventClock) {
+            nextEvent();
+        }
+    }
 
-        if(!thrownLCDInt && coincidenceInterrupt && lineY == (lyc & 0xFF)) {
-            memory.interrupt(Interrupts.LCD_COINCIDENCE);
-            thrownLCDInt = true;
+    /**
+     * @return
+     *          Clock cycles before the next mode change, {@link Integer#MAX_VALUE} if the display is off
+     */
+    public int getCyclesUntilNextEvent() {
+        if(!enableDisplay) {
+            return Integer.MAX_VALUE;
         }
+        return nextEventClock - clockCount;
+    }
 
-        if(lineY >= 144) {
-            modeFlag = VBLANK_MODE;
-            thrownLCDInt = false;
-        } else {
-            if (clockCount >= 80) {
-                modeFlag = OAM_READ_MODE;
-                thrownLCDInt = false;
-            } else if (clockCount >= 172 + 80) {
+    private void nextEvent() {
+        switch (nextEventClock) {
+            case OAM_READ_END:
                 modeFlag = VRAM_READ_MODE;
-                thrownLCDInt = false;
-            } else {
+                nextEventClock = VRAM_READ_END;
+                break;
+
+            case VRAM_READ_END:
                 modeFlag = HBLANK_MODE;
-                if(!thrownLCDInt && hBlankInterrupt) {
+                if(renderingFrame)
+                    renderSingleLine();
+                if(hBlankInterrupt)
                     memory.interrupt(Interrupts.LCD_COINCIDENCE);
-                    thrownLCDInt = true;
+                nextEventClock = CYCLES_PER_LINE;
+                break;
+
+            case CYCLES_PER_LINE:
+                clockCount -= CYCLES_PER_LINE;
+                lineY++;
+                if(lineY >= LINE_COUNT) {
+                    lineY = 0;
+                    // the frame is complete, hand it over before drawing the next one (over an older frame)
+                    if(renderingFrame)
+                        pixels = frameExchange.publish();
+                    renderingFrame = shouldRenderFrame();
                 }
-            }
+                startLine();
+                break;
         }
+    }
 
-        if(clockCount >= 456) {
-            clockCount = 0;
-            sortSprites();
-
-            if(lineY < 144) {
-                renderSingleLine();
-            }
+    private void startLine() {
+        coincidence = lineY == (lyc & 0xFF);
+        if(coincidence && coincidenceInterrupt)
+            memory.interrupt(Interrupts.LCD_COINCIDENCE);
 
-            if(lineY == 144) {
+        if(lineY < VBLANK_START_LINE) {
+            modeFlag = OAM_READ_MODE;
+            if(interruptOAM)
+                memory.interrupt(Interrupts.LCD_COINCIDENCE);
+            nextEventClock = OAM_READ_END;
+        } else {
+            if(lineY == VBLANK_START_LINE) {
+                modeFlag = VBLANK_MODE;
                 memory.interrupt(Interrupts.V_BLANK);
+                if(vBlankInterrupt)
+                    memory.interrupt(Interrupts.LCD_COINCIDENCE);
+                frameCount++;
             }
-            lineY++;
+            nextEventClock = CYCLES_PER_LINE;
+        }
+    }
 
-            if(lineY >= 154) {
-                lineY = 0;
-            }
+    private boolean shouldRenderFrame() {
+        if(forceNextFrame) {
+            forceNextFrame = false;
+            framesSinceRender = 0;
+            return true;
         }
+        if(frameSkip == SKIP_ALL_FRAMES)
+            return false;
+        if(framesSinceRender >= frameSkip) {
+            framesSinceRender = 0;
+            return true;
+        }
+        framesSinceRender++;
+        return false;
     }
 
-    private void sortSprites() {
-        spriteBlocks.forEach(SpriteBlock::enable);
-        spriteBlocks.sort((a, b) -> {
-            int positionCompare = -Integer.compare(a.getPositionX(), b.getPositionX()); // inverted, 'a' must be drawn last
-            if(positionCompare == 0) {
-                return Integer.compare(a.getStartAddress(), b.getStartAddress()); // b must be drawn last
-            }
-            return positionCompare;
-        });
+    /**
+     * Skips the rendering of frames nobody looks at. Only the pixels are affected: the LCD modes, LY and the interrupts
+     * keep the exact same timing. Skipped frames are not published to the {@link FrameExchange}
+     * @param frameSkip
+     *          Number of frames skipped after each rendered frame, 0 to render every frame, or {@link #SKIP_ALL_FRAMES}
+     */
+    public void setFrameSkip(int frameSkip) {
+        this.frameSkip = frameSkip;
+        framesSinceRender = 0;
+    }
+
+    public int getFrameSkip() {
+        return frameSkip;
+    }
+
+    /**
+     * Renders the next frame regardless of the frame skip, for instance the last frame of a run
+     */
+    public void renderNextFrame() {
+        forceNextFrame = true;
     }
 
     /**
@@ -326,141 +514,247 @@ public class GPU {
      */
     private void renderSingleLine() {
         Arrays.fill(pixels, lineY*WIDTH, (lineY+1)*WIDTH, 0xFFFFFFFF);
+        Arrays.fill(lineBackgroundColors, (byte) 0);
         if(shouldRenderBackground) {
             renderBackgroundLine();
         }
 
-        if(shouldRenderSprites) {
-            renderSpriteLine();
-        }
-
         if(shouldRenderWindow) {
             renderWindowLine();
         }
-    }
 
-    private void renderWindowLine() {
-        for (int x = 0; x < WIDTH; x++) {
-            int tileX = x-windowX+7;
-            int tileY = lineY-windowY;
-
-            if(tileY < 0)
-                continue;
-
-            int tileColumn = tileX / 8;
-            int tileRow = tileY / 8;
-
-            int localX = (tileX % 8);
-            int localY = (tileY % 8);
-
-            int color = getWindowColor(tileColumn, tileRow, localX, localY);
-
-            pixels[x+lineY*WIDTH] = color;
+        if(shouldRenderSprites) {
+            renderSpriteLine();
         }
     }
 
-    private int getWindowColor(int column, int row, int x, int y) {
-        byte patternNumberByte = read(column+row*(32) + windowTileMapAddress);
-        int patternNumber;
-        patternNumber = patternNumberByte;
-        if(tileDataAddress == 0x8800) {
-            patternNumber -= 128;
-        }
-        int startAddress = patternNumber*16 + tileDataAddress + 0x1000; // TODO: why + 0x1000
-        int byteIndex = y*2;
-        x = 7 - x;
-        int low = read(startAddress+byteIndex) & 0xFF;
-        int high = read(startAddress+byteIndex+1) & 0xFF;
-        int colorIndex = ((low&0xFF) & (1 << (x))) >> (x) | (((high&0xFF) & (1 << (x))) >> (x)) <<1;
-        return backgroundPalette[colorIndex];
+    private void renderWindowLine() {
+        int windowLine = lineY-windowY;
+        int windowStart = windowX-7;
+        if(windowLine < 0 || windowStart >= WIDTH)
+            return;
+        int screenStart = Math.max(0, windowStart);
+        renderTileMapSpan(windowTileMapAddress, windowLine, screenStart-windowStart, screenStart);
     }
 
     private void renderBackgroundLine() {
-        for (int x = 0; x < WIDTH; x++) {
-            int tileX = x-scrollX;
-            int tileY = lineY-scrollY;
-
-            int tileColumn = tileX / 8;
-            int tileRow = tileY / 8;
-
-            int localX = (tileX % 8);
-            int localY = (tileY % 8);
-
-            int color = getBackgroundColor(tileColumn, tileRow, localX, localY);
+        renderTileMapSpan(backgroundTileMapAddress, (lineY+scrollY) & 0xFF, scrollX, 0);
+    }
 
-            pixels[x+lineY*WIDTH] = color;
+    /**
+     * Draws a line of a 32x32 tile map, from the given screen position to the right edge of the screen. Wraps around
+     * the tile map.
+     * @param tileMapAddress
+     *          Address of the tile map (0x9800 or 0x9C00)
+     * @param mapY
+     *          Line of the tile map to draw, in pixels
+     * @param mapX
+     *          Position on the tile map of the first pixel to draw, in pixels
+     * @param screenX
+     *          Position on the screen of the first pixel to draw
+     */
+    private void renderTileMapSpan(int tileMapAddress, int mapY, int mapX, int screenX) {
+        int mapRow = tileMapAddress - ADDR_VRAM_START + (mapY >> 3) * 32;
+        int tileLine = (mapY & 7) * 8;
+        int lineStart = lineY*WIDTH;
+        while(screenX < WIDTH) { // one tile (or what is visible of it) at a time
+            mapX &= 0xFF;
+            int localX = mapX & 7;
+            int tileStart = getTileIndex(videoRAM[mapRow + (mapX >> 3)]) * 64 + tileLine + localX;
+            int count = Math.min(8 - localX, WIDTH - screenX);
+            for (int i = 0; i < count; i++) {
+                byte colorIndex = decodedTiles[tileStart+i];
+                lineBackgroundColors[screenX+i] = colorIndex;
+                pixels[lineStart+screenX+i] = backgroundPalette[colorIndex];
+            }
+            screenX += count;
+            mapX += count;
         }
     }
 
-    private int getBackgroundColor(int column, int row, int x, int y) {
-        byte patternNumberByte = read(column+row*32 + backgroundTileMapAddress);
-        int patternNumber;
-        patternNumber = patternNumberByte;
-        if(tileDataAddress == 0x8800) {
-            patternNumber -= 128;
+    /**
+     * Converts a tile number read from a tile map to an index in the pattern tables, according to the current
+     * addressing mode: unsigned from 0x8000, or signed from 0x9000
+     * @param tileNumber
+     * @return
+     */
+    private int getTileIndex(byte tileNumber) {
+        if(tileDataAddress == 0x8000) {
+            return tileNumber & 0xFF;
         }
-        int startAddress = patternNumber*16 + tileDataAddress + 0x1000; // TODO: why + 0x1000
-        int byteIndex = y*2;
-        x = 7 - x;
-        int low = read(startAddress+byteIndex) & 0xFF;
-        int high = read(startAddress+byteIndex+1) & 0xFF;
-        int colorIndex = ((low&0xFF) & (1 << (x))) >> (x) | (((high&0xFF) & (1 << (x))) >> (x)) <<1;
-        return backgroundPalette[colorIndex];
+        return 256 + tileNumber;
     }
 
     private void renderSpriteLine() {
-        final int spriteHeight = currentSpriteHeight;
-        final int spriteWidth = 8;
-        for (int screenX = 0; screenX < WIDTH; screenX++) {
-            int color = 0x0;
-            for (SpriteBlock sprite : spriteBlocks) {
-                sprite.loadFromMemory();
-                if(!sprite.isEnabledForRendering() || !sprite.isVisible())
+        int spriteCount = selectLineSprites();
+        Arrays.fill(lineSpritePixels, false);
+        int lineStart = lineY*WIDTH;
+        for (int i = 0; i < spriteCount; i++) {
+            int offset = lineSprites[i];
+            int spriteX = (oam[offset+1] & 0xFF) - 8;
+            int localY = lineY - ((oam[offset] & 0xFF) - 16);
+            int flags = oam[offset+3];
+            boolean behindBackground = BitUtils.getBit(flags, 7);
+            boolean flipY = BitUtils.getBit(flags, 6);
+            boolean flipX = BitUtils.getBit(flags, 5);
+            int[] palette = BitUtils.getBit(flags, 4) ? obj1Palette : obj0Palette;
+
+            int patternNumber = oam[offset+2] & 0xFF;
+            if(currentSpriteHeight == 16) {
+                patternNumber &= 0xFE; // 8x16 sprites ignore the lowest bit of the pattern number
+            }
+            if(flipY) {
+                localY = currentSpriteHeight-1-localY;
+            }
+            int rowStart = patternNumber*64 + localY*8; // 8x16 sprites simply continue into the next tile
+
+            int end = Math.min(WIDTH, spriteX+8);
+            for (int x = Math.max(0, spriteX); x < end; x++) {
+                if(lineSpritePixels[x])
                     continue;
-                int y = lineY - scrollY;
-                int x = screenX - scrollX;
-                if(sprite.getScreenPositionX() <= x && sprite.getScreenPositionX()+spriteWidth-1 >= x) { // the vertical line intersects the sprite
-                    if(sprite.getScreenPositionY() <= y && sprite.getScreenPositionY() +spriteHeight-1 >= y) { // the scan line intersects the sprite
-                        int localSpriteX = x - sprite.getScreenPositionX();
-                        int localSpriteY = y - sprite.getScreenPositionY();
-                        if(sprite.isFlippedOnX()) {
-                            localSpriteX = spriteWidth-1-localSpriteX;
-                        }
-                        if(sprite.isFlippedOnY()) {
-                            localSpriteY = spriteHeight-1-localSpriteY;
-                        }
-                        color = getColorForSprite(sprite.getPatternNumber(), localSpriteX, localSpriteY, sprite.getPalette());
-                    }
+                int localX = x - spriteX;
+                if(flipX) {
+                    localX = 7-localX;
                 }
-                if(color >>> 24 > 0) { // if alpha > 0, draw the color
-                    pixels[screenX + lineY * WIDTH] = color;
+                int colorIndex = decodedTiles[rowStart+localX];
+                if(colorIndex == 0) // transparent
+                    continue;
+                lineSpritePixels[x] = true;
+                if(behindBackground && lineBackgroundColors[x] != 0)
+                    continue;
+                pixels[lineStart+x] = palette[colorIndex];
+            }
+        }
+    }
+
+    /**
+     * Fills {@link #lineSprites} with the sprites intersecting the current line, highest priority first: lowest X
+     * position, then lowest OAM index
+     * @return
+     *          The number of sprites found, at most {@link #MAX_SPRITES_PER_LINE}
+     */
+    private int selectLineSprites() {
+        int count = 0;
+        for (int offset = 0; offset < oam.length && count < MAX_SPRITES_PER_LINE; offset += 4) {
+            int localY = lineY - ((oam[offset] & 0xFF) - 16);
+            if(localY >= 0 && localY < currentSpriteHeight) {
+                // insertion sort on X, equal positions keep the OAM order
+                int spriteX = oam[offset+1] & 0xFF;
+                int i = count;
+                while(i > 0 && (oam[lineSprites[i-1]+1] & 0xFF) > spriteX) {
+                    lineSprites[i] = lineSprites[i-1];
+                    i--;
                 }
+                lineSprites[i] = offset;
+                count++;
             }
         }
+        return count;
     }
 
-    private int getColorForSprite(int patternNumber, int localSpriteX, int localSpriteY, Palettes palette) {
-        int startAddress = patternNumber*16;
-        int byteIndex = localSpriteY*2;
-        localSpriteX = 7 - localSpriteX;
-        int low = read(ADDR_SPRITE_PATTERN_TABLE_START+startAddress+byteIndex) & 0xFF;
-        int high = read(ADDR_SPRITE_PATTERN_TABLE_START+startAddress+byteIndex+1) & 0xFF;
-        int colorIndex = ((low&0xFF) & (1 << (localSpriteX))) >> (localSpriteX) | (((high&0xFF) & (1 << (localSpriteX))) >> (localSpriteX)) <<1;
-        if(colorIndex == 0)
-            return 0x0;
-        if(palette == Palettes.OBJ0PAL) {
-            return obj0Palette[colorIndex];
-        } else {
-            return obj1Palette[colorIndex];
+    /**
+     * Writes the video memory, the registers, the position of the LCD in the frame and the current frame, as the index of
+     * the shade of each pixel. The next mode change is saved with the scheduler
+     * @param buffer
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.put(videoRAM);
+        buffer.put(oam);
+        buffer.put(read(ADDR_LCDC));
+        buffer.put(read(ADDR_STAT));
+        buffer.put(lyc);
+        buffer.put((byte) scrollX);
+        buffer.put((byte) scrollY);
+        buffer.put((byte) windowX);
+        buffer.put((byte) windowY);
+        buffer.put(read(ADDR_BGP));
+        buffer.put(read(ADDR_OBJ0PAL));
+        buffer.put(read(ADDR_OBJ1PAL));
+        buffer.put(oamTransferStart);
+        buffer.putShort((short) lineY);
+        buffer.putShort((short) clockCount);
+        buffer.putShort((short) nextEventClock);
+        buffer.putLong(frameCount);
+        VideoRecorder.packFrame(pixels, backgroundColors, packedPixels);
+        buffer.put(packedPixels);
+    }
+
+    /**
+     * Restores a state written by {@link #saveState(ByteBuffer)}
+     * @param buffer
+     */
+    public void loadState(ByteBuffer buffer) {
+        buffer.get(videoRAM);
+        buffer.get(oam);
+        for (int row = 0; row < TILE_DATA_SIZE/2; row++) {
+            decodeTileRow(row);
         }
+        byte lcdc = buffer.get();
+        // set the display state first, so writing LCDC does not restart the LCD
+        enableDisplay = BitUtils.getBit(lcdc, 7);
+        write(ADDR_LCDC, lcdc);
+        byte stat = buffer.get();
+        write(ADDR_STAT, stat);
+        lyc = buffer.get();
+        scrollX = buffer.get() & 0xFF;
+        scrollY = buffer.get() & 0xFF;
+        windowX = buffer.get() & 0xFF;
+        windowY = buffer.get() & 0xFF;
+        convertByteToPalette(backgroundPalette, buffer.get());
+        convertByteToPalette(obj0Palette, buffer.get());
+        convertByteToPalette(obj1Palette, buffer.get());
+        oamTransferStart = buffer.get();
+        lineY = buffer.getShort();
+        clockCount = buffer.getShort();
+        nextEventClock = buffer.getShort();
+        frameCount = buffer.getLong();
+        modeFlag = (byte) (stat & 0x3);
+        coincidence = BitUtils.getBit(stat, 2);
+        buffer.get(packedPixels);
+        VideoDecoder.unpackFrame(packedPixels, backgroundColors, pixels);
     }
 
+    /**
+     * Number of frames fully drawn since this GPU was created
+     * @return
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * The frame being drawn. It is complete from the start of the V-Blank until the end of the frame, where it is
+     * published to the {@link FrameExchange}. Only safe to use from the emulation thread, other threads should use
+     * {@link #getFrameExchange()}
+     * @return
+     */
     public int[] getPixels() {
         return pixels;
     }
 
-    public void setBuffer(int[] buffer) {
-        this.pixels = buffer;
+    /**
+     * The 4 colors the frames are drawn with, from the lightest to the darkest
+     * @return
+     */
+    public int[] getShades() {
+        return backgroundColors.clone();
+    }
+
+    /**
+     * Gives the complete frames to a consumer running on another thread
+     * @return
+     */
+    public FrameExchange getFrameExchange() {
+        return frameExchange;
+    }
+
+    /**
+     * Replaces the frame exchange, to draw in buffers provided by the consumer
+     * @param frameExchange
+     */
+    public void setFrameExchange(FrameExchange frameExchange) {
+        this.frameExchange = frameExchange;
+        this.pixels = frameExchange.getBackBuffer();
     }
 
     public void linkToMemory(MemoryController memory) {
@@ -0,0 +1,185 @@
+package org.jglrxavpok.jameboy.graphics;
+
+import org.jglrxavpok.jameboy.utils.DeltaEncoding;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the videos written by {@link VideoRecorder}, frame by frame. A video cut short (for instance by a crash) is
+ * read up to its last complete frame
+ */
+public class VideoDecoder implements Closeable {
+
+    private final DataInputStream input;
+    private final int[] shades;
+    private final byte[] frame;
+    private byte[] delta;
+    private long frameIndex;
+
+    public VideoDecoder(File file) throws IOException {
+        input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            int magic = input.readInt();
+            if(magic != VideoRecorder.MAGIC)
+                throw new IOException("Not a video recording: "+file);
+            int version = input.readShort();
+            if(version != VideoRecorder.VERSION)
+                throw new IOException("Unsupported video version: "+version);
+            int width = input.readShort();
+            int height = input.readShort();
+            if(width != GPU.WIDTH || height != GPU.HEIGHT)
+                throw new IOException("Unsupported video size: "+width+"x"+height);
+            shades = new int[4];
+            for (int i = 0; i < shades.length; i++) {
+                shades[i] = input.readInt();
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+        frame = new byte[VideoRecorder.FRAME_SIZE];
+        delta = new byte[DeltaEncoding.getMaxEncodedLength(VideoRecorder.FRAME_SIZE)];
+    }
+
+    /**
+     * Moves to the next frame
+     * @return
+     *          false at the end of the video
+     * @throws IOException
+     */
+    public boolean nextFrame() throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+            if(length > delta.length)
+                throw new IOException("Invalid frame length: "+length);
+            input.readFully(delta, 0, length);
+        } catch (EOFException e) {
+            return false;
+        }
+        DeltaEncoding.apply(delta, 0, length, frame);
+        frameIndex++;
+        return true;
+    }
+
+    /**
+     * The current frame, packed as described in {@link VideoRecorder#FRAME_SIZE}. Only valid until the next call to
+     * {@link #nextFrame()}
+     * @return
+     */
+    public byte[] getPackedFrame() {
+        return frame;
+    }
+
+    /**
+     * Unpacks the current frame to one ARGB color per pixel
+     * @param pixels
+     *          Where to write the pixels, at least {@link GPU#WIDTH}*{@link GPU#HEIGHT} long
+     */
+    public void getPixels(int[] pixels) {
+        unpackFrame(frame, shades, pixels);
+    }
+
+    /**
+     * Unpacks a frame packed by {@link VideoRecorder#packFrame(int[], int[], byte[])}
+     * @param frame
+     * @param shades
+     *          The 4 colors of the frame, from the lightest to the darkest
+     * @param pixels
+     *          Where to write the pixels, at least {@link GPU#WIDTH}*{@link GPU#HEIGHT} long
+     */
+    public static void unpackFrame(byte[] frame, int[] shades, int[] pixels) {
+        for (int i = 0, pixel = 0; i < VideoRecorder.FRAME_SIZE; i++) {
+            int packed = frame[i];
+            pixels[pixel++] = shades[(packed >> 6) & 0b11];
+            pixels[pixel++] = shades[(packed >> 4) & 0b11];
+            pixels[pixel++] = shades[(packed >> 2) & 0b11];
+            pixels[pixel++] = shades[packed & 0b11];
+        }
+    }
+
+    /**
+     * Number of frames read so far, 1 for the first frame
+     * @return
+     */
+    public long getFrameIndex() {
+        return frameIndex;
+    }
+
+    public int[] getShades() {
+        return shades.clone();
+    }
+
+    /**
+     * Creates an image in which the current frame can be copied with {@link #copyTo(BufferedImage)}. It uses 2 bits per
+     * pixel, like the video, so no conversion is needed
+     * @return
+     */
+    public BufferedImage createImage() {
+        byte[] red = new byte[4];
+        byte[] green = new byte[4];
+        byte[] blue = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            red[i] = (byte) (shades[i] >> 16);
+            green[i] = (byte) (shades[i] >> 8);
+            blue[i] = (byte) shades[i];
+        }
+        IndexColorModel colorModel = new IndexColorModel(2, 4, red, green, blue);
+        return new BufferedImage(GPU.WIDTH, GPU.HEIGHT, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+    }
+
+    /**
+     * Copies the current frame to an image created by {@link #createImage()}
+     * @param image
+     */
+    public void copyTo(BufferedImage image) {
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(frame, 0, data, 0, frame.length);
+    }
+
+    /**
+     * Writes each frame of a video to a PNG file: frame00000.png, frame00001.png...
+     * @param video
+     * @param outputFolder
+     *          Created if it does not exist
+     * @return
+     *          The number of frames written
+     * @throws IOException
+     */
+    public static long exportPNGs(File video, File outputFolder) throws IOException {
+        if(!outputFolder.isDirectory() && !outputFolder.mkdirs())
+            throw new IOException("Could not create "+outputFolder);
+        try(VideoDecoder decoder = new VideoDecoder(video)) {
+            BufferedImage image = decoder.createImage();
+            while(decoder.nextFrame()) {
+                decoder.copyTo(image);
+                ImageIO.write(image, "png", new File(outputFolder, String.format("frame%05d.png", decoder.getFrameIndex()-1)));
+            }
+            return decoder.getFrameIndex();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: VideoDecoder <video> <output folder>");
+            System.exit(1);
+        }
+        long frames = exportPNGs(new File(args[0]), new File(args[1]));
+        System.out.println("Exported "+frames+" frames");
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,223 @@
+package org.jglrxavpok.jameboy.graphics;
+
+import org.jglrxavpok.jameboy.utils.DeltaEncoding;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records the frames of the {@link GPU} to a file, losslessly, at full speed.<br/>
+ * The emulation thread only packs each frame to 2 bits per pixel (the index of its shade, {@link #FRAME_SIZE} bytes)
+ * and queues it. A background thread encodes each frame as its difference with the previous one (see
+ * {@link DeltaEncoding}) and streams it to the file. The queue is bounded: if the disk cannot keep up, recording a
+ * frame waits for the writer instead of losing frames.<br/>
+ * File format (big endian): {@link #MAGIC}, {@link #VERSION} (short), width and height (shorts), the 4 shades (ARGB
+ * ints), then for each frame the length of its delta (int) and the delta. Read with {@link VideoDecoder}.
+ */
+public class VideoRecorder implements Closeable {
+
+    public static final int MAGIC = 0x4A425644; // 'JBVD'
+    public static final int VERSION = 1;
+    /**
+     * Size of a packed frame: 4 pixels per byte, the leftmost pixel in the highest bits
+     */
+    public static final int FRAME_SIZE = GPU.WIDTH*GPU.HEIGHT/4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 120;
+    private static final int WRITE_BUFFER_SIZE = 64*1024;
+    /**
+     * Queued after the last frame to stop the writer
+     */
+    private static final byte[] END = new byte[0];
+
+    private final FileChannel channel;
+    private final int[] shades;
+    private final BlockingQueue<byte[]> pendingFrames;
+    private final BlockingQueue<byte[]> freeFrames;
+    private final Thread writer;
+    private volatile IOException writeFailure;
+    private long recordedFrames;
+    private boolean closed;
+
+    /**
+     * @param file
+     *          The file to record to, overwritten if it exists
+     * @param shades
+     *          The 4 colors used by the GPU, from the lightest to the darkest, see {@link GPU#getShades()}
+     * @throws IOException
+     */
+    public VideoRecorder(File file, int[] shades) throws IOException {
+        this(file, shades, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity
+     *          Number of frames that can wait for the writer before recording blocks
+     * @see #VideoRecorder(File, int[])
+     */
+    public VideoRecorder(File file, int[] shades, int queueCapacity) throws IOException {
+        if(shades.length != 4)
+            throw new IllegalArgumentException("Expected 4 shades, got "+shades.length);
+        this.shades = shades.clone();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        pendingFrames = new ArrayBlockingQueue<>(queueCapacity+1);
+        freeFrames = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++) {
+            freeFrames.add(new byte[FRAME_SIZE]);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4+2+2+2+4*4);
+        header.putInt(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) GPU.WIDTH);
+        header.putShort((short) GPU.HEIGHT);
+        for (int shade : this.shades) {
+            header.putInt(shade);
+        }
+        header.flip();
+        write(header);
+
+        writer = new Thread(this::writeFrames, "Video recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a frame. Colors that are not one of the shades are recorded as the lightest one
+     * @param pixels
+     *          The frame, one ARGB color per pixel. Can be reused as soon as this method returns
+     * @throws IOException
+     *          If writing a previous frame failed
+     */
+    public void record(int[] pixels) throws IOException {
+        checkWriter();
+        if(closed)
+            throw new IOException("Recorder is closed");
+        byte[] frame;
+        try {
+            frame = freeFrames.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the writer", e);
+        }
+        packFrame(pixels, shades, frame);
+        pendingFrames.add(frame);
+        recordedFrames++;
+    }
+
+    /**
+     * Packs a frame as described in {@link #FRAME_SIZE}. Colors that are not one of the shades become the lightest one
+     * @param pixels
+     *          The frame, one ARGB color per pixel
+     * @param shades
+     *          The 4 colors of the frame, from the lightest to the darkest
+     * @param frame
+     *          Where to write the packed frame, at least {@link #FRAME_SIZE} long
+     */
+    public static void packFrame(int[] pixels, int[] shades, byte[] frame) {
+        int shade1 = shades[1];
+        int shade2 = shades[2];
+        int shade3 = shades[3];
+        for (int i = 0, pixel = 0; i < FRAME_SIZE; i++) {
+            int packed = 0;
+            for (int j = 0; j < 4; j++) {
+                int color = pixels[pixel++];
+                int index = color == shade1 ? 1 : color == shade2 ? 2 : color == shade3 ? 3 : 0;
+                packed = (packed << 2) | index;
+            }
+            frame[i] = (byte) packed;
+        }
+    }
+
+    /**
+     * Writes the queued frames and closes the file
+     * @throws IOException
+     *          If writing a frame failed
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+        closed = true;
+        pendingFrames.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+        checkWriter();
+    }
+
+    /**
+     * Number of frames given to {@link #record(int[])}, written or not
+     * @return
+     */
+    public long getRecordedFrames() {
+        return recordedFrames;
+    }
+
+    private void checkWriter() throws IOException {
+        IOException failure = writeFailure;
+        if(failure != null)
+            throw new IOException("Failed to write the video", failure);
+    }
+
+    private void writeFrames() {
+        byte[] previous = new byte[FRAME_SIZE];
+        byte[] encoded = new byte[4+DeltaEncoding.getMaxEncodedLength(FRAME_SIZE)];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        try {
+            while(true) {
+                byte[] frame = pendingFrames.take();
+                if(frame == END)
+                    break;
+                // after a failure, frames are still consumed so that the emulation never blocks
+                if(writeFailure == null) {
+                    try {
+                        int length = DeltaEncoding.encode(frame, previous, encoded, 4);
+                        ByteBuffer.wrap(encoded).putInt(0, length-4);
+                        if(buffer.remaining() < length) {
+                            flush(buffer);
+                        }
+                        buffer.put(encoded, 0, length);
+                        // write as soon as the emulation stops sending frames, a crash then loses as few frames as possible
+                        if(pendingFrames.isEmpty()) {
+                            flush(buffer);
+                        }
+                    } catch (IOException e) {
+                        writeFailure = e;
+                    }
+                }
+                // the old previous frame is recycled, the new one is kept for the next delta
+                freeFrames.add(previous);
+                previous = frame;
+            }
+            if(writeFailure == null) {
+                flush(buffer);
+            }
+        } catch (IOException e) {
+            writeFailure = e;
+        } catch (InterruptedException e) {
+            writeFailure = new IOException("Writer interrupted", e);
+        }
+    }
+
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        write(buffer);
+        buffer.clear();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package org.jglrxavpok.jameboy.input;
+
+import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.io.IOHandler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The joypad inputs of a run, to replay it exactly.<br/>
+ * A movie starts either from a save state, or from a core that just loaded the ROM. Only the changes of the buttons are
+ * stored, as records of the number of frames since the previous change (variable length integer, 7 bits per byte)
+ * followed by the new button mask (one byte): a few bytes per button press.<br/>
+ * Inputs are only applied once per frame (see {@link JoypadInput}), so a replay gives the exact same run as the
+ * recording, at any speed.
+ */
+public class InputMovie {
+
+    /**
+     * "JBIM", at the start of every movie file
+     */
+    public static final int MAGIC = 0x4A42494D;
+    public static final int VERSION = 1;
+
+    private final short romChecksum;
+    /**
+     * Save state the movie starts from, null to start just after loading the ROM
+     */
+    private final byte[] startState;
+    private final int startButtons;
+    private byte[] records;
+    private int length;
+    private int changeCount;
+    private long lastChangeFrame;
+    private int lastButtons;
+
+    /**
+     * Creates an empty movie
+     * @param romChecksum
+     *          Global checksum of the ROM the movie is recorded on, to detect replays on another game
+     * @param startState
+     *          Save state the movie starts from, null to start just after loading the ROM
+     * @param startButtons
+     *          Buttons pressed at the start of the movie
+     */
+    public InputMovie(short romChecksum, byte[] startState, int startButtons) {
+        this.romChecksum = romChecksum;
+        this.startState = startState;
+        this.startButtons = startButtons & 0xFF;
+        lastButtons = this.startButtons;
+        records = new byte[256];
+    }
+
+    /**
+     * Starts recording the inputs given to a core, from its current state
+     * @param core
+     *          The core, with a ROM loaded
+     * @param source
+     *          The actual input, for instance the keyboard
+     * @return
+     *          The movie, filled as the core runs. Recording stops when the joypad input of the core is replaced
+     */
+    public static InputMovie startRecording(JameBoy core, JoypadInput source) {
+        InputMovie movie = new InputMovie(core.getCurrentROM().getHeader().getGlobalChecksum(), core.saveState(),
+                core.getIOHandler().getButtons());
+        core.setJoypadInput(movie.record(source, core.getJoypadFrame()));
+        return movie;
+    }
+
+    /**
+     * Starts replaying this movie on a core: restores the start state, if any, then gives the recorded inputs to the
+     * core. Once the last change is replayed, the buttons stay the same
+     * @param core
+     *          The core, with the ROM of the movie loaded. If the movie has no start state, it must not have run yet
+     */
+    public void startReplay(JameBoy core) {
+        IOHandler ioHandler = core.getIOHandler();
+        // before loading the state: a joypad interrupt raised here is overwritten by the saved one
+        ioHandler.setButtons(startButtons);
+        if(startState != null) {
+            core.loadState(startState);
+        }
+        core.setJoypadInput(new Player(core.getJoypadFrame(), records, length, startButtons));
+    }
+
+    /**
+     * Records a change of the buttons
+     * @param frame
+     *          Frame since the start of the movie, not before the previous change
+     * @param buttons
+     *          The new button mask
+     */
+    public void addChange(long frame, int buttons) {
+        if(frame < lastChangeFrame)
+            throw new IllegalArgumentException("Frame "+frame+" is before the last change ("+lastChangeFrame+")");
+        if(length + 11 > records.length) {
+            records = Arrays.copyOf(records, records.length*2);
+        }
+        long delta = frame - lastChangeFrame;
+        while((delta & ~0x7FL) != 0) {
+            records[length++] = (byte) ((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        records[length++] = (byte) delta;
+        records[length++] = (byte) buttons;
+        lastChangeFrame = frame;
+        lastButtons = buttons & 0xFF;
+        changeCount++;
+    }
+
+    /**
+     * @param source
+     *          The actual input
+     * @param startFrame
+     *          Frame of the core at which the movie starts
+     * @return
+     *          An input giving the buttons of 'source' to the core and adding its changes to this movie
+     */
+    private JoypadInput record(JoypadInput source, long startFrame) {
+        return frame -> {
+            int buttons = source.getButtons(frame) & 0xFF;
+            if(buttons != lastButtons) {
+                addChange(frame - startFrame, buttons);
+            }
+            return buttons;
+        };
+    }
+
+    public short getROMChecksum() {
+        return romChecksum;
+    }
+
+    /**
+     * Number of button changes in the movie
+     * @return
+     */
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Frame of the last change, counted from the start of the movie. The buttons stay the same after it
+     * @return
+     */
+    public long getLastChangeFrame() {
+        return lastChangeFrame;
+    }
+
+    public boolean hasStartState() {
+        return startState != null;
+    }
+
+    public void write(File file) throws IOException {
+        try(OutputStream out = new FileOutputStream(file)) {
+            write(out);
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream output = new DataOutputStream(out);
+        output.writeInt(MAGIC);
+        output.writeShort(VERSION);
+        output.writeShort(romChecksum);
+        output.writeByte(startButtons);
+        if(startState != null) {
+            output.writeInt(startState.length);
+            output.write(startState);
+        } else {
+            output.writeInt(-1);
+        }
+        output.writeInt(changeCount);
+        output.writeInt(length);
+        output.write(records, 0, length);
+        output.flush();
+    }
+
+    public static InputMovie read(File file) throws IOException {
+        try(InputStream in = new FileInputStream(file)) {
+            return read(in);
+        }
+    }
+
+    public static InputMovie read(InputStream in) throws IOException {
+        DataInputStream input = new DataInputStream(in);
+        if(input.readInt() != MAGIC)
+            throw new IOException("Not an input movie");
+        int version = input.readShort();
+        if(version != VERSION)
+            throw new IOException("Unsupported input movie version: "+version);
+        short romChecksum = input.readShort();
+        int startButtons = input.readUnsignedByte();
+        byte[] startState = null;
+        int stateLength = input.readInt();
+        if(stateLength >= 0) {
+            startState = new byte[stateLength];
+            input.readFully(startState);
+        }
+        InputMovie movie = new InputMovie(romChecksum, startState, startButtons);
+        int changeCount = input.readInt();
+        int length = input.readInt();
+        byte[] records = new byte[Math.max(length, 256)];
+        input.readFully(records, 0, length);
+
+        // decoded once to know the last change, and to catch corrupted files
+        Player player = new Player(0, records, length, startButtons);
+        for (int i = 0; i < changeCount; i++) {
+            if(!player.hasNext)
+                throw new IOException("Input movie is truncated");
+            movie.lastChangeFrame = player.nextFrame;
+            movie.lastButtons = player.nextButtons;
+            player.hasNext = player.nextChange();
+        }
+        movie.records = records;
+        movie.length = length;
+        movie.changeCount = changeCount;
+        return movie;
+    }
+
+    private static class Player implements JoypadInput {
+
+        private final long startFrame;
+        private final byte[] data;
+        private final int end;
+        private int position;
+        private int buttons;
+        private boolean hasNext;
+        private long nextFrame;
+        private int nextButtons;
+
+        private Player(long startFrame, byte[] data, int end, int startButtons) {
+            this.startFrame = startFrame;
+            this.data = data;
+            this.end = end;
+            buttons = startButtons;
+            nextButtons = startButtons;
+            hasNext = nextChange();
+        }
+
+        @Override
+        public int getButtons(long frame) {
+            long movieFrame = frame - startFrame;
+            while(hasNext && nextFrame <= movieFrame) {
+                buttons = nextButtons;
+                hasNext = nextChange();
+            }
+            return buttons;
+        }
+
+        /**
+         * Decodes the next change into {@link #nextFrame} and {@link #nextButtons}
+         * @return
+         *          false if there is no more change
+         */
+        private boolean nextChange() {
+            long delta = 0;
+            int shift = 0;
+            byte value;
+            do {
+                if(position >= end)
+                    return false;
+                value = data[position++];
+                delta |= (long) (value & 0x7F) << shift;
+                shift += 7;
+            } while(value < 0);
+            if(position >= end)
+                return false;
+            nextFrame += delta;
+            nextButtons = data[position++] & 0xFF;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.jglrxavpok.jameboy.input;
+
+import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.io.IOHandler;
+
+/**
+ * Source of the joypad state, polled by the core once per frame, every {@link GPU#CYCLES_PER_FRAME} clock cycles
+ * whether the LCD is on or not. Because the state only changes at those exact points of the emulation, the same inputs
+ * always give the same run, see {@link InputMovie}
+ */
+@FunctionalInterface
+public interface JoypadInput {
+
+    /**
+     * @param frame
+     *          The frame starting, see {@link JameBoy#getJoypadFrame()}
+     * @return
+     *          The buttons pressed during this frame, a combination of the BUTTON_* bits of {@link IOHandler}
+     */
+    int getButtons(long frame);
+}
@@ -3,12 +3,14 @@ package org.jglrxavpok.jameboy.input;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Keyboard implements KeyListener {
 
     private static Keyboard instance;
-    private static HashMap<Integer, Boolean> keysDown = new HashMap<Integer, Boolean>();
+    // written by the AWT thread, read by the emulation thread
+    private static Map<Integer, Boolean> keysDown = new ConcurrentHashMap<>();
 
     private static Keyboard getInstance() {
         if (instance == null)
@@ -0,0 +1,33 @@
+package org.jglrxavpok.jameboy.input;
+
+import org.jglrxavpok.jameboy.io.IOHandler;
+
+import java.awt.event.KeyEvent;
+
+/**
+ * Joypad controlled with the keyboard: arrows, A for B, S for A, Enter for Start and Backspace for Select
+ */
+public class KeyboardJoypad implements JoypadInput {
+
+    @Override
+    public int getButtons(long frame) {
+        int buttons = 0;
+        if(Keyboard.isKeyDown(KeyEvent.VK_RIGHT))
+            buttons |= IOHandler.BUTTON_RIGHT;
+        if(Keyboard.isKeyDown(KeyEvent.VK_LEFT))
+            buttons |= IOHandler.BUTTON_LEFT;
+        if(Keyboard.isKeyDown(KeyEvent.VK_UP))
+            buttons |= IOHandler.BUTTON_UP;
+        if(Keyboard.isKeyDown(KeyEvent.VK_DOWN))
+            buttons |= IOHandler.BUTTON_DOWN;
+        if(Keyboard.isKeyDown(KeyEvent.VK_S))
+            buttons |= IOHandler.BUTTON_A;
+        if(Keyboard.isKeyDown(KeyEvent.VK_A))
+            buttons |= IOHandler.BUTTON_B;
+        if(Keyboard.isKeyDown(KeyEvent.VK_BACK_SPACE))
+            buttons |= IOHandler.BUTTON_SELECT;
+        if(Keyboard.isKeyDown(KeyEvent.VK_ENTER))
+            buttons |= IOHandler.BUTTON_START;
+        return buttons;
+    }
+}
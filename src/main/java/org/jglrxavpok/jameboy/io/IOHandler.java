@@ -5,9 +5,23 @@ import org.jglrxavpok.jameboy.memory.Interrupts;
 import org.jglrxavpok.jameboy.memory.MemoryController;
 import org.jglrxavpok.jameboy.utils.BitUtils;
 
+import java.nio.ByteBuffer;
+
 public class IOHandler {
 
     public static final int ADDR_JOYPAD = 0xFF00;
+    /**
+     * Bits of the button masks used by {@link #getButtons()} and {@link #setButtons(int)}: directions in the low nibble,
+     * buttons in the high nibble, in the order of the joypad register
+     */
+    public static final int BUTTON_RIGHT = 1;
+    public static final int BUTTON_LEFT = 1 << 1;
+    public static final int BUTTON_UP = 1 << 2;
+    public static final int BUTTON_DOWN = 1 << 3;
+    public static final int BUTTON_A = 1 << 4;
+    public static final int BUTTON_B = 1 << 5;
+    public static final int BUTTON_SELECT = 1 << 6;
+    public static final int BUTTON_START = 1 << 7;
     private final MemoryController memory;
     private IOJoypadSelection selection = IOJoypadSelection.NONE;
     private boolean leftPressed;
@@ -146,6 +160,62 @@ public class IOHandler {
         return leftPressed;
     }
 
+    /**
+     * The buttons currently pressed
+     * @return
+     *          A combination of the BUTTON_* bits
+     */
+    public int getButtons() {
+        int buttons = 0;
+        if(rightPressed)
+            buttons |= BUTTON_RIGHT;
+        if(leftPressed)
+            buttons |= BUTTON_LEFT;
+        if(upPressed)
+            buttons |= BUTTON_UP;
+        if(downPressed)
+            buttons |= BUTTON_DOWN;
+        if(aPressed)
+            buttons |= BUTTON_A;
+        if(bPressed)
+            buttons |= BUTTON_B;
+        if(selectPressed)
+            buttons |= BUTTON_SELECT;
+        if(startPressed)
+            buttons |= BUTTON_START;
+        return buttons;
+    }
+
+    /**
+     * Presses the given buttons and releases the others. Raises the joypad interrupt like the individual setters
+     * @param buttons
+     *          A combination of the BUTTON_* bits
+     */
+    public void setButtons(int buttons) {
+        setRightPressed((buttons & BUTTON_RIGHT) != 0);
+        setLeftPressed((buttons & BUTTON_LEFT) != 0);
+        setUpPressed((buttons & BUTTON_UP) != 0);
+        setDownPressed((buttons & BUTTON_DOWN) != 0);
+        setAPressed((buttons & BUTTON_A) != 0);
+        setBPressed((buttons & BUTTON_B) != 0);
+        setSelectPressed((buttons & BUTTON_SELECT) != 0);
+        setStartPressed((buttons & BUTTON_START) != 0);
+    }
+
+    /**
+     * Writes the joypad register. The state of the buttons is left out, it comes from the user
+     * @param buffer
+     */
+    public void saveState(ByteBuffer buffer) {
+        buffer.put((byte) selection.ordinal());
+        buffer.put(joypadTop);
+    }
+
+    public void loadState(ByteBuffer buffer) {
+        selection = IOJoypadSelection.values()[buffer.get()];
+        joypadTop = buffer.get();
+    }
+
     private enum IOJoypadSelection {
         DIRECTIONS, NONE, BUTTONS
     }
@@ -7,14 +7,37 @@ import org.jglrxavpok.jameboy.io.IOHandler;
 import org.jglrxavpok.jameboy.utils.BitUtils;
 
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 
+/**
+ * Base of all memory controllers.<br/>
+ * Plain memory (ROM banks, work RAM, cartridge RAM) is accessed through a page table: the address space is split in
+ * 256 pages of {@link #PAGE_SIZE} bytes, each one pointing to a slice of a backing array, or of a byte buffer without
+ * accessible array (ROM or save file mapped in memory). Pages without backing storage (I/O registers, video memory, MBC
+ * registers) go through {@link #readUnmapped(int)} and {@link #writeUnmapped(int, byte)}.
+ * Memory bank controllers switch banks by remapping pages with {@link #mapPages(int, int, byte[], int, boolean)}.
+ */
 public class BaseMemoryController implements MemoryController {
 
     public static final int ADDR_INTERRUPT_FLAG = 0xFF0F;
     public static final int ADDR_INTERRUPT_ENABLE = 0xFFFF;
-    private final SoundController soundController;
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    public static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PAGE_COUNT = 0x10000 >> PAGE_SHIFT;
+
+    private SoundController soundController;
+    private final byte[][] readPages = new byte[PAGE_COUNT][];
+    private final int[] readPageOffsets = new int[PAGE_COUNT];
+    private final byte[][] writePages = new byte[PAGE_COUNT][];
+    private final int[] writePageOffsets = new int[PAGE_COUNT];
+    /**
+     * Pages backed by a byte buffer without accessible array, only checked when there is no array for the page
+     */
+    private final ByteBuffer[] readBufferPages = new ByteBuffer[PAGE_COUNT];
+    private final ByteBuffer[] writeBufferPages = new ByteBuffer[PAGE_COUNT];
     private IOHandler ioHandler;
-    private ByteBuffer internal8kbRAM = ByteBuffer.allocate(0xE000 - 0xC000 +1);
+    private ByteBuffer internal8kbRAM = ByteBuffer.allocate(0xE000 - 0xC000);
     private ByteBuffer highRAM = ByteBuffer.allocate(0xFFFF - 0xFF80 +1);
     private ByteBuffer empty = ByteBuffer.allocate(0xFF7F - 0xFF4C +1);
     private GPU gpu;
@@ -25,11 +48,117 @@ public class BaseMemoryController implements MemoryController {
     public BaseMemoryController() {
         ioHandler = new IOHandler(this);
         soundController = new SoundController();
+
+        mapPages(0xC000, 0x2000, internal8kbRAM.array(), 0, true);
+        mapPages(0xE000, 0xFE00-0xE000, internal8kbRAM.array(), 0, true); // echo of internal RAM
+    }
+
+    /**
+     * Maps a range of addresses to a backing array. Pages that would not fit entirely inside the array are left
+     * unmapped, accesses to them go through the slow path.
+     * @param startAddress
+     *          First address of the range, must be aligned on a page
+     * @param length
+     *          Length of the range in bytes, must be a multiple of the page size
+     * @param backing
+     *          The array holding the contents
+     * @param offset
+     *          Index inside the array corresponding to startAddress
+     * @param writable
+     *          If false, only reads are mapped; writes go through {@link #writeUnmapped(int, byte)}
+     */
+    protected final void mapPages(int startAddress, int length, byte[] backing, int offset, boolean writable) {
+        int firstPage = startAddress >> PAGE_SHIFT;
+        int pageCount = length >> PAGE_SHIFT;
+        for (int i = 0; i < pageCount; i++) {
+            int page = firstPage + i;
+            int pageOffset = offset + (i << PAGE_SHIFT);
+            readBufferPages[page] = null;
+            writeBufferPages[page] = null;
+            if(backing == null || pageOffset < 0 || pageOffset + PAGE_SIZE > backing.length) {
+                readPages[page] = null;
+                writePages[page] = null;
+                continue;
+            }
+            readPages[page] = backing;
+            readPageOffsets[page] = pageOffset;
+            writePages[page] = writable ? backing : null;
+            writePageOffsets[page] = pageOffset;
+        }
+    }
+
+    /**
+     * Maps a range of addresses to a byte buffer. Buffers backed by an accessible array are mapped to the array
+     * directly, other buffers (direct or read-only) are accessed through absolute get/put, still without going through
+     * the slow path.
+     * @see #mapPages(int, int, byte[], int, boolean)
+     */
+    protected final void mapPages(int startAddress, int length, ByteBuffer backing, int offset, boolean writable) {
+        if(backing.hasArray()) {
+            mapPages(startAddress, length, backing.array(), backing.arrayOffset() + offset, writable);
+            return;
+        }
+        unmapPages(startAddress, length);
+        writable &= !backing.isReadOnly();
+        int firstPage = startAddress >> PAGE_SHIFT;
+        int pageCount = length >> PAGE_SHIFT;
+        for (int i = 0; i < pageCount; i++) {
+            int page = firstPage + i;
+            int pageOffset = offset + (i << PAGE_SHIFT);
+            if(pageOffset < 0 || pageOffset + PAGE_SIZE > backing.limit())
+                continue;
+            readBufferPages[page] = backing;
+            readPageOffsets[page] = pageOffset;
+            if(writable) {
+                writeBufferPages[page] = backing;
+                writePageOffsets[page] = pageOffset;
+            }
+        }
+    }
+
+    /**
+     * Removes the mapping for a range of addresses, accesses to them will go through the slow path
+     */
+    protected final void unmapPages(int startAddress, int length) {
+        mapPages(startAddress, length, (byte[]) null, 0, false);
     }
 
     @Override
     public void write(int index, byte value) {
-        if(index == 0xFF00) {
+        index &= 0xFFFF;
+        int page = index >>> PAGE_SHIFT;
+        byte[] backing = writePages[page];
+        if(backing != null) {
+            backing[writePageOffsets[page] + (index & PAGE_MASK)] = value;
+        } else if(writeBufferPages[page] != null) {
+            writeBufferPages[page].put(writePageOffsets[page] + (index & PAGE_MASK), value);
+        } else {
+            writeUnmapped(index, value);
+        }
+    }
+
+    @Override
+    public byte read(int index) {
+        index &= 0xFFFF;
+        int page = index >>> PAGE_SHIFT;
+        byte[] backing = readPages[page];
+        if(backing != null) {
+            return backing[readPageOffsets[page] + (index & PAGE_MASK)];
+        }
+        ByteBuffer buffer = readBufferPages[page];
+        if(buffer != null) {
+            return buffer.get(readPageOffsets[page] + (index & PAGE_MASK));
+        }
+        return readUnmapped(index);
+    }
+
+    /**
+     * Slow path for writes to addresses without any page mapped
+     */
+    protected void writeUnmapped(int index, byte value) {
+        if(index >= 0xFF80 && index < 0xFFFF) {
+            highRAM.put(index - 0xFF80, value);
+        } else if(index == 0xFF00) {
             ioHandler.write(index, value);
         } else if(index >= Z80Timer.ADDR_DIV_REGISTER && index <= Z80Timer.ADDR_TIMER_CONTROL) {
             timer.write(index, value);
@@ -37,10 +166,8 @@ public class BaseMemoryController implements MemoryController {
             interruptEnable = value;
         } else if(index == ADDR_INTERRUPT_FLAG) {
             interruptFlags = value;
-        } else if(index >= 0xC000 && index < 0xE000) {
-            internal8kbRAM.put(index - 0xC000, value);
-        } else if(index >= 0xE000 && index < 0xFE00) {
-            internal8kbRAM.put(index - 0xE000, value);
+        } else if(index >= 0xC000 && index < 0xFE00) {
+            internal8kbRAM.put(index & 0x1FFF, value);
         } else if(index == GPU.ADDR_OAM_DMA_TRANSFER) {
             int sourceStart = (value & 0xFF) * 0x100;
             int length = GPU.ADDR_OAM_END-GPU.ADDR_OAM_START;
@@ -51,8 +178,6 @@ public class BaseMemoryController implements MemoryController {
             gpu.write(index, value);
         } else if(index >= 0xFF4C && index < 0xFF7F) {
             empty.put(index - 0xFF4C, value);
-        } else if(index >= 0xFF80 && index < 0xFFFF) {
-            highRAM.put(index - 0xFF80, value);
         } else if(soundController.isValid(index)) {
             soundController.write(index, value);
         } else {
@@ -60,9 +185,14 @@ public class BaseMemoryController implements MemoryController {
         }
     }
 
-    @Override
-    public byte read(int index) {
-        if(index == 0xFF00) {
+    /**
+     * Slow path for reads to addresses without any page mapped
+     */
+    protected byte readUnmapped(int index) {
+        if(index >= 0xFF80 && index < 0xFFFF) {
+            return highRAM.get(index - 0xFF80);
+        }
+        else if(index == 0xFF00) {
             return ioHandler.read(index);
         }
         else if(index >= Z80Timer.ADDR_DIV_REGISTER && index <= Z80Timer.ADDR_TIMER_CONTROL) {
@@ -74,18 +204,12 @@ public class BaseMemoryController implements MemoryController {
         else if(index == ADDR_INTERRUPT_FLAG) {
             return interruptFlags;
         }
-        else if(index >= 0xC000 && index <= 0xE000) {
-            return internal8kbRAM.get(index - 0xC000);
-        }
-        else if(index >= 0xE000 && index <= 0xFE00) {
-            return internal8kbRAM.get(index - 0xE000);
+        else if(index >= 0xC000 && index < 0xFE00) {
+            return internal8kbRAM.get(index & 0x1FFF);
         }
         else if(index >= 0xFF4C && index <= 0xFF7F) {
             return empty.get(index - 0xFF4C);
         }
-        else if(index >= 0xFF80 && index < 0xFFFF) {
-            return highRAM.get(index - 0xFF80);
-        }
         else if(gpu.isValidGPUAddress(index)) {
             return gpu.read(index);
         }
@@ -112,20 +236,22 @@ public class BaseMemoryController implements MemoryController {
 
     @Override
     public void interrupt(Interrupts interrupt) {
-        byte flag = read(ADDR_INTERRUPT_FLAG);
-        flag |= 1<<interrupt.ordinal();
-        write(ADDR_INTERRUPT_FLAG, flag);
+        interruptFlags |= 1<<interrupt.ordinal();
     }
 
     @Override
     public boolean isInterruptOn(Interrupts interrupt) {
-        return BitUtils.getBit(read(ADDR_INTERRUPT_ENABLE) & 0xFF, interrupt.ordinal())
-                && BitUtils.getBit(read(ADDR_INTERRUPT_FLAG) & 0xFF, interrupt.ordinal());
+        return BitUtils.getBit(interruptEnable & interruptFlags & 0xFF, interrupt.ordinal());
     }
 
     @Override
     public void resetInterrupt(Interrupts interrupt) {
-        write(ADDR_INTERRUPT_FLAG, (byte) (interruptFlags ^ (1<<interrupt.ordinal())));
+        interruptFlags ^= 1<<interrupt.ordinal();
+    }
+
+    @Override
+    public boolean hasPendingInterrupt() {
+        return (interruptEnable & interruptFlags & 0x1F) != 0;
     }
 
     @Override
@@ -138,7 +264,47 @@ public class BaseMemoryController implements MemoryController {
         this.timer = timer;
     }
 
+    @Override
+    public void setSoundController(SoundController soundController) {
+        this.soundController = soundController;
+    }
+
     public Z80Timer getTimer() {
         return timer;
     }
+
+    @Override
+    public void flushSaveRAM() {
+        // no external RAM
+    }
+
+    /**
+     * Forces the changes to a cartridge RAM mapped on a save file to the disk. Does nothing for RAM held in memory
+     * @param ram
+     */
+    protected static void flush(ByteBuffer ram) {
+        if(ram instanceof MappedByteBuffer) {
+            ((MappedByteBuffer) ram).force();
+        }
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        BitUtils.putContents(buffer, internal8kbRAM);
+        BitUtils.putContents(buffer, highRAM);
+        BitUtils.putContents(buffer, empty);
+        buffer.put(interruptFlags);
+        buffer.put(interruptEnable);
+        ioHandler.saveState(buffer);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        BitUtils.getContents(buffer, internal8kbRAM);
+        BitUtils.getContents(buffer, highRAM);
+        BitUtils.getContents(buffer, empty);
+        interruptFlags = buffer.get();
+        interruptEnable = buffer.get();
+        ioHandler.loadState(buffer);
+    }
 }
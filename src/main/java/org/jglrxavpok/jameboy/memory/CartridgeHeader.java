@@ -15,7 +15,7 @@ public class CartridgeHeader {
      */
     public static final int[] ROM_SIZES = new int[0x55];
     static {
-        for (int i = 0; i < 8; i++) {
+        for (int i = 0; i <= 8; i++) {
             ROM_SIZES[i] = 32 << i;
         }
 
@@ -27,7 +27,7 @@ public class CartridgeHeader {
     /**
      * RAM sizes in kilobytes
      */
-    public static final int[] RAM_SIZES = new int[] { 0, 2, 8, 32 };
+    public static final int[] RAM_SIZES = new int[] { 0, 2, 8, 32, 128, 64 };
 
     private final ByteBuffer entryPoint;
     private final ByteBuffer logo;
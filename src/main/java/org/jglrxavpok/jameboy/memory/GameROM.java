@@ -1,16 +1,114 @@
 package org.jglrxavpok.jameboy.memory;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
 
 public class GameROM {
+
+    /**
+     * Read-only mappings of the ROM files currently loaded, by canonical path. Shared by every core of the process.<br/>
+     * The mappings are only weakly referenced: each ROM holds its mapping, which is unmapped by the garbage collector
+     * once no ROM mapped from that file is left. Guarded by the class lock
+     */
+    private static final Map<String, MappedFileReference> mappedFiles = new HashMap<>();
+    /**
+     * Receives the references of {@link #mappedFiles} once their mapping has been collected, to drop their entries
+     */
+    private static final ReferenceQueue<MappedByteBuffer> releasedFiles = new ReferenceQueue<>();
+
     private final ByteBuffer data;
     private final CartridgeHeader header;
+    private final File saveFile;
+    /**
+     * Mapping the data is read from, kept so that the mapping lives as long as this ROM. Null if the ROM was not
+     * loaded with {@link #map(File, File)}
+     */
+    private final MappedByteBuffer mappedFile;
 
     public GameROM(ByteBuffer data) {
+        this(data, null);
+    }
+
+    /**
+     * @param data
+     * @param saveFile
+     *          File holding the battery-backed RAM of the cartridge, created if needed. Can be null, in which case the
+     *          RAM is lost when the emulator is closed
+     */
+    public GameROM(ByteBuffer data, File saveFile) {
+        this(data, saveFile, null);
+    }
+
+    private GameROM(ByteBuffer data, File saveFile, MappedByteBuffer mappedFile) {
         this.data = data;
+        this.saveFile = saveFile;
+        this.mappedFile = mappedFile;
         header = loadHeader();
     }
 
+    /**
+     * Loads a ROM by mapping its file in memory, read-only. The file is mapped only once while ROMs loaded from it are
+     * alive: all of them read the same pages, straight from the OS page cache. The mapping is released when the last
+     * of them is garbage collected, a later call maps the file again
+     * @param romFile
+     * @param saveFile
+     *          File holding the battery-backed RAM of the cartridge, see {@link #GameROM(ByteBuffer, File)}
+     * @return
+     * @throws IOException
+     */
+    public static GameROM map(File romFile, File saveFile) throws IOException {
+        MappedByteBuffer mapped = getMappedFile(romFile.getCanonicalPath());
+        // each ROM gets its own position and limit over the shared contents
+        return new GameROM(mapped.duplicate(), saveFile, mapped);
+    }
+
+    private static synchronized MappedByteBuffer getMappedFile(String path) throws IOException {
+        MappedFileReference released;
+        while((released = (MappedFileReference) releasedFiles.poll()) != null) {
+            // the file may have been mapped again since
+            mappedFiles.remove(released.path, released);
+        }
+
+        MappedFileReference reference = mappedFiles.get(path);
+        MappedByteBuffer mapped = reference == null ? null : reference.get();
+        if(mapped == null) {
+            try(FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            mappedFiles.put(path, new MappedFileReference(path, mapped));
+        }
+        return mapped;
+    }
+
+    /**
+     * Loads a ROM without any save file
+     * @see #map(File, File)
+     */
+    public static GameROM map(File romFile) throws IOException {
+        return map(romFile, null);
+    }
+
+    /**
+     * The '.sav' file next to the given ROM file
+     * @param romFile
+     * @return
+     */
+    public static File getDefaultSaveFile(File romFile) {
+        String name = romFile.getName();
+        int extensionStart = name.lastIndexOf('.');
+        if(extensionStart > 0)
+            name = name.substring(0, extensionStart);
+        return new File(romFile.getAbsoluteFile().getParentFile(), name+".sav");
+    }
+
     private CartridgeHeader loadHeader() {
         data.mark();
         data.position(CartridgeHeader.HEADER_START);
@@ -28,4 +126,18 @@ public class GameROM {
     public ByteBuffer getData() {
         return data;
     }
+
+    public File getSaveFile() {
+        return saveFile;
+    }
+
+    private static class MappedFileReference extends WeakReference<MappedByteBuffer> {
+
+        private final String path;
+
+        private MappedFileReference(String path, MappedByteBuffer mapped) {
+            super(mapped, releasedFiles);
+            this.path = path;
+        }
+    }
 }
@@ -1,5 +1,7 @@
 package org.jglrxavpok.jameboy.memory;
 
+import org.jglrxavpok.jameboy.utils.BitUtils;
+
 import java.nio.ByteBuffer;
 
 public class MBC1 extends BaseMemoryController {
@@ -22,6 +24,11 @@ public class MBC1 extends BaseMemoryController {
                 ramBankCount = 4;
                 break;
 
+            case 8:
+            case 2:
+                ramBankCount = 1;
+                break;
+
             case 0:
                 ramBankCount = 0;
                 break;
@@ -85,6 +92,7 @@ public class MBC1 extends BaseMemoryController {
         this.ram = ram;
         inRamBankingMode = true;
         currentROMBank = 1;
+        mapPages(0x0000, 0x4000, rom, 0, false);
         updateCurrentROMBank();
         System.out.println("RAM size: "+ram.limit());
     }
@@ -114,9 +122,10 @@ public class MBC1 extends BaseMemoryController {
     }
 
     @Override
-    public void write(int index, byte value) {
+    protected void writeUnmapped(int index, byte value) {
         if(ramBankCount > 0 && index >= 0x0000 && index <= 0x1FFF) {
             enableRAM = (value & 0b00001111) == (byte)0xA;
+            updateRAMMapping();
         } else if(index >= 0x2000 && index <= 0x3FFF) {
             currentROMBank = value & 0x1F;
             if((value & 0xF) == 0)
@@ -124,15 +133,16 @@ public class MBC1 extends BaseMemoryController {
             updateCurrentROMBank();
         } else if(index >= 0x4000 && index <= 0x5FFF) {
             currentRAMBank = value & 0x03;
+            updateRAMMapping();
         } else if(index >= 0x6000 && index <= 0x7FFF) {
             inRamBankingMode = value == 0x1;
+            updateRAMMapping();
         } else if(enableRAM && index >= 0xA000 && index <= 0xBFFF && ramBankCount > 0) {
-            int effectiveRAMBank = 0;
-            if(inRamBankingMode)
-                effectiveRAMBank = currentRAMBank;
-            ram.put(effectiveRAMBank * 0x2000 + (index-0xA000), value);
+            int address = getEffectiveRAMBank() * 0x2000 + (index-0xA000);
+            if(address < ram.limit()) // 2KB RAM chips do not fill the bank
+                ram.put(address, value);
         } else {
-            super.write(index, value);
+            super.writeUnmapped(index, value);
         }
     }
 
@@ -140,22 +150,69 @@ public class MBC1 extends BaseMemoryController {
         romOffset = currentROMBank * 0x4000;
         if(currentROMBank == 0)
             romOffset += 0x4000;
+        mapPages(0x4000, 0x4000, rom, romOffset, false);
+    }
+
+    private void updateRAMMapping() {
+        if(enableRAM && ramBankCount > 0) {
+            mapPages(0xA000, 0x2000, ram, getEffectiveRAMBank() * 0x2000, true);
+        } else {
+            unmapPages(0xA000, 0x2000);
+        }
+    }
+
+    private int getEffectiveRAMBank() {
+        if(inRamBankingMode)
+            return currentRAMBank;
+        return 0;
     }
 
     @Override
-    public byte read(int index) {
+    protected byte readUnmapped(int index) {
         if(index >= 0x0000 && index <= 0x3FFF) {
             return rom.get(index & 0x3FFF);
         } else if(index >= 0x4000 && index <= 0x7FFF) {
             return rom.get((index-0x4000) + romOffset);
         } else if(enableRAM && index >= 0xA000 && index <= 0xBFFF && ramBankCount > 0) {
-            int effectiveRAMBank = 0;
-            if(inRamBankingMode)
-                effectiveRAMBank = currentRAMBank;
-            return ram.get((index - 0xA000) + effectiveRAMBank * 0x2000);
+            int address = (index - 0xA000) + getEffectiveRAMBank() * 0x2000;
+            if(address >= ram.limit())
+                return (byte) 0xFF;
+            return ram.get(address);
         } else {
-            return super.read(index);
+            return super.readUnmapped(index);
         }
     }
 
+    @Override
+    public void flushSaveRAM() {
+        flush(ram);
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        int flags = 0;
+        if(enableRAM)
+            flags |= 1;
+        if(inRamBankingMode)
+            flags |= 1 << 1;
+        buffer.put((byte) flags);
+        buffer.put((byte) currentROMBank);
+        buffer.put((byte) currentRAMBank);
+        BitUtils.putContents(buffer, ram);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        byte flags = buffer.get();
+        enableRAM = BitUtils.getBit(flags, 0);
+        inRamBankingMode = BitUtils.getBit(flags, 1);
+        currentROMBank = buffer.get() & 0xFF;
+        currentRAMBank = buffer.get() & 0xFF;
+        BitUtils.getContents(buffer, ram);
+        updateCurrentROMBank();
+        updateRAMMapping();
+    }
+
 }
@@ -0,0 +1,120 @@
+package org.jglrxavpok.jameboy.memory;
+
+import org.jglrxavpok.jameboy.utils.BitUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Up to 16 ROM banks, and 512 half-bytes of RAM inside the controller itself.<br/>
+ * The RAM is echoed over the whole 0xA000-0xBFFF range, and its upper 4 bits always read as 1s: they are stored as 1s,
+ * so the reads can go straight through the page table.
+ */
+public class MBC2 extends BaseMemoryController {
+
+    /**
+     * Size of the built-in RAM, in bytes
+     */
+    public static final int RAM_SIZE = 512;
+
+    private final ByteBuffer rom;
+    private final ByteBuffer ram;
+    private final int romBankCount;
+    private boolean enableRAM;
+    private int currentROMBank;
+
+    public MBC2(ByteBuffer rom, ByteBuffer ram) {
+        this.rom = rom;
+        this.ram = ram;
+        romBankCount = Math.max(1, rom.limit() / 0x4000);
+        for (int i = 0; i < ram.limit(); i++) {
+            ram.put(i, (byte) (ram.get(i) | 0xF0));
+        }
+        currentROMBank = 1;
+        mapPages(0x0000, 0x4000, rom, 0, false);
+        updateCurrentROMBank();
+    }
+
+    public boolean isRAMEnabled() {
+        return enableRAM;
+    }
+
+    public int getCurrentROMBank() {
+        return currentROMBank;
+    }
+
+    @Override
+    protected void writeUnmapped(int index, byte value) {
+        if(index >= 0x0000 && index <= 0x3FFF) {
+            // bit 8 of the address selects the register
+            if((index & 0x100) == 0) {
+                enableRAM = (value & 0x0F) == 0x0A;
+                updateRAMMapping();
+            } else {
+                currentROMBank = value & 0x0F;
+                if(currentROMBank == 0)
+                    currentROMBank = 1;
+                updateCurrentROMBank();
+            }
+        } else if(index >= 0xA000 && index <= 0xBFFF) {
+            if(enableRAM)
+                ram.put(index & (RAM_SIZE - 1), (byte) (value | 0xF0));
+        } else {
+            super.writeUnmapped(index, value);
+        }
+    }
+
+    @Override
+    protected byte readUnmapped(int index) {
+        if(index >= 0x0000 && index <= 0x3FFF) {
+            return rom.get(index);
+        } else if(index >= 0x4000 && index <= 0x7FFF) {
+            return rom.get(getROMOffset() + (index - 0x4000));
+        } else if(index >= 0xA000 && index <= 0xBFFF) {
+            return enableRAM ? ram.get(index & (RAM_SIZE - 1)) : (byte) 0xFF;
+        } else {
+            return super.readUnmapped(index);
+        }
+    }
+
+    private int getROMOffset() {
+        return (currentROMBank % romBankCount) * 0x4000;
+    }
+
+    private void updateCurrentROMBank() {
+        mapPages(0x4000, 0x4000, rom, getROMOffset(), false);
+    }
+
+    private void updateRAMMapping() {
+        for (int address = 0xA000; address < 0xC000; address += RAM_SIZE) {
+            if(enableRAM) {
+                // writes stay on the slow path, to set the upper bits
+                mapPages(address, RAM_SIZE, ram, 0, false);
+            } else {
+                unmapPages(address, RAM_SIZE);
+            }
+        }
+    }
+
+    @Override
+    public void flushSaveRAM() {
+        flush(ram);
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.put((byte) (enableRAM ? 1 : 0));
+        buffer.put((byte) currentROMBank);
+        BitUtils.putContents(buffer, ram);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        enableRAM = buffer.get() != 0;
+        currentROMBank = buffer.get() & 0xFF;
+        BitUtils.getContents(buffer, ram);
+        updateCurrentROMBank();
+        updateRAMMapping();
+    }
+}
@@ -0,0 +1,265 @@
+package org.jglrxavpok.jameboy.memory;
+
+import org.jglrxavpok.jameboy.cpu.Z80Timer;
+import org.jglrxavpok.jameboy.utils.BitUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Up to 128 ROM banks, 4 RAM banks and, on some cartridges, a real time clock.<br/>
+ * The clock is never ticked: it holds its value at a given clock cycle, and only catches up with the cycles elapsed
+ * since, a second at a time, when a game accesses it. It thus follows the emulated time, not the time of the host.
+ */
+public class MBC3 extends BaseMemoryController {
+
+    public static final int RTC_SECONDS = 0x08;
+    public static final int RTC_MINUTES = 0x09;
+    public static final int RTC_HOURS = 0x0A;
+    public static final int RTC_DAY_LOW = 0x0B;
+    /**
+     * Bit 0: bit 8 of the day counter, bit 6: clock halted, bit 7: day counter overflow
+     */
+    public static final int RTC_DAY_HIGH = 0x0C;
+
+    private final ByteBuffer rom;
+    private final ByteBuffer ram;
+    private final boolean hasClock;
+    private final int romBankCount;
+    private boolean enableRAM;
+    private int currentROMBank;
+    /**
+     * RAM bank (0-3) or clock register (0x08-0x0C) mapped at 0xA000
+     */
+    private int currentRAMBank;
+    private byte lastLatchWrite;
+    private Z80Timer clockSource;
+    /**
+     * Cycle at which the clock registers were exact
+     */
+    private long clockCycle;
+    private int seconds;
+    private int minutes;
+    private int hours;
+    private int days;
+    private boolean halted;
+    private boolean dayCarry;
+    /**
+     * Clock registers as visible to the game, copied when latched
+     */
+    private final byte[] latchedClock = new byte[5];
+
+    /**
+     * @param rom
+     * @param ram
+     * @param hasClock
+     *          Whether the cartridge has a real time clock
+     */
+    public MBC3(ByteBuffer rom, ByteBuffer ram, boolean hasClock) {
+        this.rom = rom;
+        this.ram = ram;
+        this.hasClock = hasClock;
+        romBankCount = Math.max(1, rom.limit() / 0x4000);
+        lastLatchWrite = (byte) 0xFF;
+        currentROMBank = 1;
+        mapPages(0x0000, 0x4000, rom, 0, false);
+        updateCurrentROMBank();
+    }
+
+    @Override
+    public void setTimer(Z80Timer timer) {
+        super.setTimer(timer);
+        if(timer != clockSource) {
+            // the clock starts when the cartridge is plugged
+            clockSource = timer;
+            clockCycle = timer.getCycles();
+        }
+    }
+
+    public boolean isRAMEnabled() {
+        return enableRAM;
+    }
+
+    public int getCurrentROMBank() {
+        return currentROMBank;
+    }
+
+    public int getCurrentRAMBank() {
+        return currentRAMBank;
+    }
+
+    @Override
+    protected void writeUnmapped(int index, byte value) {
+        if(index >= 0x0000 && index <= 0x1FFF) {
+            enableRAM = (value & 0x0F) == 0x0A;
+            updateRAMMapping();
+        } else if(index >= 0x2000 && index <= 0x3FFF) {
+            currentROMBank = value & 0x7F;
+            if(currentROMBank == 0)
+                currentROMBank = 1;
+            updateCurrentROMBank();
+        } else if(index >= 0x4000 && index <= 0x5FFF) {
+            currentRAMBank = value & 0x0F;
+            updateRAMMapping();
+        } else if(index >= 0x6000 && index <= 0x7FFF) {
+            if(lastLatchWrite == 0 && value == 1)
+                latchClock();
+            lastLatchWrite = value;
+        } else if(index >= 0xA000 && index <= 0xBFFF) {
+            if(enableRAM && isClockSelected())
+                writeClock(currentRAMBank, value);
+            // the RAM banks are mapped, or missing
+        } else {
+            super.writeUnmapped(index, value);
+        }
+    }
+
+    @Override
+    protected byte readUnmapped(int index) {
+        if(index >= 0x0000 && index <= 0x3FFF) {
+            return rom.get(index);
+        } else if(index >= 0x4000 && index <= 0x7FFF) {
+            return rom.get(getROMOffset() + (index - 0x4000));
+        } else if(index >= 0xA000 && index <= 0xBFFF) {
+            if(enableRAM && isClockSelected())
+                return latchedClock[currentRAMBank - RTC_SECONDS];
+            return (byte) 0xFF;
+        } else {
+            return super.readUnmapped(index);
+        }
+    }
+
+    private boolean isClockSelected() {
+        return hasClock && currentRAMBank >= RTC_SECONDS && currentRAMBank <= RTC_DAY_HIGH;
+    }
+
+    private int getROMOffset() {
+        return (currentROMBank % romBankCount) * 0x4000;
+    }
+
+    private void updateCurrentROMBank() {
+        mapPages(0x4000, 0x4000, rom, getROMOffset(), false);
+    }
+
+    private void updateRAMMapping() {
+        if(enableRAM && currentRAMBank <= 0x03) {
+            mapPages(0xA000, 0x2000, ram, currentRAMBank * 0x2000, true);
+        } else {
+            unmapPages(0xA000, 0x2000);
+        }
+    }
+
+    private long getCycles() {
+        return clockSource != null ? clockSource.getCycles() : 0;
+    }
+
+    /**
+     * Adds the whole seconds elapsed since {@link #clockCycle} to the clock registers
+     */
+    private void updateClock() {
+        long now = getCycles();
+        if(halted) {
+            clockCycle = now;
+            return;
+        }
+        long elapsed = (now - clockCycle) / Z80Timer.CLOCK_SPEED;
+        if(elapsed <= 0)
+            return;
+        clockCycle += elapsed * Z80Timer.CLOCK_SPEED;
+        long total = seconds + elapsed;
+        seconds = (int) (total % 60);
+        total = total / 60 + minutes;
+        minutes = (int) (total % 60);
+        total = total / 60 + hours;
+        hours = (int) (total % 24);
+        total = total / 24 + days;
+        if(total > 0x1FF)
+            dayCarry = true;
+        days = (int) (total & 0x1FF);
+    }
+
+    private void latchClock() {
+        updateClock();
+        latchedClock[0] = (byte) seconds;
+        latchedClock[1] = (byte) minutes;
+        latchedClock[2] = (byte) hours;
+        latchedClock[3] = (byte) days;
+        latchedClock[4] = getDayHigh();
+    }
+
+    private byte getDayHigh() {
+        return (byte) ((days >> 8) | (halted ? 0x40 : 0) | (dayCarry ? 0x80 : 0));
+    }
+
+    private void writeClock(int register, byte value) {
+        updateClock();
+        switch (register) {
+            case RTC_SECONDS:
+                seconds = value & 0x3F;
+                clockCycle = getCycles(); // restarts the current second
+                break;
+
+            case RTC_MINUTES:
+                minutes = value & 0x3F;
+                break;
+
+            case RTC_HOURS:
+                hours = value & 0x1F;
+                break;
+
+            case RTC_DAY_LOW:
+                days = (days & 0x100) | (value & 0xFF);
+                break;
+
+            case RTC_DAY_HIGH:
+                days = (days & 0xFF) | ((value & 0x1) << 8);
+                halted = (value & 0x40) != 0;
+                dayCarry = (value & 0x80) != 0;
+                break;
+        }
+        latchedClock[register - RTC_SECONDS] = register == RTC_DAY_HIGH ? getDayHigh() : value;
+    }
+
+    @Override
+    public void flushSaveRAM() {
+        flush(ram);
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.put((byte) (enableRAM ? 1 : 0));
+        buffer.put((byte) currentROMBank);
+        buffer.put((byte) currentRAMBank);
+        buffer.put(lastLatchWrite);
+        BitUtils.putContents(buffer, ram);
+        buffer.putLong(clockCycle);
+        buffer.put((byte) seconds);
+        buffer.put((byte) minutes);
+        buffer.put((byte) hours);
+        buffer.put((byte) days);
+        buffer.put(getDayHigh());
+        buffer.put(latchedClock);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        enableRAM = buffer.get() != 0;
+        currentROMBank = buffer.get() & 0xFF;
+        currentRAMBank = buffer.get() & 0xFF;
+        lastLatchWrite = buffer.get();
+        BitUtils.getContents(buffer, ram);
+        clockCycle = buffer.getLong();
+        seconds = buffer.get();
+        minutes = buffer.get();
+        hours = buffer.get();
+        days = buffer.get() & 0xFF;
+        byte dayHigh = buffer.get();
+        days |= (dayHigh & 0x1) << 8;
+        halted = (dayHigh & 0x40) != 0;
+        dayCarry = (dayHigh & 0x80) != 0;
+        buffer.get(latchedClock);
+        updateCurrentROMBank();
+        updateRAMMapping();
+    }
+}
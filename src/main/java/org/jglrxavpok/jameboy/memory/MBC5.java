@@ -0,0 +1,134 @@
+package org.jglrxavpok.jameboy.memory;
+
+import org.jglrxavpok.jameboy.utils.BitUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Up to 512 ROM banks and 16 RAM banks. Unlike the MBC1, bank 0 can also be mapped at 0x4000
+ */
+public class MBC5 extends BaseMemoryController {
+
+    private final ByteBuffer rom;
+    private final ByteBuffer ram;
+    private final boolean hasRumble;
+    private final int romBankCount;
+    private boolean enableRAM;
+    private int currentROMBank;
+    private int currentRAMBank;
+    private boolean rumbling;
+
+    /**
+     * @param rom
+     * @param ram
+     * @param hasRumble
+     *          Whether the cartridge has a rumble motor, driven by bit 3 of the RAM bank register
+     */
+    public MBC5(ByteBuffer rom, ByteBuffer ram, boolean hasRumble) {
+        this.rom = rom;
+        this.ram = ram;
+        this.hasRumble = hasRumble;
+        romBankCount = Math.max(1, rom.limit() / 0x4000);
+        currentROMBank = 1;
+        mapPages(0x0000, 0x4000, rom, 0, false);
+        updateCurrentROMBank();
+    }
+
+    public boolean isRAMEnabled() {
+        return enableRAM;
+    }
+
+    public int getCurrentROMBank() {
+        return currentROMBank;
+    }
+
+    public int getCurrentRAMBank() {
+        return currentRAMBank;
+    }
+
+    public boolean isRumbling() {
+        return rumbling;
+    }
+
+    @Override
+    protected void writeUnmapped(int index, byte value) {
+        if(index >= 0x0000 && index <= 0x1FFF) {
+            enableRAM = (value & 0x0F) == 0x0A;
+            updateRAMMapping();
+        } else if(index >= 0x2000 && index <= 0x2FFF) {
+            currentROMBank = (currentROMBank & 0x100) | (value & 0xFF);
+            updateCurrentROMBank();
+        } else if(index >= 0x3000 && index <= 0x3FFF) {
+            currentROMBank = (currentROMBank & 0xFF) | ((value & 0x1) << 8);
+            updateCurrentROMBank();
+        } else if(index >= 0x4000 && index <= 0x5FFF) {
+            if(hasRumble) {
+                rumbling = (value & 0x08) != 0;
+                currentRAMBank = value & 0x07;
+            } else {
+                currentRAMBank = value & 0x0F;
+            }
+            updateRAMMapping();
+        } else if(index >= 0xA000 && index <= 0xBFFF) {
+            // the RAM banks are mapped, or missing
+        } else {
+            super.writeUnmapped(index, value);
+        }
+    }
+
+    @Override
+    protected byte readUnmapped(int index) {
+        if(index >= 0x0000 && index <= 0x3FFF) {
+            return rom.get(index);
+        } else if(index >= 0x4000 && index <= 0x7FFF) {
+            return rom.get(getROMOffset() + (index - 0x4000));
+        } else if(index >= 0xA000 && index <= 0xBFFF) {
+            return (byte) 0xFF;
+        } else {
+            return super.readUnmapped(index);
+        }
+    }
+
+    private int getROMOffset() {
+        return (currentROMBank % romBankCount) * 0x4000;
+    }
+
+    private void updateCurrentROMBank() {
+        mapPages(0x4000, 0x4000, rom, getROMOffset(), false);
+    }
+
+    private void updateRAMMapping() {
+        if(enableRAM) {
+            mapPages(0xA000, 0x2000, ram, currentRAMBank * 0x2000, true);
+        } else {
+            unmapPages(0xA000, 0x2000);
+        }
+    }
+
+    @Override
+    public void flushSaveRAM() {
+        flush(ram);
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        buffer.put((byte) ((enableRAM ? 1 : 0) | (rumbling ? 2 : 0)));
+        buffer.putShort((short) currentROMBank);
+        buffer.put((byte) currentRAMBank);
+        BitUtils.putContents(buffer, ram);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        byte flags = buffer.get();
+        enableRAM = BitUtils.getBit(flags, 0);
+        rumbling = BitUtils.getBit(flags, 1);
+        currentROMBank = buffer.getShort() & 0x1FF;
+        currentRAMBank = buffer.get() & 0xFF;
+        BitUtils.getContents(buffer, ram);
+        updateCurrentROMBank();
+        updateRAMMapping();
+    }
+}
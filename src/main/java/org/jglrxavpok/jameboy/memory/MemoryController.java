@@ -1,9 +1,12 @@
 package org.jglrxavpok.jameboy.memory;
 
+import org.jglrxavpok.jameboy.audio.SoundController;
 import org.jglrxavpok.jameboy.cpu.Z80Timer;
 import org.jglrxavpok.jameboy.graphics.GPU;
 import org.jglrxavpok.jameboy.io.IOHandler;
 
+import java.nio.ByteBuffer;
+
 public interface MemoryController {
 
     void write(int index, byte value);
@@ -18,7 +21,39 @@ public interface MemoryController {
 
     void resetInterrupt(Interrupts interrupt);
 
+    /**
+     * Whether any interrupt is both requested (IF) and enabled (IE), regardless of the CPU's master interrupt flag
+     * @return
+     */
+    boolean hasPendingInterrupt();
+
     IOHandler getIOHandler();
 
     void setTimer(Z80Timer timer);
+
+    /**
+     * Replaces the APU answering to the sound registers, by default one with no scheduler which only holds the
+     * register values
+     * @param soundController
+     */
+    void setSoundController(SoundController soundController);
+
+    /**
+     * Forces the battery-backed RAM of the cartridge to be written to its save file. Not required for the save to
+     * persist, the OS writes it back on its own, only to control when
+     */
+    void flushSaveRAM();
+
+    /**
+     * Writes the contents of the RAM, the registers handled by this controller and the state of the memory bank
+     * controller, if any
+     * @param buffer
+     */
+    void saveState(ByteBuffer buffer);
+
+    /**
+     * Restores a state written by {@link #saveState(ByteBuffer)}
+     * @param buffer
+     */
+    void loadState(ByteBuffer buffer);
 }
@@ -1,6 +1,10 @@
 package org.jglrxavpok.jameboy.memory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -13,9 +17,25 @@ public class MemoryControllers {
     }
 
     public static void initControllers() {
-        registerControllerFactory("ROM ONLY", (romData, romSize, ramSize) -> new NoMBC(romData, ByteBuffer.allocate(ramSize)));
-        registerControllerFactory("MBC1", (romData, romSize, ramSize) -> new MBC1(romSize, ramSize, romData, ByteBuffer.allocate(ramSize))); // TODO: Allow saving to file
-        registerControllerFactory("MBC1+RAM+BATTERY", (romData, romSize, ramSize) -> new MBC1(romSize, ramSize, romData, ByteBuffer.allocate(ramSize))); // TODO: Implement RAM + battery?
+        registerControllerFactory("ROM ONLY", (romData, romSize, ramSize, ram) -> new NoMBC(romData, ram));
+        registerControllerFactory("ROM+RAM", (romData, romSize, ramSize, ram) -> new NoMBC(romData, ram));
+        registerControllerFactory("ROM+RAM+BATTERY", (romData, romSize, ramSize, ram) -> new NoMBC(romData, ram));
+        registerControllerFactory("MBC1", (romData, romSize, ramSize, ram) -> new MBC1(romSize, ramSize, romData, ram));
+        registerControllerFactory("MBC1+RAM", (romData, romSize, ramSize, ram) -> new MBC1(romSize, ramSize, romData, ram));
+        registerControllerFactory("MBC1+RAM+BATTERY", (romData, romSize, ramSize, ram) -> new MBC1(romSize, ramSize, romData, ram));
+        registerControllerFactory("MBC2", (romData, romSize, ramSize, ram) -> new MBC2(romData, ram));
+        registerControllerFactory("MBC2+BATTERY", (romData, romSize, ramSize, ram) -> new MBC2(romData, ram));
+        registerControllerFactory("MBC3", (romData, romSize, ramSize, ram) -> new MBC3(romData, ram, false));
+        registerControllerFactory("MBC3+RAM", (romData, romSize, ramSize, ram) -> new MBC3(romData, ram, false));
+        registerControllerFactory("MBC3+RAM+BATTERY", (romData, romSize, ramSize, ram) -> new MBC3(romData, ram, false));
+        registerControllerFactory("MBC3+TIMER+BATTERY", (romData, romSize, ramSize, ram) -> new MBC3(romData, ram, true));
+        registerControllerFactory("MBC3+TIMER+RAM+BATTERY", (romData, romSize, ramSize, ram) -> new MBC3(romData, ram, true));
+        registerControllerFactory("MBC5", (romData, romSize, ramSize, ram) -> new MBC5(romData, ram, false));
+        registerControllerFactory("MBC5+RAM", (romData, romSize, ramSize, ram) -> new MBC5(romData, ram, false));
+        registerControllerFactory("MBC5+RAM+BATTERY", (romData, romSize, ramSize, ram) -> new MBC5(romData, ram, false));
+        registerControllerFactory("MBC5+RUMBLE", (romData, romSize, ramSize, ram) -> new MBC5(romData, ram, true));
+        registerControllerFactory("MBC5+RUMBLE+RAM", (romData, romSize, ramSize, ram) -> new MBC5(romData, ram, true));
+        registerControllerFactory("MBC5+RUMBLE+RAM+BATTERY", (romData, romSize, ramSize, ram) -> new MBC5(romData, ram, true));
     }
 
     private MemoryControllers() {}
@@ -29,10 +49,45 @@ public class MemoryControllers {
         MemoryControllerFactory factory = factories.get(controllerID);
         if(factory == null)
             throw new UnsupportedOperationException("Controller "+controllerID+"("+rom.getHeader().getCartrigeType()+")"+" is not supported yet");
-        return factory.create(rom.getData(), rom.getHeader().getROMSize(), rom.getHeader().getRAMSize());
+        int ramSize = rom.getHeader().getRAMSize();
+        // the RAM of the MBC2 is inside the controller, the header does not count it
+        int ramBytes = controllerID.startsWith("MBC2") ? MBC2.RAM_SIZE : ramSize*1024;
+        ByteBuffer ram = createRAM(rom, controllerID.endsWith("BATTERY"), ramBytes);
+        return factory.create(rom.getData(), rom.getHeader().getROMSize(), ramSize, ram);
+    }
+
+    /**
+     * Creates the external RAM of a cartridge. The RAM of cartridges with a battery is mapped on the save file of the
+     * ROM, so the OS writes the changes back to the file without any copy, even if the emulator is killed
+     * @param rom
+     * @param battery
+     *          Whether the cartridge has a battery to keep the RAM contents
+     * @param size
+     *          Size in bytes
+     * @return
+     */
+    private static ByteBuffer createRAM(GameROM rom, boolean battery, int size) {
+        if(!battery || rom.getSaveFile() == null || size == 0)
+            return ByteBuffer.allocate(size);
+        try(FileChannel channel = FileChannel.open(rom.getSaveFile().toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the file is extended if needed, and the mapping stays valid once the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not map save file "+rom.getSaveFile(), e);
+        }
     }
 
     public interface MemoryControllerFactory {
-        MemoryController create(ByteBuffer romData, int romSize, int ramSize);
+        /**
+         * @param romData
+         * @param romSize
+         *          Size of the ROM in KB, as given by the cartridge header
+         * @param ramSize
+         *          Size of the external RAM in KB, as given by the cartridge header
+         * @param ram
+         *          The external RAM of the cartridge, already allocated
+         * @return
+         */
+        MemoryController create(ByteBuffer romData, int romSize, int ramSize, ByteBuffer ram);
     }
 }
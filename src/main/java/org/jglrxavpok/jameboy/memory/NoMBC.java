@@ -1,5 +1,7 @@
 package org.jglrxavpok.jameboy.memory;
 
+import org.jglrxavpok.jameboy.utils.BitUtils;
+
 import java.nio.ByteBuffer;
 
 public class NoMBC extends BaseMemoryController {
@@ -10,25 +12,44 @@ public class NoMBC extends BaseMemoryController {
     public NoMBC(ByteBuffer rom, ByteBuffer ram) {
         this.rom = rom;
         this.ram = ram;
+        mapPages(0x0000, 0x8000, rom, 0, false);
+        mapPages(0xA000, 0x2000, ram, 0, true);
     }
 
     @Override
-    public void write(int index, byte value) {
+    protected void writeUnmapped(int index, byte value) {
         if(index >= 0xA000 && index <= 0xBFFF) {
             ram.put(index - 0xA000, value);
         } else {
-            super.write(index, value);
+            super.writeUnmapped(index, value);
         }
     }
 
     @Override
-    public byte read(int index) {
+    protected byte readUnmapped(int index) {
         if(index >= 0x0000 && index <= 0x7FFF) {
             return rom.get(index);
         } else if(index >= 0xA000 && index <= 0xBFFF) {
             return ram.get(index - 0xA000);
         } else {
-            return super.read(index);
+            return super.readUnmapped(index);
         }
     }
+
+    @Override
+    public void flushSaveRAM() {
+        flush(ram);
+    }
+
+    @Override
+    public void saveState(ByteBuffer buffer) {
+        super.saveState(buffer);
+        BitUtils.putContents(buffer, ram);
+    }
+
+    @Override
+    public void loadState(ByteBuffer buffer) {
+        super.loadState(buffer);
+        BitUtils.getContents(buffer, ram);
+    }
 }
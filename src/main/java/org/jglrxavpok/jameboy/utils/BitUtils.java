@@ -48,4 +48,33 @@ public final class BitUtils {
     public static boolean getBit(int value, int index) {
         return (value & (1 << index)) != 0;
     }
+
+    /**
+     * Writes the whole contents of a buffer (from 0 to its capacity) into another, regardless of its position and limit
+     * @param buffer
+     *          The buffer to write to
+     * @param contents
+     *          The buffer to copy
+     */
+    public static void putContents(ByteBuffer buffer, ByteBuffer contents) {
+        ByteBuffer source = contents.duplicate();
+        source.clear();
+        buffer.put(source);
+    }
+
+    /**
+     * Reads the whole contents of a buffer (from 0 to its capacity) written by {@link #putContents(ByteBuffer, ByteBuffer)}
+     * @param buffer
+     *          The buffer to read from
+     * @param contents
+     *          The buffer to fill
+     */
+    public static void getContents(ByteBuffer buffer, ByteBuffer contents) {
+        ByteBuffer destination = contents.duplicate();
+        destination.clear();
+        ByteBuffer source = buffer.slice();
+        source.limit(destination.remaining());
+        destination.put(source);
+        buffer.position(buffer.position() + destination.capacity());
+    }
 }
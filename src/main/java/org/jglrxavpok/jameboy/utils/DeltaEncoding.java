@@ -0,0 +1,118 @@
+package org.jglrxavpok.jameboy.utils;
+
+/**
+ * Stores the difference between two versions of the same data: the two versions are XORed (when little changes, the
+ * result is mostly zeros) and the runs of zeros are run-length encoded.<br/>
+ * A delta is a sequence of blocks: number of unchanged bytes, number of changed bytes, then the changed bytes (XORed).
+ * Both numbers are written 7 bits per byte, the highest bit telling if more bytes follow.
+ */
+public final class DeltaEncoding {
+
+    /**
+     * Minimum length of a run of unchanged bytes to end a block of changed bytes. Shorter runs are cheaper to store
+     * as part of the block than as a new block header
+     */
+    private static final int MIN_UNCHANGED_RUN = 4;
+
+    private DeltaEncoding() {
+    }
+
+    /**
+     * Size of a buffer large enough for any delta between two arrays of the given length
+     * @param length
+     * @return
+     */
+    public static int getMaxEncodedLength(int length) {
+        return length*2+16;
+    }
+
+    /**
+     * Encodes 'newData XOR oldData'
+     * @param newData
+     * @param oldData
+     *          Same length as newData
+     * @param out
+     *          Where the delta is written, at least {@link #getMaxEncodedLength(int)} bytes long
+     * @param offset
+     *          Position in 'out' of the first byte to write
+     * @return
+     *          The position in 'out' after the delta
+     */
+    public static int encode(byte[] newData, byte[] oldData, byte[] out, int offset) {
+        int length = newData.length;
+        int position = offset;
+        int i = 0;
+        while(i < length) {
+            int unchangedStart = i;
+            while(i < length && newData[i] == oldData[i])
+                i++;
+            if(i == length)
+                break;
+            int changedStart = i;
+            while(i < length && !isUnchangedRun(newData, oldData, i))
+                i++;
+            position = writeVarInt(out, changedStart - unchangedStart, position);
+            position = writeVarInt(out, i - changedStart, position);
+            for (int j = changedStart; j < i; j++) {
+                out[position++] = (byte) (newData[j] ^ oldData[j]);
+            }
+        }
+        return position;
+    }
+
+    private static boolean isUnchangedRun(byte[] newData, byte[] oldData, int start) {
+        int end = Math.min(start + MIN_UNCHANGED_RUN, newData.length);
+        for (int i = start; i < end; i++) {
+            if(newData[i] != oldData[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * XORs a delta written by {@link #encode(byte[], byte[], byte[], int)} into the given data, turning one of the two
+     * versions into the other
+     * @param delta
+     * @param offset
+     *          Position of the delta in 'delta'
+     * @param length
+     *          Length of the delta
+     * @param data
+     */
+    public static void apply(byte[] delta, int offset, int length, byte[] data) {
+        int position = offset;
+        int end = offset + length;
+        int index = 0;
+        while(position < end) {
+            int unchanged = 0;
+            int shift = 0;
+            byte value;
+            do {
+                value = delta[position++];
+                unchanged |= (value & 0x7F) << shift;
+                shift += 7;
+            } while(value < 0);
+            int changed = 0;
+            shift = 0;
+            do {
+                value = delta[position++];
+                changed |= (value & 0x7F) << shift;
+                shift += 7;
+            } while(value < 0);
+
+            index += unchanged;
+            for (int i = 0; i < changed; i++) {
+                data[index++] ^= delta[position++];
+            }
+        }
+    }
+
+    private static int writeVarInt(byte[] out, int value, int position) {
+        while((value & ~0x7F) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+}
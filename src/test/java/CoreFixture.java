@@ -0,0 +1,48 @@
+import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.StopCondition;
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.memory.GameROM;
+
+import java.io.File;
+import java.util.EnumSet;
+
+/**
+ * Cores running the test ROMs, shared by the tests working on whole runs
+ */
+public final class CoreFixture {
+
+    private CoreFixture() {
+    }
+
+    /**
+     * @return
+     *          A new core, with cpu_instrs loaded
+     */
+    public static JameBoy createCore() throws Exception {
+        JameBoy core = new JameBoy();
+        core.loadROM(GameROM.map(new File(CoreFixture.class.getResource("/roms/cpu_instrs.gb").toURI())));
+        return core;
+    }
+
+    /**
+     * Parks the CPU in a 'JR $' loop in WRAM with the interrupts disabled, so the tests can drive the hardware
+     * themselves
+     * @param core
+     */
+    public static void parkCPU(JameBoy core) {
+        core.getMemoryController().write(0xC000, (byte) 0x18);
+        core.getMemoryController().write(0xC001, (byte) 0xFE);
+        core.getCPU().hardGoto(0xC000);
+        core.getCPU().forceDisableInterrupts();
+    }
+
+    public static void run(JameBoy core, long cycles) {
+        core.runUntil(cycles, EnumSet.noneOf(StopCondition.class));
+    }
+
+    public static void runFrames(JameBoy core, int count) {
+        for (int i = 0; i < count; i++) {
+            core.runUntil(GPU.CYCLES_PER_FRAME, EnumSet.of(StopCondition.FRAME));
+        }
+    }
+}
@@ -1,5 +1,7 @@
 import org.jglrxavpok.jameboy.CPU;
+import org.jglrxavpok.jameboy.cpu.EventScheduler;
 import org.jglrxavpok.jameboy.memory.BaseMemoryController;
+import org.jglrxavpok.jameboy.memory.Interrupts;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -63,59 +65,59 @@ public class TestCPU {
         // JP NZ,nn
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.Z = true;
+        cpu.setFlag(CPU.FLAG_Z, true);
         byte opcode = (byte) 0xC2;
         controller.setRaw(new byte[] {opcode, lowAddr, highAddr, opcode, lowAddr, highAddr});
         cycles = cpu.doCycle();
         assertNotEquals(fullAddr & 0xFFFF, cpu.PC & 0xFFFF);
         assertEquals(12, cycles);
-        cpu.Z = false;
+        cpu.setFlag(CPU.FLAG_Z, false);
         cpu.doCycle();
         assertEquals(fullAddr & 0xFFFF, cpu.PC & 0xFFFF);
 
         // JP Z,nn
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.Z = false;
+        cpu.setFlag(CPU.FLAG_Z, false);
         opcode = (byte) 0xCA;
         controller.setRaw(new byte[] {opcode, lowAddr, highAddr, opcode, lowAddr, highAddr});
         cycles = cpu.doCycle();
         assertNotEquals(fullAddr & 0xFFFF, cpu.PC & 0xFFFF);
         assertEquals(12, cycles);
-        cpu.Z = true;
+        cpu.setFlag(CPU.FLAG_Z, true);
         cpu.doCycle();
         assertEquals(fullAddr & 0xFFFF, cpu.PC & 0xFFFF);
 
         // JP NC,nn
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.C = true;
+        cpu.setFlag(CPU.FLAG_C, true);
         opcode = (byte) 0xD2;
         controller.setRaw(new byte[] {opcode, lowAddr, highAddr, opcode, lowAddr, highAddr});
         cycles = cpu.doCycle();
         assertNotEquals(fullAddr & 0xFFFF, cpu.PC & 0xFFFF);
         assertEquals(12, cycles);
-        cpu.C = false;
+        cpu.setFlag(CPU.FLAG_C, false);
         cpu.doCycle();
         assertEquals(fullAddr & 0xFFFF, cpu.PC & 0xFFFF);
 
         // JP C,nn
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.C = false;
+        cpu.setFlag(CPU.FLAG_C, false);
         opcode = (byte) 0xDA;
         controller.setRaw(new byte[] {opcode, lowAddr, highAddr, opcode, lowAddr, highAddr});
         cycles = cpu.doCycle();
         assertNotEquals(fullAddr & 0xFFFF, cpu.PC & 0xFFFF);
         assertEquals(12, cycles);
-        cpu.C = true;
+        cpu.setFlag(CPU.FLAG_C, true);
         cpu.doCycle();
         assertEquals(fullAddr & 0xFFFF, cpu.PC & 0xFFFF);
 
         // JP (HL)
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.C = false;
+        cpu.setFlag(CPU.FLAG_C, false);
         opcode = (byte) 0xE9;
         controller.setRaw(new byte[] {opcode, lowAddr, highAddr});
         cpu.HL = ((randByte()&0xFF) << 8) | (randByte() & 0xFF);
@@ -126,7 +128,7 @@ public class TestCPU {
         // JR n
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.C = false;
+        cpu.setFlag(CPU.FLAG_C, false);
         opcode = (byte) 0x18;
         byte offset = randByte();
         int previousAddr = cpu.PC;
@@ -139,52 +141,52 @@ public class TestCPU {
         // JR NZ,n
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.Z = true;
+        cpu.setFlag(CPU.FLAG_Z, true);
         opcode = (byte) 0x20;
         controller.setRaw(new byte[] {opcode, offset, opcode, offset});
         cycles = cpu.doCycle();
         assertNotEquals((previousAddr+offset) & 0xFFFF, cpu.PC & 0xFFFF);
         assertEquals(8, cycles);
-        cpu.Z = false;
+        cpu.setFlag(CPU.FLAG_Z, false);
         cpu.doCycle();
         assertEquals((previousAddr+2+offset) & 0xFFFF, cpu.PC & 0xFFFF);
 
         // JR Z,n
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.Z = false;
+        cpu.setFlag(CPU.FLAG_Z, false);
         opcode = (byte) 0x28;
         controller.setRaw(new byte[] {opcode, offset, opcode, offset});
         cycles = cpu.doCycle();
         assertNotEquals((previousAddr+offset) & 0xFFFF, cpu.PC & 0xFFFF);
         assertEquals(8, cycles);
-        cpu.Z = true;
+        cpu.setFlag(CPU.FLAG_Z, true);
         cpu.doCycle();
         assertEquals((previousAddr+2+offset) & 0xFFFF, cpu.PC & 0xFFFF);
 
         // JR NC,n
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.C = true;
+        cpu.setFlag(CPU.FLAG_C, true);
         opcode = (byte) 0x30;
         controller.setRaw(new byte[] {opcode, offset, opcode, offset});
         cycles = cpu.doCycle();
         assertNotEquals((previousAddr+offset) & 0xFFFF, cpu.PC & 0xFFFF);
         assertEquals(8, cycles);
-        cpu.C = false;
+        cpu.setFlag(CPU.FLAG_C, false);
         cpu.doCycle();
         assertEquals((previousAddr+2+offset) & 0xFFFF, cpu.PC & 0xFFFF);
 
         // JR C,n
         cpu.hardReset();
         cpu.hardGoto(0);
-        cpu.C = false;
+        cpu.setFlag(CPU.FLAG_C, false);
         opcode = (byte) 0x38;
         controller.setRaw(new byte[] {opcode, offset, opcode, offset});
         cycles = cpu.doCycle();
         assertNotEquals((previousAddr+offset) & 0xFFFF, cpu.PC & 0xFFFF);
         assertEquals(8, cycles);
-        cpu.C = true;
+        cpu.setFlag(CPU.FLAG_C, true);
         cpu.doCycle();
         assertEquals((previousAddr+2+offset) & 0xFFFF, cpu.PC & 0xFFFF);
     }
@@ -287,9 +289,9 @@ public class TestCPU {
         cpu.setRegistryValue(register, baseValue);
         int cycles = cpu.doCycle();
         assertEquals(clockCycles, cycles);
-        assertEquals(cpu.Z, (baseValue & (1 << bitIndex)) != 0);
-        assertFalse(cpu.N);
-        assertTrue(cpu.H);
+        assertEquals(cpu.isFlagSet(CPU.FLAG_Z), (baseValue & (1 << bitIndex)) == 0);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_H));
     }
 
     @Test
@@ -344,11 +346,11 @@ public class TestCPU {
         int cycles = cpu.doCycle();
         byte current = (byte) cpu.getRegistryValue(register);
         assertEquals(clockCycles, cycles);
-        assertEquals((prev >> 1) & 0xFF, current & 0xFF);
-        assertFalse(cpu.Z);
-        assertFalse(cpu.N);
-        assertFalse(cpu.H);
-        assertTrue(cpu.C);
+        assertEquals((prev & 0xFF) >> 1, current & 0xFF);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
     }
 
 
@@ -375,10 +377,10 @@ public class TestCPU {
         byte current = (byte) cpu.getRegistryValue(register);
         assertEquals(clockCycles, cycles);
         assertEquals((prev >> 1) & 0xFF | (prev & 0x80), current & 0xFF);
-        assertFalse(cpu.Z);
-        assertFalse(cpu.N);
-        assertFalse(cpu.H);
-        assertTrue(cpu.C);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
     }
 
     private void slaWithHLValue(byte cbCode, String register, int clockCycles, int valueHL) {
@@ -404,10 +406,10 @@ public class TestCPU {
         byte current = (byte) cpu.getRegistryValue(register);
         assertEquals(clockCycles, cycles);
         assertEquals((prev << 1) & 0xFF, current & 0xFF);
-        assertFalse(cpu.Z);
-        assertFalse(cpu.N);
-        assertFalse(cpu.H);
-        assertTrue(cpu.C);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
     }
 
     @Test
@@ -421,10 +423,10 @@ public class TestCPU {
         int cycles = cpu.doCycle();
         assertEquals(4, cycles);
         assertEquals(((baseValue & 0xFF) << 1 |1) & 0xFF, cpu.A & 0xFF);
-        assertFalse(cpu.N);
-        assertFalse(cpu.H);
-        assertTrue(cpu.C);
-        assertFalse(cpu.Z);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
 
 
         // RLA
@@ -432,14 +434,14 @@ public class TestCPU {
         cpu.hardGoto(0);
         controller.setRaw(new byte[] { 0x17 });
         cpu.A = baseValue;
-        cpu.C = true;
+        cpu.setFlag(CPU.FLAG_C, true);
         cycles = cpu.doCycle();
         assertEquals(4, cycles);
         assertEquals((((baseValue & 0xFF) << 1) |1) &0xFF, cpu.A & 0xFF);
-        assertFalse(cpu.N);
-        assertFalse(cpu.H);
-        assertTrue(cpu.C);
-        assertFalse(cpu.Z);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
 
         // RRCA
         cpu.hardReset();
@@ -449,10 +451,10 @@ public class TestCPU {
         cycles = cpu.doCycle();
         assertEquals(4, cycles);
         assertEquals(((baseValue) >> 1 |0x80) & 0xFF, cpu.A & 0xFF);
-        assertFalse(cpu.N);
-        assertFalse(cpu.H);
-        assertTrue(cpu.C);
-        assertFalse(cpu.Z);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
 
 
         // RRA
@@ -460,14 +462,14 @@ public class TestCPU {
         cpu.hardGoto(0);
         controller.setRaw(new byte[] { 0x1F });
         cpu.A = baseValue;
-        cpu.C = true;
+        cpu.setFlag(CPU.FLAG_C, true);
         cycles = cpu.doCycle();
         assertEquals(4, cycles);
         assertEquals((((baseValue) >> 1) | 0b10000000) &0xFF, cpu.A & 0xFF);
-        assertFalse(cpu.N);
-        assertFalse(cpu.H);
-        assertTrue(cpu.C);
-        assertFalse(cpu.Z);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
 
         testRLCWithHLValue((byte)0x07, "A", 8, -1);
         testRLCWithHLValue((byte)0x00, "B", 8, -1);
@@ -529,7 +531,7 @@ public class TestCPU {
         byte current = (byte) cpu.getRegistryValue(register);
         assertEquals(clockCycles, cycles);
         assertEquals((((prev&0xFF) << 1) | 0x1) & 0xFF, current & 0xFF);
-        assertTrue(cpu.C);
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
     }
 
     private void testRLWithHLValue(byte cbCode, String register, int clockCycles, int valueHL) {
@@ -547,7 +549,7 @@ public class TestCPU {
         }
         cpu.DE = (randByte()&0xFF) << 8 | randByte()&0xFF;
         cpu.SP = (randByte()&0xFF) << 8 | randByte()&0xFF;
-        cpu.C = true;
+        cpu.setFlag(CPU.FLAG_C, true);
 
         byte baseValue = (byte) (0b10011011 & 0xFF);
         cpu.setRegistryValue(register, baseValue);
@@ -556,7 +558,7 @@ public class TestCPU {
         byte current = (byte) cpu.getRegistryValue(register);
         assertEquals(clockCycles, cycles);
         assertEquals((((prev&0xFF) << 1) | 1) & 0xFF, current & 0xFF);
-        assertTrue(cpu.C);
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
     }
 
     private void testRRCWithHLValue(byte cbCode, String register, int clockCycles, int valueHL) {
@@ -582,7 +584,7 @@ public class TestCPU {
         byte current = (byte) cpu.getRegistryValue(register);
         assertEquals(clockCycles, cycles);
         assertEquals((((prev&0xFF) >> 1) | 0x80) & 0xFF, current & 0xFF);
-        assertTrue(cpu.C);
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
     }
 
     private void testRRWithHLValue(byte cbCode, String register, int clockCycles, int valueHL) {
@@ -601,7 +603,7 @@ public class TestCPU {
         cpu.DE = (randByte()&0xFF) << 8 | randByte()&0xFF;
         cpu.SP = (randByte()&0xFF) << 8 | randByte()&0xFF;
 
-        cpu.C = true;
+        cpu.setFlag(CPU.FLAG_C, true);
         byte baseValue = (byte) (0b10011011 & 0xFF);
         cpu.setRegistryValue(register, baseValue);
         byte prev = (byte) cpu.getRegistryValue(register);
@@ -609,7 +611,7 @@ public class TestCPU {
         byte current = (byte) cpu.getRegistryValue(register);
         assertEquals(clockCycles, cycles);
         assertEquals((((prev&0xFF) >> 1) | 0x80) & 0xFF, current & 0xFF);
-        assertTrue(cpu.C);
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
     }
 
     @Test
@@ -639,20 +641,20 @@ public class TestCPU {
         cycles = cpu.doCycle();
         assertEquals(4, cycles);
         assertEquals(~prevA & 0xFF, cpu.A & 0xFF);
-        assertTrue(cpu.N);
-        assertTrue(cpu.H);
+        assertTrue(cpu.isFlagSet(CPU.FLAG_N));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_H));
 
         // CCF
         controller.setRaw(new byte[] { 0x3F });
         cpu.hardReset();
         cpu.hardGoto(0);
         boolean carryFlag = randByte() % 2 == 0;
-        cpu.C = carryFlag;
+        cpu.setFlag(CPU.FLAG_C, carryFlag);
         cycles = cpu.doCycle();
         assertEquals(4, cycles);
-        assertEquals(!carryFlag, cpu.C);
-        assertFalse(cpu.H);
-        assertFalse(cpu.N);
+        assertEquals(!carryFlag, cpu.isFlagSet(CPU.FLAG_C));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
 
         // SCF
         controller.setRaw(new byte[] { 0x37 });
@@ -660,9 +662,9 @@ public class TestCPU {
         cpu.hardGoto(0);
         cycles = cpu.doCycle();
         assertEquals(4, cycles);
-        assertTrue(cpu.C);
-        assertFalse(cpu.H);
-        assertFalse(cpu.N);
+        assertTrue(cpu.isFlagSet(CPU.FLAG_C));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_H));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
 
         // NOP
         controller.setRaw(new byte[] { 0x00 });
@@ -1130,10 +1132,10 @@ public class TestCPU {
         int cycles = cpu.doCycle();
         assertEquals(clockCycles, cycles);
         byte compareTo = value.equals("#") ? memory[1] : (byte) (cpu.getRegistryValue(value) & 0xFF);
-        assertEquals(cpu.A == compareTo, cpu.Z);
-        assertTrue(cpu.N);
-        assertEquals(cpu.A < compareTo, cpu.C);
-        assertEquals((cpu.A & 0xF) < (compareTo & 0xF), cpu.H);
+        assertEquals(cpu.A == compareTo, cpu.isFlagSet(CPU.FLAG_Z));
+        assertTrue(cpu.isFlagSet(CPU.FLAG_N));
+        assertEquals(cpu.A < compareTo, cpu.isFlagSet(CPU.FLAG_C));
+        assertEquals((cpu.A & 0xF) < (compareTo & 0xF), cpu.isFlagSet(CPU.FLAG_H));
     }
 
     @Test
@@ -1789,15 +1791,15 @@ public class TestCPU {
                 (byte) 0xF8, 0x1,// ldhl SP,n
         }, "SP", 1, 12);
         assertEquals(cpu.SP +1, cpu.HL);
-        assertFalse(cpu.Z);
-        assertFalse(cpu.N);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
 
         testCyclesWithRandomFillAtStartAndSetRegister(new byte[] {
                 (byte) 0xF8, (byte) 0xFF,// ldhl SP,n
         }, "SP", 1, 12);
         assertEquals(cpu.SP -1, cpu.HL);
-        assertFalse(cpu.Z);
-        assertFalse(cpu.N);
+        assertFalse(cpu.isFlagSet(CPU.FLAG_Z));
+        assertFalse(cpu.isFlagSet(CPU.FLAG_N));
 
         // --------------
         byte[] memory = new byte[] {
@@ -1912,6 +1914,56 @@ public class TestCPU {
         assertEquals("invalid clock cycle count", expected, cycles);
     }
 
+    @Test
+    public void haltSkipsToNextEvent() {
+        cpu.hardReset();
+        cpu.hardGoto(0);
+        byte[] memory = new byte[0x200];
+        memory[0] = 0x76; // HALT
+        controller.setRaw(memory);
+        controller.write(0xFFFF, (byte) 0x04); // only the timer interrupt is enabled
+        EventScheduler scheduler = cpu.getScheduler();
+        int event = scheduler.register(cycle -> controller.interrupt(Interrupts.TIMER));
+        scheduler.schedule(event, scheduler.getCycles() + 1000);
+
+        assertEquals(4, cpu.doCycle());
+        assertTrue(cpu.isHalted());
+        assertEquals(996, cpu.doCycle()); // straight to the event
+        assertTrue(cpu.isHalted());
+        cpu.doCycle(); // the interrupt is pending, wake up and run the NOP
+        assertFalse(cpu.isHalted());
+        assertEquals(2, cpu.PC);
+    }
+
+    @Test
+    public void pollingLoopSkipsToNextEvent() {
+        cpu.hardReset();
+        cpu.hardGoto(0);
+        byte[] memory = new byte[0x200];
+        byte[] loop = new byte[] {(byte) 0xF0, 0x44, (byte) 0xFE, (byte) 0x90, 0x20, (byte) 0xFA}; // wait for LY == 144
+        System.arraycopy(loop, 0, memory, 0, loop.length);
+        controller.setRaw(memory);
+        EventScheduler scheduler = cpu.getScheduler();
+        int event = scheduler.register(cycle -> {});
+        scheduler.schedule(event, scheduler.getCycles() + 1000);
+
+        long start = scheduler.getCycles();
+        for (int i = 0; i < 3; i++) {
+            cpu.doCycle();
+        }
+        assertEquals(0, cpu.PC);
+        // the jump is followed by as many iterations of 32 cycles as can run before the event
+        assertEquals(32 + (1000 - 32 - 1) / 32 * 32, scheduler.getCycles() - start);
+        assertTrue(scheduler.isScheduled(event));
+
+        for (int i = 0; i < 3; i++) { // the event is due during this iteration, which runs normally
+            cpu.doCycle();
+        }
+        assertEquals(0, cpu.PC);
+        assertEquals(1024, scheduler.getCycles() - start);
+        assertFalse(scheduler.isScheduled(event));
+    }
+
     private byte randByte() {
         int value = ((((int)(Math.random() * 0xF)) << 4) &0xFF) | (int)(Math.random() * 0xF);
         if(value == 0 || value == 0xFF)
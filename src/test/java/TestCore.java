@@ -1,28 +1,60 @@
 import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.debug.DebugMemoryController;
 import org.jglrxavpok.jameboy.memory.GameROM;
 import org.jglrxavpok.jameboy.memory.MBC1;
-import org.jglrxavpok.jameboy.utils.IOUtils;
 import org.junit.Test;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
+import java.net.URISyntaxException;
 
 import static junit.framework.TestCase.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 public class TestCore {
 
-    private byte[] readTestROM(String name) throws IOException {
-        InputStream in = getClass().getResourceAsStream("/roms/"+name+".gb");
-        return IOUtils.read(in);
+    private File getTestROM(String name) throws URISyntaxException {
+        return new File(getClass().getResource("/roms/"+name+".gb").toURI());
     }
 
     @Test
-    public void loadROM() throws IOException {
+    public void loadROM() throws IOException, URISyntaxException {
         JameBoy core = new JameBoy();
-        GameROM rom = new GameROM(ByteBuffer.wrap(readTestROM("cpu_instrs")));
+        GameROM rom = GameROM.map(getTestROM("cpu_instrs"));
         core.loadROM(rom);
         assertTrue(core.getMemoryController() instanceof MBC1);
     }
+
+    @Test
+    public void mappedROMIsShared() throws IOException, URISyntaxException {
+        GameROM first = GameROM.map(getTestROM("cpu_instrs"));
+        GameROM second = GameROM.map(getTestROM("cpu_instrs"));
+        assertTrue(first.getData().isReadOnly());
+        assertTrue(first.getData() != second.getData());
+        assertEquals(first.getData(), second.getData());
+        assertEquals(first.getHeader().getTitle(), second.getHeader().getTitle());
+    }
+
+    @Test
+    public void memoryDebuggingIsOptIn() throws IOException, URISyntaxException {
+        JameBoy core = new JameBoy();
+        core.loadROM(GameROM.map(getTestROM("cpu_instrs")));
+        assertNull(core.getDebugMemoryController());
+
+        core.setMemoryDebugging(true);
+        DebugMemoryController debugController = core.getDebugMemoryController();
+        long[] dirtyPages = new long[DebugMemoryController.DIRTY_WORD_COUNT];
+        debugController.takeDirtyPages(dirtyPages);
+        core.getMemoryController().write(0xC123, (byte) 0x42);
+        core.getMemoryController().write(0xC1FF, (byte) 0x42);
+        debugController.takeDirtyPages(dirtyPages);
+        assertEquals(1L << (0xC1 % 64), dirtyPages[0xC1 / 64]);
+        debugController.takeDirtyPages(dirtyPages);
+        assertEquals(0L, dirtyPages[0xC1 / 64]);
+
+        core.setMemoryDebugging(false);
+        assertTrue(core.getMemoryController() instanceof MBC1);
+        assertTrue(core.getCPU().getMemory() instanceof MBC1);
+    }
 }
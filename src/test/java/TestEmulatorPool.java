@@ -0,0 +1,47 @@
+import org.jglrxavpok.jameboy.EmulatorPool;
+import org.jglrxavpok.jameboy.JameBoy;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestEmulatorPool {
+
+    @Test
+    public void coresRunIndependently() throws Exception {
+        EmulatorPool pool = new EmulatorPool(2, 3);
+        List<EmulatorPool.Instance> instances = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            instances.add(pool.submit(CoreFixture.createCore(), 10));
+        }
+        pool.shutdown();
+
+        JameBoy reference = CoreFixture.createCore();
+        for (int i = 0; i < 10; i++) {
+            reference.runFrame();
+        }
+        for (EmulatorPool.Instance instance : instances) {
+            assertTrue(instance.isDone());
+            assertEquals(10, instance.getEmulatedFrames());
+            assertTrue(instance.getFramesPerRunningSecond() > 0);
+            assertArrayEquals(reference.saveState(), instance.getCore().saveState());
+        }
+        assertEquals(0, pool.getRunningCount());
+    }
+
+    @Test
+    public void fullPoolRejectsCores() throws Exception {
+        EmulatorPool pool = new EmulatorPool(1, 1);
+        EmulatorPool.Instance instance = pool.submit(CoreFixture.createCore(), -1);
+        assertNull(pool.trySubmit(CoreFixture.createCore(), -1));
+        instance.stop();
+        instance.getCompletion().get();
+        assertEquals(0, pool.getRunningCount());
+        pool.shutdown();
+    }
+}
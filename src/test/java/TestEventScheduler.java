@@ -0,0 +1,74 @@
+import org.jglrxavpok.jameboy.cpu.EventScheduler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEventScheduler {
+
+    @Test
+    public void eventsRunInOrder() {
+        EventScheduler scheduler = new EventScheduler();
+        List<String> fired = new ArrayList<>();
+        int a = scheduler.register(cycle -> fired.add("a@"+cycle));
+        int b = scheduler.register(cycle -> fired.add("b@"+cycle));
+        int c = scheduler.register(cycle -> fired.add("c@"+cycle));
+        scheduler.schedule(a, 30);
+        scheduler.schedule(b, 10);
+        scheduler.schedule(c, 20);
+
+        scheduler.advance(8);
+        assertTrue(fired.isEmpty());
+        assertEquals(2, scheduler.getCyclesUntilNextEvent());
+
+        scheduler.advance(24); // several events at once, reported with the cycle they were scheduled for
+        assertEquals(3, fired.size());
+        assertEquals("b@10", fired.get(0));
+        assertEquals("c@20", fired.get(1));
+        assertEquals("a@30", fired.get(2));
+        assertEquals(Long.MAX_VALUE, scheduler.getCyclesUntilNextEvent());
+    }
+
+    @Test
+    public void rescheduleAndCancel() {
+        EventScheduler scheduler = new EventScheduler();
+        List<Integer> fired = new ArrayList<>();
+        int[] ids = new int[10];
+        for (int i = 0; i < ids.length; i++) { // more events than the initial capacity
+            final int index = i;
+            ids[i] = scheduler.register(cycle -> fired.add(index));
+            scheduler.schedule(ids[i], 100 + i);
+        }
+        scheduler.schedule(ids[9], 50);
+        scheduler.schedule(ids[0], 200);
+        scheduler.cancel(ids[5]);
+        assertFalse(scheduler.isScheduled(ids[5]));
+
+        scheduler.advance(300);
+        assertEquals(9, fired.size());
+        assertEquals(9, (int) fired.get(0));
+        assertEquals(1, (int) fired.get(1));
+        assertEquals(0, (int) fired.get(8));
+    }
+
+    @Test
+    public void handlersCanReschedule() {
+        EventScheduler scheduler = new EventScheduler();
+        int[] count = new int[1];
+        int[] id = new int[1];
+        id[0] = scheduler.register(cycle -> {
+            count[0]++;
+            scheduler.schedule(id[0], cycle + 456);
+        });
+        scheduler.schedule(id[0], 456);
+        for (int i = 0; i < 456*10/4; i++) {
+            scheduler.advance(4);
+        }
+        assertEquals(10, count[0]);
+        assertEquals(456*11, scheduler.getCycles() + scheduler.getCyclesUntilNextEvent());
+    }
+}
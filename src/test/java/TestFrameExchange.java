@@ -0,0 +1,42 @@
+import org.jglrxavpok.jameboy.graphics.FrameExchange;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestFrameExchange {
+
+    @Test
+    public void consumerGetsLastPublishedFrame() {
+        FrameExchange exchange = new FrameExchange();
+        int[] first = exchange.getBackBuffer();
+        int[] second = exchange.publish();
+        assertNotSame(first, second);
+        int[] third = exchange.publish();
+        assertTrue(exchange.hasNewFrame());
+
+        // the first frame was replaced by the second one before being acquired
+        assertSame(second, exchange.acquire());
+        assertFalse(exchange.hasNewFrame());
+        assertSame(second, exchange.acquire());
+        assertNotSame(second, exchange.getBackBuffer());
+        assertSame(third, exchange.getBackBuffer());
+    }
+
+    @Test
+    public void buffersAreNeverShared() {
+        FrameExchange exchange = new FrameExchange();
+        for (int i = 0; i < 10; i++) {
+            int[] front = exchange.acquire();
+            assertNotSame(front, exchange.getBackBuffer());
+            exchange.publish();
+            assertNotSame(front, exchange.getBackBuffer());
+            if(i % 3 == 0) {
+                exchange.publish();
+                assertNotSame(front, exchange.getBackBuffer());
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+import org.jglrxavpok.jameboy.cpu.EventScheduler;
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.memory.NoMBC;
+import org.jglrxavpok.jameboy.utils.IOUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestGPU {
+
+    private GPU createGPU(NoMBC memory) throws IOException {
+        byte[] dump = IOUtils.read(getClass().getResourceAsStream("/memdumps/PokemonYellowBattle.DMP"));
+        GPU gpu = new GPU();
+        memory.setGPU(gpu);
+        gpu.linkToMemory(memory);
+        for (int i = 0; i < dump.length; i++) {
+            if(gpu.isValidGPUAddress(i) && i != GPU.ADDR_LY)
+                memory.write(i, dump[i]);
+        }
+        return gpu;
+    }
+
+    /**
+     * Runs 10 frames line by line, hashing LY, STAT and the interrupt flags along the way
+     */
+    private int runFrames(GPU gpu, NoMBC memory) {
+        int hash = 0;
+        for (int line = 0; line < 154*10; line++) {
+            gpu.step(456);
+            hash = hash*31 + gpu.read(GPU.ADDR_STAT);
+            hash = hash*31 + gpu.read(GPU.ADDR_LY);
+            hash = hash*31 + memory.read(0xFF0F);
+        }
+        return hash;
+    }
+
+    @Test
+    public void frameSkipKeepsTiming() throws IOException {
+        NoMBC memory = new NoMBC(ByteBuffer.allocate(0x8000), ByteBuffer.allocate(0x2000));
+        GPU gpu = createGPU(memory);
+        NoMBC skippingMemory = new NoMBC(ByteBuffer.allocate(0x8000), ByteBuffer.allocate(0x2000));
+        GPU skippingGPU = createGPU(skippingMemory);
+        skippingGPU.setFrameSkip(GPU.SKIP_ALL_FRAMES);
+
+        assertEquals(runFrames(gpu, memory), runFrames(skippingGPU, skippingMemory));
+        // the frame in progress when skipping starts is still completed
+        skippingGPU.getFrameExchange().acquire();
+        assertEquals(runFrames(gpu, memory), runFrames(skippingGPU, skippingMemory));
+        assertEquals(gpu.getFrameCount(), skippingGPU.getFrameCount());
+        assertFalse(skippingGPU.getFrameExchange().hasNewFrame());
+
+        gpu.renderNextFrame();
+        skippingGPU.renderNextFrame();
+        runFrames(gpu, memory);
+        runFrames(skippingGPU, skippingMemory);
+        assertTrue(skippingGPU.getFrameExchange().hasNewFrame());
+        assertArrayEquals(gpu.getFrameExchange().acquire(), skippingGPU.getFrameExchange().acquire());
+    }
+
+    /**
+     * Runs 10 frames driven by a scheduler, hashing LY, STAT and the interrupt flags every 8th of a line. If
+     * 'midLineLCDC' is set, it is written to LCDC in the middle of every 10th line
+     */
+    private int runScheduledFrames(EventScheduler scheduler, NoMBC memory, Byte midLineLCDC) {
+        int hash = 0;
+        for (int line = 0; line < 154*10; line++) {
+            for (int step = 0; step < 8; step++) {
+                scheduler.advance(456/8);
+                if(midLineLCDC != null && line % 10 == 0 && step == 3)
+                    memory.write(GPU.ADDR_LCDC, midLineLCDC);
+                hash = hash*31 + memory.read(GPU.ADDR_STAT);
+                hash = hash*31 + memory.read(GPU.ADDR_LY);
+                hash = hash*31 + memory.read(0xFF0F);
+            }
+        }
+        return hash;
+    }
+
+    @Test
+    public void lcdcWriteKeepsTimingWhenDisplayStaysOn() throws IOException {
+        NoMBC memory = new NoMBC(ByteBuffer.allocate(0x8000), ByteBuffer.allocate(0x2000));
+        GPU gpu = createGPU(memory);
+        EventScheduler scheduler = new EventScheduler();
+        gpu.setScheduler(scheduler);
+        NoMBC writingMemory = new NoMBC(ByteBuffer.allocate(0x8000), ByteBuffer.allocate(0x2000));
+        GPU writingGPU = createGPU(writingMemory);
+        EventScheduler writingScheduler = new EventScheduler();
+        writingGPU.setScheduler(writingScheduler);
+
+        byte lcdc = writingMemory.read(GPU.ADDR_LCDC);
+        assertTrue((lcdc & 0x80) != 0);
+        // toggles the sprites, the display stays on
+        byte midLineLCDC = (byte) (lcdc ^ 0x02);
+        assertEquals(runScheduledFrames(scheduler, memory, null),
+                runScheduledFrames(writingScheduler, writingMemory, midLineLCDC));
+        assertEquals(gpu.getFrameCount(), writingGPU.getFrameCount());
+    }
+}
@@ -0,0 +1,93 @@
+import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.input.InputMovie;
+import org.jglrxavpok.jameboy.input.JoypadInput;
+import org.jglrxavpok.jameboy.io.IOHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestInputMovie {
+
+    private InputMovie copy(InputMovie movie) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        movie.write(out);
+        return InputMovie.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void replayGivesTheSameRun() throws Exception {
+        JoypadInput player = frame -> {
+            int buttons = 0;
+            if(frame % 3 == 0)
+                buttons |= IOHandler.BUTTON_A;
+            if(frame % 4 < 2)
+                buttons |= IOHandler.BUTTON_START | IOHandler.BUTTON_LEFT;
+            return buttons;
+        };
+        JameBoy recording = CoreFixture.createCore();
+        CoreFixture.runFrames(recording, 3);
+        InputMovie movie = InputMovie.startRecording(recording, player);
+        CoreFixture.runFrames(recording, 12);
+        assertTrue(movie.getChangeCount() > 0);
+
+        JameBoy replay = CoreFixture.createCore();
+        copy(movie).startReplay(replay);
+        CoreFixture.runFrames(replay, 12);
+        assertArrayEquals(recording.saveState(), replay.saveState());
+
+        // the inputs do change the run
+        JameBoy noInput = CoreFixture.createCore();
+        CoreFixture.runFrames(noInput, 15);
+        assertFalse(Arrays.equals(recording.saveState(), noInput.saveState()));
+    }
+
+    @Test
+    public void changesAreKeptInOrder() throws Exception {
+        InputMovie movie = new InputMovie((short) 0x1234, null, IOHandler.BUTTON_B);
+        movie.addChange(0, IOHandler.BUTTON_UP);
+        movie.addChange(1000000, IOHandler.BUTTON_DOWN | IOHandler.BUTTON_SELECT);
+        movie.addChange(1000000, 0);
+        movie.addChange(1000001, IOHandler.BUTTON_RIGHT);
+
+        InputMovie read = copy(movie);
+        assertEquals(0x1234, read.getROMChecksum());
+        assertEquals(4, read.getChangeCount());
+        assertEquals(1000001, read.getLastChangeFrame());
+        assertFalse(read.hasStartState());
+
+        JameBoy core = CoreFixture.createCore();
+        read.startReplay(core);
+        JoypadInput input = core.getJoypadInput();
+        assertEquals(IOHandler.BUTTON_UP, input.getButtons(0));
+        assertEquals(IOHandler.BUTTON_UP, input.getButtons(999999));
+        assertEquals(0, input.getButtons(1000000));
+        assertEquals(IOHandler.BUTTON_RIGHT, input.getButtons(1000001));
+        assertEquals(IOHandler.BUTTON_RIGHT, input.getButtons(2000000));
+    }
+
+    @Test
+    public void joypadIsPolledWhileLCDIsOff() throws Exception {
+        JameBoy core = CoreFixture.createCore();
+        CoreFixture.runFrames(core, 2);
+        // waits with the LCD off, in a 'JR $' loop
+        core.getMemoryController().write(GPU.ADDR_LCDC, (byte) 0);
+        CoreFixture.parkCPU(core);
+        long pressFrame = core.getJoypadFrame() + 3;
+        core.setJoypadInput(frame -> frame >= pressFrame ? IOHandler.BUTTON_START : 0);
+        assertEquals(0, core.getIOHandler().getButtons());
+
+        long gpuFrames = core.getGPU().getFrameCount();
+        CoreFixture.run(core, GPU.CYCLES_PER_FRAME * 4);
+        assertEquals(gpuFrames, core.getGPU().getFrameCount());
+        assertEquals(IOHandler.BUTTON_START, core.getIOHandler().getButtons());
+    }
+}
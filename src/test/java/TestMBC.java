@@ -1,8 +1,19 @@
+import org.jglrxavpok.jameboy.CPU;
+import org.jglrxavpok.jameboy.cpu.EventScheduler;
+import org.jglrxavpok.jameboy.cpu.Z80Timer;
 import org.jglrxavpok.jameboy.memory.CartridgeHeader;
+import org.jglrxavpok.jameboy.memory.GameROM;
 import org.jglrxavpok.jameboy.memory.MBC1;
+import org.jglrxavpok.jameboy.memory.MBC2;
+import org.jglrxavpok.jameboy.memory.MBC3;
+import org.jglrxavpok.jameboy.memory.MemoryController;
+import org.jglrxavpok.jameboy.memory.MemoryControllers;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -45,4 +56,130 @@ public class TestMBC {
         controller.write(0x6000, (byte) 0x51);
         assertFalse("should not be in ram mode", controller.isInRamBankingMode());
     }
+
+    @Test
+    public void batteryRAMIsKeptInSaveFile() throws IOException {
+        ByteBuffer rom = ByteBuffer.allocate(32*1024);
+        rom.put(0x147, (byte) 0x03); // MBC1+RAM+BATTERY
+        rom.put(0x148, (byte) 0x00); // 32KB ROM
+        rom.put(0x149, (byte) 0x02); // 8KB RAM
+        File saveFile = File.createTempFile("jameboy", ".sav");
+        saveFile.deleteOnExit();
+
+        MemoryController controller = MemoryControllers.create(new GameROM(rom, saveFile));
+        controller.write(0x0000, (byte) 0x0A);
+        controller.write(0xA000, (byte) 0x42);
+        controller.write(0xBFFF, (byte) 0x24);
+        controller.flushSaveRAM();
+
+        byte[] contents = Files.readAllBytes(saveFile.toPath());
+        assertEquals(8*1024, contents.length);
+        assertEquals(0x42, contents[0]);
+        assertEquals(0x24, contents[0x1FFF]);
+
+        MemoryController reloaded = MemoryControllers.create(new GameROM(rom, saveFile));
+        reloaded.write(0x0000, (byte) 0x0A);
+        assertEquals(0x42, reloaded.read(0xA000));
+        assertEquals(0x24, reloaded.read(0xBFFF));
+    }
+
+    /**
+     * Creates a ROM whose banks start with their own number
+     */
+    private static ByteBuffer createBankedROM(byte cartridgeType, int romSizeCode, int ramSizeCode) {
+        int bankCount = CartridgeHeader.ROM_SIZES[romSizeCode] / 16;
+        ByteBuffer rom = ByteBuffer.allocate(bankCount * 0x4000);
+        for (int bank = 0; bank < bankCount; bank++) {
+            rom.putShort(bank * 0x4000, (short) bank);
+        }
+        rom.put(0x147, cartridgeType);
+        rom.put(0x148, (byte) romSizeCode);
+        rom.put(0x149, (byte) ramSizeCode);
+        return rom;
+    }
+
+    private static int readBankNumber(MemoryController controller) {
+        return ((controller.read(0x4000) & 0xFF) << 8) | (controller.read(0x4001) & 0xFF);
+    }
+
+    @Test
+    public void mbc5SwitchesAll512Banks() {
+        ByteBuffer rom = createBankedROM((byte) 0x1B, 8, 3); // MBC5+RAM+BATTERY, 8MB ROM, 32KB RAM
+        MemoryController controller = MemoryControllers.create(new GameROM(rom));
+        for (int bank = 0; bank < 512; bank++) {
+            controller.write(0x2000, (byte) bank);
+            controller.write(0x3000, (byte) (bank >> 8));
+            assertEquals(bank, readBankNumber(controller));
+        }
+
+        controller.write(0x0000, (byte) 0x0A);
+        for (int bank = 0; bank < 4; bank++) {
+            controller.write(0x4000, (byte) bank);
+            controller.write(0xA000, (byte) (0x10 + bank));
+        }
+        for (int bank = 0; bank < 4; bank++) {
+            controller.write(0x4000, (byte) bank);
+            assertEquals(0x10 + bank, controller.read(0xA000));
+        }
+    }
+
+    @Test
+    public void mbc2RAMHoldsHalfBytes() {
+        ByteBuffer rom = createBankedROM((byte) 0x06, 3, 0); // MBC2+BATTERY, 256KB ROM
+        MBC2 controller = (MBC2) MemoryControllers.create(new GameROM(rom));
+        controller.write(0x2100, (byte) 0x0B); // bit 8 of the address set: ROM bank
+        assertEquals(11, readBankNumber(controller));
+        controller.write(0x2100, (byte) 0x00);
+        assertEquals(1, readBankNumber(controller));
+
+        controller.write(0x0000, (byte) 0x0A); // bit 8 clear: RAM enable
+        assertTrue(controller.isRAMEnabled());
+        controller.write(0xA005, (byte) 0x3C);
+        assertEquals((byte) 0xFC, controller.read(0xA005));
+        assertEquals((byte) 0xFC, controller.read(0xBE05)); // echoed every 512 bytes
+        controller.write(0x0000, (byte) 0x00);
+        assertEquals((byte) 0xFF, controller.read(0xA005));
+    }
+
+    @Test
+    public void mbc3ClockFollowsEmulatedTime() {
+        ByteBuffer rom = createBankedROM((byte) 0x10, 6, 3); // MBC3+TIMER+RAM+BATTERY, 2MB ROM, 32KB RAM
+        MBC3 controller = (MBC3) MemoryControllers.create(new GameROM(rom));
+        CPU cpu = new CPU();
+        cpu.setMemory(controller);
+        controller.write(0x2000, (byte) 0x7F);
+        assertEquals(127, readBankNumber(controller));
+
+        // 1 day, 1 hour, 1 minute and 1.5 seconds
+        EventScheduler scheduler = cpu.getScheduler();
+        long cycles = (86400 + 3600 + 60 + 1) * Z80Timer.CLOCK_SPEED + Z80Timer.CLOCK_SPEED / 2;
+        for (; cycles > 0; cycles -= 1 << 30) {
+            scheduler.advance((int) Math.min(cycles, 1 << 30));
+        }
+        controller.write(0x0000, (byte) 0x0A);
+        controller.write(0x6000, (byte) 0x00);
+        controller.write(0x6000, (byte) 0x01);
+        int[] expected = { 1, 1, 1, 1, 0 };
+        for (int i = 0; i < expected.length; i++) {
+            controller.write(0x4000, (byte) (MBC3.RTC_SECONDS + i));
+            assertEquals(expected[i], controller.read(0xA000));
+        }
+
+        // halted, the clock does not move
+        controller.write(0x4000, (byte) MBC3.RTC_DAY_HIGH);
+        controller.write(0xA000, (byte) 0x40);
+        scheduler.advance((int) Z80Timer.CLOCK_SPEED * 10);
+        controller.write(0x6000, (byte) 0x00);
+        controller.write(0x6000, (byte) 0x01);
+        controller.write(0x4000, (byte) MBC3.RTC_SECONDS);
+        assertEquals(1, controller.read(0xA000));
+
+        // the RAM banks are still there
+        controller.write(0x4000, (byte) 0x02);
+        controller.write(0xA123, (byte) 0x5A);
+        controller.write(0x4000, (byte) 0x00);
+        assertEquals(0, controller.read(0xA123));
+        controller.write(0x4000, (byte) 0x02);
+        assertEquals(0x5A, controller.read(0xA123));
+    }
 }
@@ -0,0 +1,88 @@
+import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.JameBoyApp;
+import org.jglrxavpok.jameboy.RewindBuffer;
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.memory.MemoryController;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRewindBuffer {
+
+    @Test
+    public void rewindGoesThroughEverySnapshot() throws Exception {
+        JameBoy core = CoreFixture.createCore();
+        RewindBuffer buffer = new RewindBuffer(2, 16);
+        List<byte[]> states = new ArrayList<>();
+        for (int frame = 1; frame <= 60; frame++) {
+            core.runFrame();
+            buffer.onFrame(core);
+            if(frame % 2 == 0)
+                states.add(core.saveState());
+        }
+        assertEquals(states.size(), buffer.getSnapshotCount());
+
+        core.runFrame();
+        buffer.onFrame(core);
+        for (int i = states.size()-1; i >= 0; i--) {
+            assertTrue(buffer.rewind(core));
+            assertArrayEquals(states.get(i), core.saveState());
+        }
+        assertFalse(buffer.rewind(core));
+    }
+
+    @Test
+    public void budgetDropsOldestSnapshots() throws Exception {
+        JameBoy core = CoreFixture.createCore();
+        RewindBuffer buffer = new RewindBuffer(2, 0);
+        for (int frame = 0; frame < 10; frame++) {
+            core.runFrame();
+            buffer.onFrame(core);
+        }
+        assertEquals(1, buffer.getSnapshotCount());
+        byte[] last = core.saveState();
+
+        core.runFrame();
+        buffer.onFrame(core);
+        assertTrue(buffer.rewind(core));
+        assertArrayEquals(last, core.saveState());
+        assertFalse(buffer.rewind(core));
+    }
+
+    @Test
+    public void scrollingScreenKeepsAMinuteOfHistory() throws Exception {
+        JameBoy core = CoreFixture.createCore();
+        CoreFixture.runFrames(core, 60);
+        CoreFixture.parkCPU(core);
+        MemoryController memory = core.getMemoryController();
+        memory.write(GPU.ADDR_LCDC, (byte) 0x93);
+        // noise in the tiles and the tile map, so scrolling changes nearly every pixel
+        Random random = new Random(42);
+        for (int address = 0x8000; address < 0xA000; address++) {
+            memory.write(address, (byte) random.nextInt(256));
+        }
+
+        RewindBuffer buffer = new RewindBuffer(1, JameBoyApp.REWIND_BUDGET_MB);
+        int frames = 120;
+        for (int frame = 0; frame < frames; frame++) {
+            memory.write(GPU.ADDR_SCROLL_X, (byte) frame);
+            memory.write(GPU.ADDR_SCROLL_Y, (byte) (frame / 3));
+            CoreFixture.runFrames(core, 1);
+            buffer.onFrame(core);
+        }
+        assertEquals(frames, buffer.getSnapshotCount());
+
+        int stateSize = core.saveState().length;
+        long deltaSize = (buffer.getUsedBytes() - stateSize) / (frames - 1);
+        long minuteSize = stateSize + deltaSize * 60 * 60;
+        assertTrue("A minute of history takes "+minuteSize+" bytes",
+                minuteSize <= JameBoyApp.REWIND_BUDGET_MB * 1024L * 1024L);
+    }
+}
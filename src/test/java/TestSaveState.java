@@ -0,0 +1,73 @@
+import org.jglrxavpok.jameboy.CPU;
+import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.memory.MemoryController;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestSaveState {
+
+    /**
+     * Registers, memory and screen of the core
+     */
+    private int[] snapshot(JameBoy core) {
+        CPU cpu = core.getCPU();
+        MemoryController memory = core.getMemoryController();
+        int[] result = new int[8 + 0x10000];
+        result[0] = cpu.PC;
+        result[1] = cpu.SP;
+        result[2] = cpu.A;
+        result[3] = cpu.BC;
+        result[4] = cpu.DE;
+        result[5] = cpu.HL;
+        result[6] = cpu.getFlags();
+        result[7] = Arrays.hashCode(core.getGPU().getPixels());
+        for (int i = 0; i < 0x10000; i++) {
+            result[8+i] = memory.read(i);
+        }
+        return result;
+    }
+
+    @Test
+    public void restoreReplaysTheSameRun() throws Exception {
+        JameBoy core = CoreFixture.createCore();
+        CoreFixture.run(core, 2_000_000);
+        byte[] state = core.saveState();
+
+        CoreFixture.run(core, 500_000);
+        int[] expected = snapshot(core);
+        long expectedCycles = core.getCPU().getScheduler().getCycles();
+
+        core.loadState(state);
+        CoreFixture.run(core, 500_000);
+        assertArrayEquals(expected, snapshot(core));
+        assertEquals(expectedCycles, core.getCPU().getScheduler().getCycles());
+    }
+
+    @Test
+    public void restoreOnAnotherCore() throws Exception {
+        JameBoy core = CoreFixture.createCore();
+        CoreFixture.run(core, 3_000_000);
+        byte[] state = core.saveState();
+
+        JameBoy fork = CoreFixture.createCore();
+        fork.loadState(state);
+        assertArrayEquals(snapshot(core), snapshot(fork));
+
+        CoreFixture.run(core, 1_000_000);
+        CoreFixture.run(fork, 1_000_000);
+        assertArrayEquals(snapshot(core), snapshot(fork));
+        assertArrayEquals(core.saveState(), fork.saveState());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidState() throws Exception {
+        JameBoy core = CoreFixture.createCore();
+        byte[] state = core.saveState();
+        state[0] = 0;
+        core.loadState(state);
+    }
+}
@@ -0,0 +1,173 @@
+import org.jglrxavpok.jameboy.audio.AudioOutput;
+import org.jglrxavpok.jameboy.audio.BlipBuffer;
+import org.jglrxavpok.jameboy.audio.SoundController;
+import org.jglrxavpok.jameboy.cpu.EventScheduler;
+import org.jglrxavpok.jameboy.cpu.Z80Timer;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestSoundController {
+
+    private static final int SAMPLE_RATE = 48000;
+
+    /**
+     * Keeps the left channel of everything it receives
+     */
+    private static class CapturingOutput implements AudioOutput {
+        private final ByteArrayOutputStream left = new ByteArrayOutputStream();
+
+        @Override
+        public int getSampleRate() {
+            return SAMPLE_RATE;
+        }
+
+        @Override
+        public void write(short[] samples, int offset, int length) {
+            for (int i = offset; i < offset + length; i += 2) {
+                left.write(samples[i] >> 8);
+                left.write(samples[i]);
+            }
+        }
+
+        short[] getLeft() {
+            ByteBuffer bytes = ByteBuffer.wrap(left.toByteArray());
+            short[] result = new short[bytes.capacity()/2];
+            bytes.asShortBuffer().get(result);
+            return result;
+        }
+    }
+
+    private static void run(EventScheduler scheduler, long cycles) {
+        for (long i = 0; i < cycles; i += 4) {
+            scheduler.advance(4);
+        }
+    }
+
+    /**
+     * Plays channel 2 at about 1kHz for one second
+     */
+    @Test
+    public void squareWaveFrequency() {
+        EventScheduler scheduler = new EventScheduler();
+        SoundController sound = new SoundController();
+        sound.setScheduler(scheduler);
+        CapturingOutput output = new CapturingOutput();
+        sound.setOutput(output);
+
+        sound.write(SoundController.ADDR_NR52, (byte) 0x80);
+        sound.write(SoundController.ADDR_NR50, (byte) 0x77);
+        sound.write(SoundController.ADDR_NR51, (byte) 0xFF);
+        int frequency = 1917; // 4194304 / (32 * (2048 - 1917)) = 1000.5Hz
+        sound.write(0xFF16, (byte) 0x80); // 50% duty
+        sound.write(0xFF17, (byte) 0xF0); // full volume, no envelope
+        sound.write(0xFF18, (byte) frequency);
+        sound.write(0xFF19, (byte) (0x80 | (frequency >> 8)));
+        run(scheduler, Z80Timer.CLOCK_SPEED);
+        sound.write(SoundController.ADDR_NR52, (byte) 0); // forces the last samples out
+
+        short[] samples = output.getLeft();
+        assertEquals(SAMPLE_RATE, samples.length, 1);
+        int crossings = 0;
+        // skips the first 100ms, while the DC offset is removed: the ringing of the steps can cross 0 around it
+        for (int i = SAMPLE_RATE/10; i < samples.length; i++) {
+            if(samples[i-1] < 0 && samples[i] >= 0)
+                crossings++;
+        }
+        assertEquals(900, crossings, 2);
+    }
+
+    /**
+     * Once the amplitude stops changing, the high-pass filter must bring the output back to exactly 0
+     */
+    @Test
+    public void outputSettlesToSilence() {
+        BlipBuffer buffer = new BlipBuffer(Z80Timer.CLOCK_SPEED, SAMPLE_RATE, SoundController.FRAME_SEQUENCER_PERIOD);
+        short[] samples = new short[buffer.getCapacity()];
+        Random random = new Random(0);
+        for (int batch = 0; batch < 50; batch++) {
+            for (int i = 0; i < 100; i++) {
+                int delta = random.nextInt(200) - 100;
+                int time = random.nextInt(SoundController.FRAME_SEQUENCER_PERIOD);
+                buffer.addDelta(time, delta);
+                buffer.addDelta(time + random.nextInt(SoundController.FRAME_SEQUENCER_PERIOD - time), -delta);
+            }
+            buffer.endFrame(SoundController.FRAME_SEQUENCER_PERIOD);
+            buffer.readSamples(samples, 0, buffer.getAvailableSamples(), 1);
+        }
+        for (int batch = 0; batch < 100; batch++) { // about 200ms
+            buffer.endFrame(SoundController.FRAME_SEQUENCER_PERIOD);
+            buffer.readSamples(samples, 0, buffer.getAvailableSamples(), 1);
+        }
+        buffer.endFrame(SoundController.FRAME_SEQUENCER_PERIOD);
+        int count = buffer.getAvailableSamples();
+        buffer.readSamples(samples, 0, count, 1);
+        for (int i = 0; i < count; i++) {
+            assertEquals(0, samples[i]);
+        }
+    }
+
+    @Test
+    public void lengthCounterDisablesChannel() {
+        EventScheduler scheduler = new EventScheduler();
+        SoundController sound = new SoundController();
+        sound.setScheduler(scheduler);
+        // no output: the channel status must still be emulated
+
+        sound.write(0xFF16, (byte) 0x3C); // length of 4 steps of the frame sequencer
+        sound.write(0xFF17, (byte) 0xF0);
+        sound.write(0xFF19, (byte) 0xC0); // trigger with the length enabled
+        assertEquals(0x2, sound.read(SoundController.ADDR_NR52) & 0xF);
+        run(scheduler, SoundController.FRAME_SEQUENCER_PERIOD*6);
+        assertEquals(0x2, sound.read(SoundController.ADDR_NR52) & 0xF);
+        run(scheduler, SoundController.FRAME_SEQUENCER_PERIOD*2);
+        assertEquals(0, sound.read(SoundController.ADDR_NR52) & 0xF);
+    }
+
+    @Test
+    public void powerOffClearsRegisters() {
+        SoundController sound = new SoundController();
+        sound.write(SoundController.ADDR_NR50, (byte) 0x77);
+        sound.write(0xFF17, (byte) 0xF3);
+        sound.write(0xFF30, (byte) 0x12);
+
+        sound.write(SoundController.ADDR_NR52, (byte) 0);
+        assertEquals(0x70, sound.read(SoundController.ADDR_NR52) & 0xFF);
+        assertEquals(0, sound.read(SoundController.ADDR_NR50));
+        assertEquals(0, sound.read(0xFF17));
+        assertEquals(0x12, sound.read(0xFF30)); // the wave RAM is kept
+        sound.write(SoundController.ADDR_NR50, (byte) 0x77); // ignored while off
+        assertEquals(0, sound.read(SoundController.ADDR_NR50));
+    }
+
+    @Test
+    public void saveStateRoundTrip() {
+        EventScheduler scheduler = new EventScheduler();
+        SoundController sound = new SoundController();
+        sound.setScheduler(scheduler);
+        sound.write(0xFF21, (byte) 0xF1);
+        sound.write(0xFF22, (byte) 0x21);
+        sound.write(0xFF23, (byte) 0x80);
+        run(scheduler, 10000);
+        ByteBuffer state = ByteBuffer.allocate(256);
+        sound.saveState(state);
+        state.flip();
+
+        SoundController copy = new SoundController();
+        copy.loadState(state);
+        byte[] expected = new byte[0x30];
+        byte[] actual = new byte[0x30];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = sound.read(SoundController.ADDR_SOUND_START+i);
+            actual[i] = copy.read(SoundController.ADDR_SOUND_START+i);
+        }
+        assertArrayEquals(expected, actual);
+        assertTrue((copy.read(SoundController.ADDR_NR52) & 0x8) != 0);
+    }
+}
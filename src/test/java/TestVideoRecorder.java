@@ -0,0 +1,93 @@
+import org.jglrxavpok.jameboy.graphics.GPU;
+import org.jglrxavpok.jameboy.graphics.VideoDecoder;
+import org.jglrxavpok.jameboy.graphics.VideoRecorder;
+import org.jglrxavpok.jameboy.memory.NoMBC;
+import org.jglrxavpok.jameboy.utils.IOUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestVideoRecorder {
+
+    /**
+     * Renders frames of a memory dump, moving the window (covering the screen) down so that each frame differs from the
+     * previous one
+     */
+    private List<int[]> renderFrames(int count) throws IOException {
+        byte[] dump = IOUtils.read(getClass().getResourceAsStream("/memdumps/PokemonYellowBattle.DMP"));
+        NoMBC memory = new NoMBC(ByteBuffer.allocate(0x8000), ByteBuffer.allocate(0x2000));
+        GPU gpu = new GPU();
+        memory.setGPU(gpu);
+        gpu.linkToMemory(memory);
+        for (int i = 0; i < dump.length; i++) {
+            if(gpu.isValidGPUAddress(i) && i != GPU.ADDR_LY)
+                memory.write(i, dump[i]);
+        }
+        List<int[]> frames = new ArrayList<>();
+        for (int frame = 0; frame < count; frame++) {
+            memory.write(0xFF4A, (byte) frame); // WY
+            for (int line = 0; line < 154; line++) {
+                gpu.step(456);
+            }
+            frames.add(gpu.getFrameExchange().acquire().clone());
+        }
+        return frames;
+    }
+
+    @Test
+    public void framesAreDecodedUnchanged() throws IOException {
+        List<int[]> frames = renderFrames(30);
+        File file = File.createTempFile("jameboy", ".jbv");
+        file.deleteOnExit();
+        try(VideoRecorder recorder = new VideoRecorder(file, new GPU().getShades(), 4)) {
+            for (int[] frame : frames) {
+                recorder.record(frame);
+            }
+            assertEquals(frames.size(), recorder.getRecordedFrames());
+        }
+        // much smaller than the packed frames
+        assertTrue(file.length() < frames.size()*VideoRecorder.FRAME_SIZE);
+
+        int[] pixels = new int[GPU.WIDTH*GPU.HEIGHT];
+        try(VideoDecoder decoder = new VideoDecoder(file)) {
+            for (int[] frame : frames) {
+                assertTrue(decoder.nextFrame());
+                decoder.getPixels(pixels);
+                assertArrayEquals(frame, pixels);
+            }
+            assertFalse(decoder.nextFrame());
+        }
+    }
+
+    @Test
+    public void truncatedVideoEndsAtLastCompleteFrame() throws IOException {
+        List<int[]> frames = renderFrames(3);
+        File file = File.createTempFile("jameboy", ".jbv");
+        file.deleteOnExit();
+        try(VideoRecorder recorder = new VideoRecorder(file, new GPU().getShades())) {
+            for (int[] frame : frames) {
+                recorder.record(frame);
+            }
+        }
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length()-1);
+        }
+
+        try(VideoDecoder decoder = new VideoDecoder(file)) {
+            assertTrue(decoder.nextFrame());
+            assertTrue(decoder.nextFrame());
+            assertFalse(decoder.nextFrame());
+            assertEquals(2, decoder.getFrameIndex());
+        }
+    }
+}
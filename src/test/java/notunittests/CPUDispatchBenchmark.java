@@ -0,0 +1,49 @@
+package notunittests;
+
+import org.jglrxavpok.jameboy.JameBoy;
+import org.jglrxavpok.jameboy.memory.GameROM;
+import org.jglrxavpok.jameboy.utils.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures how fast the interpreter goes through the cpu_instrs test ROM, in emulated MHz.<br/>
+ * Run it on two revisions to compare opcode dispatch strategies; the first rounds are warm-up for the JIT.
+ */
+public class CPUDispatchBenchmark {
+
+    private static final int WARMUP_ROUNDS = 10;
+    private static final int ROUNDS = 20;
+    /**
+     * The test ROM executes STOP a bit after 1.5M cycles, stay below that
+     */
+    private static final int CYCLES_PER_ROUND = 1_500_000;
+
+    public static void main(String[] args) throws IOException {
+        byte[] rom = readRaw("roms/cpu_instrs.gb");
+        double best = 0.0;
+        double total = 0.0;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            JameBoy core = new JameBoy(false);
+            core.loadROM(new GameROM(ByteBuffer.wrap(rom)));
+            long start = System.nanoTime();
+            for (int cycles = 0; cycles < CYCLES_PER_ROUND;) {
+                cycles += core.cycle();
+            }
+            long elapsed = System.nanoTime() - start;
+            double mhz = CYCLES_PER_ROUND / (elapsed / 1000.0);
+            if(round >= WARMUP_ROUNDS) {
+                best = Math.max(best, mhz);
+                total += mhz;
+            }
+        }
+        System.out.printf("Average: %.2f MHz, best: %.2f MHz (real hardware: 4.19 MHz)%n", total / ROUNDS, best);
+    }
+
+    private static byte[] readRaw(String name) throws IOException {
+        InputStream in = CPUDispatchBenchmark.class.getResourceAsStream("/"+name);
+        return IOUtils.read(in);
+    }
+}
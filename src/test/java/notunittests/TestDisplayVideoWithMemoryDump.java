@@ -36,10 +36,11 @@ public class TestDisplayVideoWithMemoryDump {
             index++;
         }
 
+        int[] frame = core.getGPU().getFrameExchange().acquire();
         BufferedImage image = new BufferedImage(GPU.WIDTH, GPU.HEIGHT, BufferedImage.TYPE_INT_ARGB);
         for (int y = 0; y < GPU.HEIGHT; y++) {
             for (int x = 0; x < GPU.WIDTH; x++) {
-                image.setRGB(x, y, core.getGPU().getPixels()[x + y*GPU.WIDTH]);
+                image.setRGB(x, y, frame[x + y*GPU.WIDTH]);
             }
         }
 